@@ -0,0 +1,449 @@
+package shadowsocks;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.net.NetClient;
+import io.vertx.core.net.NetServer;
+import io.vertx.core.net.NetSocket;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.config.Configurator;
+import shadowsocks.crypto.CipherBackends;
+import shadowsocks.util.GlobalConfig;
+import shadowsocks.util.LocalConfig;
+import shadowsocks.util.UpstreamConfig;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * End to end load on loopback: socks5 clients -> local -> server -> target,
+ * everything in this process, through the real ClientHandler and ServerHandler.
+ *
+ * Every client opens a connection (socks5 handshake included), then sends a
+ * payload and waits for it to come back from the echo target, requests times
+ * per connection before it opens a new one (0: keep the connection). With
+ * the sink target the clients only send and the target counts what arrives.
+ *
+ * usage: EndToEndBenchmark [-m methods] [-c connections] [-s payload sizes]
+ *                          [-n requests per connection] [-d seconds] [-w warmup seconds]
+ *                          [-t echo|sink] [-b crypto backend]
+ *                          [-l connection rate limit KB/s] [-g rate limit KB/s]
+ *                          [-f on|off coalesce_writes] [-x on|off mux]
+ *                          [-i workers] [-e on|off native_transport]
+ *
+ * With a rate limit MB/s shows how close the shaping is to it, sink mode
+ * measures what really arrives.
+ *
+ * -s 1048576 is the large read case: each payload spans many socket reads,
+ * relayed without copying the data queued before, MB/s stays at the level
+ * of -s 16384.
+ *
+ * -i takes a list of instance counts (workers), every method and size runs
+ * with each of them to show how the throughput grows with the instances.
+ */
+public class EndToEndBenchmark {
+
+    private final static String PASSWORD = "benchmark";
+    private final static String HOST = "127.0.0.1";
+
+    private List<String> mMethods = Arrays.asList("aes-256-cfb", "chacha20", "aes-128-gcm", "chacha20-ietf-poly1305");
+    private int mConnections = 64;
+    private List<Integer> mSizes = Arrays.asList(64, 1024, 16384);
+    private int mRequests = 0;
+    private int mSeconds = 10;
+    private int mWarmup = 3;
+    private boolean mSink = false;
+    private String mBackend = CipherBackends.BOUNCYCASTLE;
+    private int mConnectionRateLimit = 0;
+    private int mRateLimit = 0;
+    private boolean mCoalesceWrites = true;
+    private boolean mMux = false;
+    private boolean mNativeTransport = false;
+    // Empty: the default of the config, one instance per core.
+    private List<Integer> mWorkers = Collections.emptyList();
+
+    private Vertx mTargetVertx;
+    private int mEchoPort;
+    private int mSinkPort;
+    private final LongAdder mSinkBytes = new LongAdder();
+
+    // Growable array of latencies, ns.
+    private static class Samples {
+        long[] values = new long[1024];
+        int size;
+
+        void add(long v) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = v;
+        }
+    }
+
+    private static class Stats {
+        final Samples setup = new Samples();
+        final Samples latency = new Samples();
+        long bytes;
+        long errors;
+        // The clients stop at their first chance after the deadline.
+        double seconds;
+
+        void add(Client c) {
+            for (int i = 0; i < c.setup.size; i++) {
+                setup.add(c.setup.values[i]);
+            }
+            for (int i = 0; i < c.latency.size; i++) {
+                latency.add(c.latency.values[i]);
+            }
+            bytes += c.bytes;
+            errors += c.errors;
+        }
+    }
+
+    /**
+     * One client, it lives on the event loop of its first connection.
+     */
+    private class Client {
+        final NetClient netClient;
+        final int targetPort;
+        final Buffer payload;
+        final long deadline;
+        final CountDownLatch done;
+        final Samples setup = new Samples();
+        final Samples latency = new Samples();
+        long bytes;
+        long errors;
+
+        NetSocket socket;
+        long start;
+        // socks5 reply bytes still expected: method reply (2) + connect reply (10).
+        int handshake;
+        int received;
+        int requests;
+        boolean finished;
+
+        Client(NetClient netClient, int targetPort, int size, long deadline, CountDownLatch done) {
+            this.netClient = netClient;
+            this.targetPort = targetPort;
+            this.deadline = deadline;
+            this.done = done;
+            byte[] data = new byte[size];
+            Arrays.fill(data, (byte)'x');
+            payload = Buffer.buffer(data);
+        }
+
+        void open() {
+            if (System.nanoTime() >= deadline) {
+                finish();
+                return;
+            }
+            start = System.nanoTime();
+            handshake = 12;
+            requests = 0;
+            netClient.connect(mLocalPort, HOST, res -> {
+                if (res.failed()) {
+                    errors++;
+                    open();
+                    return;
+                }
+                NetSocket s = res.result();
+                socket = s;
+                socket.handler(this::handle);
+                socket.closeHandler(v -> {
+                    if (socket == s) {
+                        // Closed by the other side.
+                        errors++;
+                        socket = null;
+                        open();
+                    }
+                });
+                Buffer request = Buffer.buffer(new byte[]{5, 1, 0, 5, 1, 0, 1, 127, 0, 0, 1})
+                    .appendUnsignedShort(targetPort);
+                socket.write(request);
+            });
+        }
+
+        void handle(Buffer buffer) {
+            int length = buffer.length();
+            if (handshake > 0) {
+                // REP of the connect reply, the 4th byte.
+                int rep = 12 - handshake <= 3 && 12 - handshake + length > 3 ? buffer.getByte(3 - (12 - handshake)) : 0;
+                if (rep != 0) {
+                    errors++;
+                    close();
+                    open();
+                    return;
+                }
+                int used = Math.min(handshake, length);
+                handshake -= used;
+                length -= used;
+                if (handshake > 0)
+                    return;
+                setup.add(System.nanoTime() - start);
+                send();
+            }
+            received += length;
+            if (received < payload.length())
+                return;
+            long now = System.nanoTime();
+            latency.add(now - start);
+            bytes += payload.length();
+            requests++;
+            if (now >= deadline) {
+                close();
+                finish();
+            } else if (mRequests > 0 && requests == mRequests) {
+                close();
+                open();
+            } else {
+                send();
+            }
+        }
+
+        void send() {
+            received = 0;
+            start = System.nanoTime();
+            if (mSink) {
+                sendSink();
+                return;
+            }
+            socket.write(payload);
+        }
+
+        // Keep the connection busy until the deadline.
+        void sendSink() {
+            while (socket != null && !socket.writeQueueFull()) {
+                if (System.nanoTime() >= deadline) {
+                    close();
+                    finish();
+                    return;
+                }
+                socket.write(payload);
+                bytes += payload.length();
+            }
+            if (socket != null) {
+                socket.drainHandler(v -> sendSink());
+            }
+        }
+
+        void close() {
+            NetSocket s = socket;
+            socket = null;
+            if (s != null) {
+                s.close();
+            }
+        }
+
+        void finish() {
+            if (!finished) {
+                finished = true;
+                done.countDown();
+            }
+        }
+    }
+
+    private int mLocalPort;
+
+    private static int freePort() throws IOException {
+        try (ServerSocket s = new ServerSocket(0)) {
+            return s.getLocalPort();
+        }
+    }
+
+    // One server per event loop on each port, vert.x spreads the connections over them.
+    private void startTargets() throws Exception {
+        mTargetVertx = Vertx.vertx();
+        mEchoPort = freePort();
+        mSinkPort = freePort();
+        int loops = Runtime.getRuntime().availableProcessors();
+        List<CompletableFuture<Void>> started = new ArrayList<>();
+        for (int i = 0; i < loops; i++) {
+            NetServer echo = mTargetVertx.createNetServer().connectHandler(sock -> {
+                sock.handler(buffer -> {
+                    sock.write(buffer);
+                    if (sock.writeQueueFull()) {
+                        sock.pause();
+                        sock.drainHandler(v -> sock.resume());
+                    }
+                });
+            });
+            NetServer sink = mTargetVertx.createNetServer().connectHandler(sock -> {
+                sock.handler(buffer -> mSinkBytes.add(buffer.length()));
+            });
+            CompletableFuture<Void> echoStarted = new CompletableFuture<>();
+            CompletableFuture<Void> sinkStarted = new CompletableFuture<>();
+            echo.listen(mEchoPort, HOST, res -> complete(echoStarted, res.failed() ? res.cause() : null));
+            sink.listen(mSinkPort, HOST, res -> complete(sinkStarted, res.failed() ? res.cause() : null));
+            started.add(echoStarted);
+            started.add(sinkStarted);
+        }
+        for (CompletableFuture<Void> f : started) {
+            f.get(10, TimeUnit.SECONDS);
+        }
+    }
+
+    private static void complete(CompletableFuture<Void> f, Throwable cause) {
+        if (cause != null) {
+            f.completeExceptionally(cause);
+        } else {
+            f.complete(null);
+        }
+    }
+
+    private static void start(ShadowsocksVertx ss) throws Exception {
+        CompletableFuture<Void> started = new CompletableFuture<>();
+        ss.start(res -> complete(started, res.failed() ? res.cause() : null));
+        started.get(10, TimeUnit.SECONDS);
+    }
+
+    private Stats run(Vertx clientVertx, int size, int seconds) throws InterruptedException {
+        NetClient netClient = clientVertx.createNetClient();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        CountDownLatch done = new CountDownLatch(mConnections);
+        List<Client> clients = new ArrayList<>();
+        int targetPort = mSink ? mSinkPort : mEchoPort;
+        for (int i = 0; i < mConnections; i++) {
+            Client client = new Client(netClient, targetPort, size, deadline, done);
+            clients.add(client);
+            // Spread the clients over the event loops.
+            clientVertx.getOrCreateContext().runOnContext(v -> client.open());
+        }
+        Stats stats = new Stats();
+        boolean finished = done.await(seconds + 30, TimeUnit.SECONDS);
+        stats.seconds = (System.nanoTime() - deadline) / 1e9 + seconds;
+        if (!finished) {
+            System.out.println("  " + done.getCount() + " clients did not finish");
+            netClient.close();
+            return stats;
+        }
+        for (Client client : clients) {
+            stats.add(client);
+        }
+        netClient.close();
+        return stats;
+    }
+
+    private static double percentile(Samples samples, double p) {
+        if (samples.size == 0)
+            return 0;
+        int index = (int)Math.ceil(p * samples.size) - 1;
+        return samples.values[Math.max(0, Math.min(samples.size - 1, index))] / 1e3;
+    }
+
+    private void report(String method, int workers, int size, Stats stats, long sinkBytes) {
+        Arrays.sort(stats.setup.values, 0, stats.setup.size);
+        Arrays.sort(stats.latency.values, 0, stats.latency.size);
+        long bytes = mSink ? sinkBytes : stats.bytes;
+        System.out.println(String.format("%-24s %7d %6d %8.1f %8.1f %8.1f %10.1f %9.1f %9.1f %9.1f %6d",
+                method, workers, size,
+                stats.setup.size / stats.seconds,
+                percentile(stats.setup, 0.5), percentile(stats.setup, 0.99),
+                bytes / 1e6 / stats.seconds,
+                percentile(stats.latency, 0.5), percentile(stats.latency, 0.99), percentile(stats.latency, 0.999),
+                stats.errors));
+    }
+
+    // workers 0: the default of the config.
+    private void runMethod(Vertx clientVertx, String method, int workers) throws Exception {
+        CipherBackends.select(mBackend, method);
+        LocalConfig config = GlobalConfig.createLocalConfig();
+        if (workers > 0) {
+            config.workers = workers;
+        }
+        config.method = method;
+        config.password = PASSWORD;
+        config.server = HOST;
+        config.serverPort = freePort();
+        config.localPort = freePort();
+        config.connectionRateLimit = mConnectionRateLimit;
+        config.rateLimit = mRateLimit;
+        config.coalesceWrites = mCoalesceWrites;
+        config.mux = mMux;
+        config.nativeTransport = mNativeTransport;
+        config.servers = Collections.singletonList(new UpstreamConfig(HOST, config.serverPort, PASSWORD, method));
+        mLocalPort = config.localPort;
+        ShadowsocksVertx server = new ShadowsocksVertx(true, config);
+        ShadowsocksVertx local = new ShadowsocksVertx(false, config);
+        start(server);
+        start(local);
+        for (int size : mSizes) {
+            if (mWarmup > 0) {
+                run(clientVertx, size, mWarmup);
+            }
+            long sinkBefore = mSinkBytes.sum();
+            Stats stats = run(clientVertx, size, mSeconds);
+            report(method, config.workers, size, stats, mSinkBytes.sum() - sinkBefore);
+        }
+        local.stop();
+        server.stop();
+    }
+
+    private static List<Integer> parseInts(String value) {
+        List<Integer> sizes = new ArrayList<>();
+        for (String s : value.split(",")) {
+            sizes.add(Integer.parseInt(s.trim()));
+        }
+        return sizes;
+    }
+
+    private void parseArgs(String[] args) {
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "-m": mMethods = Arrays.asList(value.split(",")); break;
+                case "-c": mConnections = Integer.parseInt(value); break;
+                case "-s": mSizes = parseInts(value); break;
+                case "-n": mRequests = Integer.parseInt(value); break;
+                case "-d": mSeconds = Integer.parseInt(value); break;
+                case "-w": mWarmup = Integer.parseInt(value); break;
+                case "-t": mSink = value.equals("sink"); break;
+                case "-b": mBackend = value; break;
+                case "-l": mConnectionRateLimit = Integer.parseInt(value); break;
+                case "-g": mRateLimit = Integer.parseInt(value); break;
+                case "-f": mCoalesceWrites = value.equals("on"); break;
+                case "-x": mMux = value.equals("on"); break;
+                case "-e": mNativeTransport = value.equals("on"); break;
+                case "-i": mWorkers = parseInts(value); break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        // One line per connection would be the bottleneck.
+        Configurator.setRootLevel(Level.WARN);
+        EndToEndBenchmark bench = new EndToEndBenchmark();
+        bench.parseArgs(args);
+        bench.startTargets();
+        Vertx clientVertx = Vertx.vertx();
+        System.out.println(String.format("%d connections, %s, %s requests per connection, %ds (warmup %ds), backend %s",
+                bench.mConnections, bench.mSink ? "sink" : "echo",
+                bench.mRequests == 0 ? "unlimited" : String.valueOf(bench.mRequests),
+                bench.mSeconds, bench.mWarmup, bench.mBackend)
+                + (bench.mNativeTransport ? ", native transport" : ""));
+        if (bench.mConnectionRateLimit > 0 || bench.mRateLimit > 0) {
+            System.out.println(String.format("rate limit %d KB/s per connection, %d KB/s in total (0: none)",
+                    bench.mConnectionRateLimit, bench.mRateLimit));
+        }
+        System.out.println(String.format("%-24s %7s %6s %8s %8s %8s %10s %9s %9s %9s %6s",
+                "method", "workers", "size", "conn/s", "setup50", "setup99", "MB/s", "p50(us)", "p99(us)", "p999(us)", "errors"));
+        List<Integer> workers = bench.mWorkers.isEmpty() ? Collections.singletonList(0) : bench.mWorkers;
+        for (int w : workers) {
+            for (String method : bench.mMethods) {
+                bench.runMethod(clientVertx, method, w);
+            }
+        }
+        clientVertx.close();
+        bench.mTargetVertx.close();
+        System.exit(0);
+    }
+}
@@ -0,0 +1,129 @@
+package shadowsocks;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.config.Configurator;
+import shadowsocks.util.GlobalConfig;
+import shadowsocks.util.LocalConfig;
+import shadowsocks.util.UserConfig;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Heap used by every user of a multi-user server: starts a server, adds the
+ * users through the same path as the manager and compares the heap after
+ * a full GC. Every user has its own password so the key cache grows too.
+ *
+ * usage: UserMemoryBenchmark [-u users] [-m method] [-i instances] [-mode tcp_only|tcp_and_udp]
+ */
+public class UserMemoryBenchmark {
+
+    private final static String HOST = "127.0.0.1";
+
+    private int mUsers = 1000;
+    private String mMethod = "aes-256-gcm";
+    private int mWorkers = Runtime.getRuntime().availableProcessors();
+    private String mMode = "tcp_only";
+
+    private static int freePort() throws IOException {
+        try (ServerSocket s = new ServerSocket(0)) {
+            return s.getLocalPort();
+        }
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        // The smallest of a few collections, the event loops keep allocating a little.
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(100);
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+
+    private static void await(ShadowsocksVertx ss, UserConfig user) throws Exception {
+        CompletableFuture<Void> added = new CompletableFuture<>();
+        ss.addUser(user, res -> {
+            if (res.succeeded()) {
+                added.complete(null);
+            }else{
+                added.completeExceptionally(res.cause());
+            }
+        });
+        added.get(10, TimeUnit.SECONDS);
+    }
+
+    private void run() throws Exception {
+        LocalConfig config = GlobalConfig.createLocalConfig();
+        config.method = mMethod;
+        config.password = "benchmark";
+        config.server = HOST;
+        config.serverPort = freePort();
+        config.workers = mWorkers;
+        config.mode = mMode;
+        ShadowsocksVertx server = new ShadowsocksVertx(true, config);
+        CompletableFuture<Void> started = new CompletableFuture<>();
+        server.start(res -> started.complete(null));
+        started.get(10, TimeUnit.SECONDS);
+
+        long before = usedHeap();
+        List<Integer> ports = new ArrayList<>();
+        int failed = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < mUsers; i++) {
+            int port = freePort();
+            try{
+                await(server, new UserConfig(port, "password-" + i, mMethod));
+                ports.add(port);
+            }catch(Exception e){
+                // Someone took the port in between.
+                failed++;
+            }
+        }
+        long addNanos = System.nanoTime() - start;
+        long after = usedHeap();
+
+        int added = ports.size();
+        System.out.println(String.format("%d users, %s, %d instances, %s", added, mMethod, mWorkers, mMode));
+        System.out.println(String.format("  heap before %.1f MB, after %.1f MB", before / 1e6, after / 1e6));
+        System.out.println(String.format("  %.0f bytes per user, %.0f bytes per user and instance",
+                (after - before) / (double)added, (after - before) / (double)added / mWorkers));
+        System.out.println(String.format("  %.0f us per add, %d ports failed", addNanos / 1e3 / Math.max(1, added), failed));
+
+        for (int port : ports) {
+            CompletableFuture<Void> removed = new CompletableFuture<>();
+            server.removeUser(port, res -> removed.complete(null));
+            removed.get(10, TimeUnit.SECONDS);
+        }
+        System.out.println(String.format("  heap after removing them %.1f MB", usedHeap() / 1e6));
+        server.stop();
+    }
+
+    private void parseArgs(String[] args) {
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "-u": mUsers = Integer.parseInt(value); break;
+                case "-m": mMethod = value; break;
+                case "-i": mWorkers = Integer.parseInt(value); break;
+                case "-mode": mMode = value; break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Configurator.setRootLevel(Level.WARN);
+        UserMemoryBenchmark bench = new UserMemoryBenchmark();
+        bench.parseArgs(args);
+        bench.run();
+        System.exit(0);
+    }
+}
@@ -0,0 +1,112 @@
+package shadowsocks.crypto;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stream encrypt/decrypt of one chunk, as the relay does for every read.
+ *
+ * ops/s is chunks per second, the "bytes" counter is the payload per second
+ * (divide by 1e6 for MB/s). Run with -prof gc for the allocation rate.
+ * The backend only matters for the stream ciphers, AEAD always runs on JCA.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CipherBenchmark {
+
+    private final static String PASSWORD = "benchmark";
+    // Ciphertext prepared for decrypt, about this many bytes.
+    private final static int DECRYPT_BATCH = 4 * 1024 * 1024;
+
+    @Param({"aes-256-cfb", "chacha20", "rc4-md5", "aes-128-gcm", "aes-192-gcm", "aes-256-gcm", "chacha20-ietf-poly1305"})
+    public String method;
+
+    @Param({"64", "1024", "16384", "65536"})
+    public int size;
+
+    @Param({CipherBackends.BOUNCYCASTLE, CipherBackends.JCA})
+    public String backend;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Payload {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    private SSCrypto mEncrypt;
+    private ByteBuf mPlain;
+
+    private SSCrypto mDecrypt;
+    // The IV/salt of the stream and the chunks following it.
+    private ByteBuf mHeader;
+    private ByteBuf[] mChunks;
+    private int mNext;
+
+    @Setup(Level.Trial)
+    public void setup() throws CryptoException {
+        CipherBackends.select(backend, method);
+        byte[] plain = Utils.randomBytes(size);
+        mPlain = Unpooled.wrappedBuffer(plain);
+        mEncrypt = CryptoFactory.create(method, PASSWORD);
+        // The first chunk carries the IV, keep it out of the measure.
+        mEncrypt.encrypt(Unpooled.wrappedBuffer(plain));
+
+        SSCrypto encrypt = CryptoFactory.create(method, PASSWORD);
+        // Encrypting nothing gives the IV/salt alone.
+        mHeader = encrypt.encrypt(Unpooled.buffer(0)).copy();
+        mChunks = new ByteBuf[Math.max(16, DECRYPT_BATCH / size)];
+        for (int i = 0; i < mChunks.length; i++) {
+            mChunks[i] = encrypt.encrypt(Unpooled.wrappedBuffer(plain.clone())).copy();
+        }
+        startDecrypt();
+    }
+
+    private void startDecrypt() throws CryptoException {
+        mDecrypt = CryptoFactory.create(method, PASSWORD);
+        mDecrypt.decrypt(mHeader.duplicate());
+        mNext = 0;
+    }
+
+    @Benchmark
+    public ByteBuf encrypt(Payload payload) throws CryptoException {
+        mPlain.setIndex(0, size);
+        payload.bytes += size;
+        return mEncrypt.encrypt(mPlain);
+    }
+
+    @Benchmark
+    public ByteBuf decrypt(Payload payload) throws CryptoException {
+        if (mNext == mChunks.length) {
+            // The AEAD nonces are used up, start the stream again.
+            startDecrypt();
+        }
+        ByteBuf chunk = mChunks[mNext++];
+        chunk.readerIndex(0);
+        payload.bytes += size;
+        return mDecrypt.decrypt(chunk);
+    }
+}
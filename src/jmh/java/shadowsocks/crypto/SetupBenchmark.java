@@ -0,0 +1,61 @@
+package shadowsocks.crypto;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What every new connection pays before relaying: creating the crypto (the
+ * key comes from the cache), deriving a key and generating an IV.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SetupBenchmark {
+
+    private final static String PASSWORD = "benchmark";
+
+    // Only create() runs for every method.
+    @State(Scope.Thread)
+    public static class Method {
+        @Param({"aes-256-cfb", "chacha20", "rc4-md5", "aes-128-gcm", "aes-192-gcm", "aes-256-gcm", "chacha20-ietf-poly1305"})
+        public String method;
+    }
+
+    @Benchmark
+    public SSCrypto create(Method m) throws CryptoException {
+        return CryptoFactory.create(m.method, PASSWORD);
+    }
+
+    // The same for all the methods but the key length.
+    @Benchmark
+    public byte[] getKey() throws CryptoException {
+        return Utils.getKey(PASSWORD, 32, 16);
+    }
+
+    // IV of the longest methods.
+    @Benchmark
+    public byte[] randomBytes() {
+        return Utils.randomBytes(32);
+    }
+
+    // What randomBytes() did before IVGenerator, the baseline of the one above.
+    @Benchmark
+    public byte[] randomBytesNewSecureRandom() {
+        byte[] bytes = new byte[32];
+        new SecureRandom().nextBytes(bytes);
+        return bytes;
+    }
+}
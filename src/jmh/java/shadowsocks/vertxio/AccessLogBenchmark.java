@@ -0,0 +1,136 @@
+package shadowsocks.vertxio;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.net.NetServer;
+import io.vertx.core.net.NetSocket;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.LoggerContext;
+import org.apache.logging.log4j.core.config.builder.api.ConfigurationBuilder;
+import org.apache.logging.log4j.core.config.builder.api.ConfigurationBuilderFactory;
+import org.apache.logging.log4j.core.config.builder.impl.BuiltConfiguration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What logging a connection costs the event loop: the time of one
+ * connection, some relay work (work, in Blackhole tokens) and its logging.
+ *
+ *   none          no logging, the baseline
+ *   access_log    AccessLog.log(), one entry queued for the writer thread
+ *   sampled       the same with access_log_sampling 100
+ *   log4j_sync    log.info() through a synchronous file appender, what the
+ *                 "Connecting to" line used to cost
+ *   log4j_async   the same through an Async appender, as log4j2.xml now does
+ *
+ * The overhead is the difference with none. Without enough work the
+ * writers can't keep up and the queued modes measure dropping entries,
+ * run with -t for several event loops.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AccessLogBenchmark {
+
+    private final static String HOST = "example.com";
+
+    @Param({"none", "access_log", "sampled", "log4j_sync", "log4j_async"})
+    public String mode;
+
+    @Param({"1000"})
+    public int work;
+
+    private Vertx mVertx;
+    private NetSocket mSocket;
+    private File mFile;
+    private Logger mLog;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        mVertx = Vertx.vertx();
+        // A real socket, the access log takes the client address from it.
+        CompletableFuture<NetServer> listening = new CompletableFuture<>();
+        mVertx.createNetServer().connectHandler(socket -> {}).listen(0, "127.0.0.1", res -> listening.complete(res.result()));
+        int port = listening.get(10, TimeUnit.SECONDS).actualPort();
+        CompletableFuture<NetSocket> connected = new CompletableFuture<>();
+        mVertx.createNetClient().connect(port, "127.0.0.1", res -> connected.complete(res.result()));
+        mSocket = connected.get(10, TimeUnit.SECONDS);
+
+        mFile = File.createTempFile("access", ".log");
+        mFile.deleteOnExit();
+        switch (mode) {
+            case "access_log":
+                AccessLog.open(mFile.getPath(), 1);
+                break;
+            case "sampled":
+                AccessLog.open(mFile.getPath(), 100);
+                break;
+            case "log4j_sync":
+            case "log4j_async":
+                configureLog4j(mode.equals("log4j_async"));
+                mLog = LogManager.getLogger(AccessLogBenchmark.class.getName());
+                break;
+            default:
+        }
+    }
+
+    private void configureLog4j(boolean async) {
+        ConfigurationBuilder<BuiltConfiguration> builder = ConfigurationBuilderFactory.newConfigurationBuilder();
+        builder.add(builder.newAppender("File", "File")
+                .addAttribute("fileName", mFile.getPath())
+                .add(builder.newLayout("PatternLayout").addAttribute("pattern", "%d{DATE} %level %msg%n")));
+        String ref = "File";
+        if (async) {
+            builder.add(builder.newAppender("Async", "Async")
+                    .addAttribute("bufferSize", 8192)
+                    .addComponent(builder.newAppenderRef("File")));
+            ref = "Async";
+        }
+        builder.add(builder.newRootLogger(org.apache.logging.log4j.Level.INFO).add(builder.newAppenderRef(ref)));
+        ((LoggerContext)LogManager.getContext(false)).start(builder.build());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        AccessLog.close();
+        mVertx.close();
+    }
+
+    @Benchmark
+    public void connection() {
+        long start = System.currentTimeMillis();
+        Blackhole.consumeCPU(work);
+        int port = ThreadLocalRandom.current().nextInt(65536);
+        switch (mode) {
+            case "access_log":
+            case "sampled":
+                AccessLog.log(mSocket, 8388, HOST, port, 517, 4096, start, AccessLog.END);
+                break;
+            case "log4j_sync":
+            case "log4j_async":
+                mLog.info("Connecting to " + HOST + ":" + port);
+                break;
+            default:
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package shadowsocks.vertxio;
+
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+import io.vertx.core.net.NetClient;
+import io.vertx.core.net.NetServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What an outbound connect costs a listener instance: one connect on
+ * loopback from the event loop, the socket closed once connected.
+ *
+ *   shared          one NetClient for all the connects, as the handlers do now
+ *   per_connection  a NetClient created for every connect and never closed,
+ *                   what the handlers used to do
+ *
+ * The time is the connect round trip, the heap left after a GC is printed
+ * at the end of every iteration: a NetClient created on a context is held
+ * by it until the context is closed.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConnectBenchmark {
+
+    private final static String HOST = "127.0.0.1";
+
+    @Param({"shared", "per_connection"})
+    public String mode;
+
+    private Vertx mVertx;
+    private Context mContext;
+    private NetClient mShared;
+    private int mPort;
+    private long mConnects;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        mVertx = Vertx.vertx();
+        CompletableFuture<NetServer> listening = new CompletableFuture<>();
+        mVertx.createNetServer().connectHandler(socket -> {}).listen(0, HOST, res -> listening.complete(res.result()));
+        mPort = listening.get(10, TimeUnit.SECONDS).actualPort();
+        // The context of a listener instance.
+        mContext = mVertx.getOrCreateContext();
+        CompletableFuture<NetClient> created = new CompletableFuture<>();
+        mContext.runOnContext(v -> created.complete(mVertx.createNetClient()));
+        mShared = created.get(10, TimeUnit.SECONDS);
+    }
+
+    @TearDown(Level.Iteration)
+    public void heap() {
+        System.gc();
+        long used = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        System.out.println(String.format("  heap after GC %.1f MB, %d connects", used / 1e6, mConnects));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mVertx.close();
+    }
+
+    @Benchmark
+    public void connect() throws Exception {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        mContext.runOnContext(v -> {
+            NetClient client = mode.equals("shared") ? mShared : mVertx.createNetClient();
+            client.connect(mPort, HOST, res -> {
+                if (res.succeeded()) {
+                    res.result().close();
+                    done.complete(null);
+                }else{
+                    done.completeExceptionally(res.cause());
+                }
+            });
+        });
+        done.get(10, TimeUnit.SECONDS);
+        mConnects++;
+    }
+}
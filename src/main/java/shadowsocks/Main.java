@@ -3,8 +3,6 @@ package shadowsocks;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import shadowsocks.crypto.CryptoFactory;
-
 import shadowsocks.util.GlobalConfig;
 
 public class Main{
@@ -15,10 +13,6 @@ public class Main{
 
     public static void main(String argv[])
     {
-        // IPV4 优先
-        System.setProperty("java.net.preferIPv4Stack", "true");
-        System.setProperty("java.net.preferIPv6Addresses", "false");
-
         log.info("Shadowsocks " + VERSION);
 
         if (argv.length != 1) {
@@ -37,7 +31,7 @@ public class Main{
 
         //make sure this method could work.
         try{
-            CryptoFactory.create(GlobalConfig.get().getMethod(), GlobalConfig.get().getPassword());
+            ShadowsocksVertx.checkCiphers(GlobalConfig.createLocalConfig());
         }catch(Exception e){
             log.fatal("Error crypto method", e);
             return;
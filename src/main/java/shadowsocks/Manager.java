@@ -0,0 +1,108 @@
+package shadowsocks;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.datagram.DatagramPacket;
+import io.vertx.core.datagram.DatagramSocket;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import shadowsocks.util.UserConfig;
+import shadowsocks.vertxio.Metrics;
+
+/**
+ * Management interface of a multi-user server, the UDP protocol of ss-manager:
+ *
+ *   add: {"server_port": 8001, "password": "abc"}  -> ok
+ *   remove: {"server_port": 8001}                  -> ok
+ *   ping                                           -> stat: {"8001": 11370}
+ *   list                                           -> [{"server_port": "8001", "password": "abc"}]
+ *
+ * "add" can have "method" too, the server one is used if not. "stat" is the
+ * payload bytes of every port since the start. A failed command gets "err".
+ * Listen on 127.0.0.1, the commands are not authenticated.
+ */
+public class Manager {
+
+    public static Logger log = LogManager.getLogger(Manager.class.getName());
+
+    private final static String OK = "ok";
+    private final static String ERR = "err";
+
+    private ShadowsocksVertx mServer;
+    private DatagramSocket mSocket;
+
+    public Manager(Vertx vertx, ShadowsocksVertx server, String address) {
+        mServer = server;
+        int i = address.lastIndexOf(':');
+        String host = i > 0 ? address.substring(0, i) : "127.0.0.1";
+        int port = Integer.parseInt(address.substring(i + 1));
+        mSocket = vertx.createDatagramSocket();
+        mSocket.handler(this::handle);
+        mSocket.listen(port, host, res -> {
+            if (res.succeeded()) {
+                log.info("Manager listening at " + host + ":" + port);
+            }else{
+                log.error("Manager start failed! " + res.cause().getMessage());
+            }
+        });
+    }
+
+    private void handle(DatagramPacket packet) {
+        String command = packet.data().toString().trim();
+        String body = "";
+        int i = command.indexOf(':');
+        if (i > 0) {
+            body = command.substring(i + 1).trim();
+            command = command.substring(0, i).trim();
+        }
+        try{
+            switch (command) {
+                case "add":
+                    JsonObject add = new JsonObject(body);
+                    UserConfig user = new UserConfig(add.getInteger("server_port"),
+                            add.getString("password"),
+                            add.getString("method", mServer.getMethod()));
+                    mServer.addUser(user, res -> reply(packet, res.succeeded() ? OK : ERR));
+                    break;
+                case "remove":
+                    int port = new JsonObject(body).getInteger("server_port");
+                    mServer.removeUser(port, res -> reply(packet, res.succeeded() ? OK : ERR));
+                    break;
+                case "ping":
+                    JsonObject stat = new JsonObject();
+                    for (UserConfig u : mServer.getUsers()) {
+                        stat.put(String.valueOf(u.port), Metrics.getListenerBytes(u.port));
+                    }
+                    reply(packet, "stat: " + stat.encode());
+                    break;
+                case "list":
+                    JsonArray list = new JsonArray();
+                    for (UserConfig u : mServer.getUsers()) {
+                        list.add(new JsonObject().put("server_port", String.valueOf(u.port)).put("password", u.password));
+                    }
+                    reply(packet, list.encode());
+                    break;
+                default:
+                    reply(packet, ERR);
+            }
+        }catch(Exception e){
+            // Not the body nor the exception, they may hold a password.
+            log.warn("Bad manager command: " + command + " from " + packet.sender());
+            reply(packet, ERR);
+        }
+    }
+
+    private void reply(DatagramPacket packet, String message) {
+        mSocket.send(Buffer.buffer(message), packet.sender().port(), packet.sender().host(), res -> {
+            if (res.failed()) {
+                log.debug("Manager reply failed. " + res.cause().getMessage());
+            }
+        });
+    }
+
+    public void close() {
+        mSocket.close();
+    }
+}
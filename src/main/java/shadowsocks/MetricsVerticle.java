@@ -0,0 +1,54 @@
+package shadowsocks;
+
+import io.vertx.core.AbstractVerticle;
+import io.vertx.core.Promise;
+import io.vertx.core.http.HttpServer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import shadowsocks.vertxio.Metrics;
+
+/**
+ * Serves the counters at /metrics in the Prometheus text format.
+ */
+public class MetricsVerticle extends AbstractVerticle {
+
+    public static Logger log = LogManager.getLogger(MetricsVerticle.class.getName());
+
+    private final static String PATH = "/metrics";
+    private final static String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private int mPort;
+    private HttpServer mServer;
+
+    public MetricsVerticle(int port) {
+        mPort = port;
+    }
+
+    @Override
+    public void start(Promise<Void> startPromise) {
+        mServer = vertx.createHttpServer().requestHandler(req -> {
+            if (!req.path().equals(PATH)) {
+                req.response().setStatusCode(404).end();
+                return;
+            }
+            req.response().putHeader("Content-Type", CONTENT_TYPE).end(Metrics.prometheus());
+        }).listen(mPort, "0.0.0.0", res -> {
+            if (res.succeeded()) {
+                log.info("Metrics at http://0.0.0.0:" + mPort + PATH);
+                startPromise.complete();
+            }else{
+                startPromise.fail(res.cause());
+            }
+        });
+    }
+
+    @Override
+    public void stop(Promise<Void> stopPromise) {
+        if (mServer == null) {
+            stopPromise.complete();
+            return;
+        }
+        mServer.close(stopPromise);
+        mServer = null;
+    }
+}
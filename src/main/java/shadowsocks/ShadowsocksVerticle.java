@@ -0,0 +1,360 @@
+package shadowsocks;
+
+import io.vertx.core.AbstractVerticle;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.CompositeFuture;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Promise;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.impl.ContextInternal;
+import io.vertx.core.net.NetClient;
+import io.vertx.core.net.NetClientOptions;
+import io.vertx.core.net.NetServer;
+import io.vertx.core.net.NetServerOptions;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import shadowsocks.util.LocalConfig;
+import shadowsocks.util.UserConfig;
+import shadowsocks.vertxio.ClientHandler;
+import shadowsocks.vertxio.DnsCache;
+import shadowsocks.vertxio.Flusher;
+import shadowsocks.vertxio.MuxPool;
+import shadowsocks.vertxio.RateLimiter;
+import shadowsocks.vertxio.RelayContext;
+import shadowsocks.vertxio.ServerHandler;
+import shadowsocks.vertxio.TimeoutWheel;
+import shadowsocks.vertxio.UpstreamPool;
+import shadowsocks.vertxio.WarmPool;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * One listener instance. Every instance owns an event loop, several instances
+ * listening on the same port share it and vert.x balances the accepted
+ * connections between them.
+ *
+ * A multi-user server listens on one port per user, the ports share the
+ * client, timers and DNS cache of the instance. Ports are added and removed
+ * at runtime with addPort() and removePort().
+ *
+ * reload() switches the instance to a new config: every port gets a new
+ * context for the connections it accepts from then on, the open ones keep
+ * the context, and so the config and cipher, they started with.
+ */
+public class ShadowsocksVerticle extends AbstractVerticle {
+
+    public static Logger log = LogManager.getLogger(ShadowsocksVerticle.class.getName());
+
+    // Timeouts are checked with this precision (ms).
+    private final static long TIMEOUT_TICK = 1000;
+    // ms between checks of the ports being closed.
+    private final static long DRAIN_CHECK = 1000;
+
+    private boolean mIsServer;
+    private LocalConfig mConfig;
+    // port -> listener, only touched on the event loop of the instance.
+    private final Map<Integer, NetServer> mNetServers = new HashMap<>();
+    // port -> what its new connections get.
+    private final Map<Integer, RelayContext> mContexts = new HashMap<>();
+    // Removed ports, still bound until their connections are done as closing
+    // the server closes the connections it accepted. New ones are refused.
+    private final Set<Integer> mDraining = new HashSet<>();
+    // port -> connections accepted and not closed yet, in the handshake or
+    // muxed with no stream open as well.
+    private final Map<Integer, Integer> mAccepted = new HashMap<>();
+    private long mDrainTimerId = -1;
+    // Draining port -> called once it is released.
+    private final Map<Integer, List<Handler<Void>>> mReleaseHandlers = new HashMap<>();
+    private UpstreamPool mUpstreams;
+    // Outbound connections of this instance share one client, it lives as long as the instance.
+    private NetClient mNetClient;
+    private TimeoutWheel mTimeoutWheel;
+    private DnsCache mDnsCache;
+    private MuxPool mMuxPool;
+    private WarmPool mWarmPool;
+    // Replaced by a reload, closed with the instance.
+    private final List<MuxPool> mOldMuxPools = new ArrayList<>();
+    // Shared by the instances, null without a rate limit.
+    private RateLimiter.Limits mLimits;
+    private RateLimiter mRateLimiter;
+    private Flusher mFlusher;
+
+    public ShadowsocksVerticle(boolean isServer, LocalConfig config, RateLimiter.Limits limits) {
+        mIsServer = isServer;
+        mConfig = config;
+        mLimits = limits;
+    }
+
+    @Override
+    public void start(Promise<Void> startPromise) {
+        mNetClient = vertx.createNetClient(createClientOptions(mConfig));
+        mTimeoutWheel = new TimeoutWheel(vertx, TIMEOUT_TICK);
+        List<LocalConfig> ports = new ArrayList<>();
+        if (mIsServer) {
+            mDnsCache = new DnsCache(vertx, mConfig.dnsServer, mConfig.dnsCacheSize);
+            for (UserConfig user : mConfig.users) {
+                ports.add(mConfig.forUser(user));
+            }
+        }
+        createShared();
+        if (ports.isEmpty()) {
+            ports.add(mConfig);
+        }
+        List<Future> started = new ArrayList<>();
+        for (LocalConfig config : ports) {
+            Promise<Void> promise = Promise.promise();
+            listen(config, promise);
+            started.add(promise.future());
+        }
+        CompositeFuture.all(started).onComplete(res -> {
+            if (res.succeeded()) {
+                startPromise.complete();
+            }else{
+                startPromise.fail(res.cause());
+            }
+        });
+    }
+
+    // What the ports share and depends on the config: the servers of the local, the rate limiter and the flusher.
+    private void createShared() {
+        mRateLimiter = mLimits != null ? new RateLimiter(vertx, mLimits) : null;
+        mFlusher = mConfig.coalesceWrites ? new Flusher(((ContextInternal)context).nettyEventLoop()) : null;
+        if (mIsServer)
+            return;
+        mUpstreams = new UpstreamPool(mConfig.servers, mConfig.balance, mConfig.connectTimeout * 1000L);
+        if (mConfig.mux) {
+            mMuxPool = new MuxPool(mUpstreams, mConfig.muxConnections);
+        } else if (mConfig.warmPool > 0) {
+            mWarmPool = new WarmPool(vertx, mNetClient, mUpstreams, mConfig.warmPool,
+                    mConfig.warmPoolMaxAge * 1000L, mConfig.warmPoolRate);
+        }
+    }
+
+    private int getPort(LocalConfig config) {
+        return mIsServer ? config.serverPort : config.localPort;
+    }
+
+    private RelayContext createContext(LocalConfig config) {
+        return new RelayContext(vertx, config, mNetClient, mTimeoutWheel, mDnsCache, mUpstreams, mMuxPool, mWarmPool, mRateLimiter, mFlusher);
+    }
+
+    private void listen(LocalConfig config, Handler<AsyncResult<Void>> handler) {
+        int port = getPort(config);
+        if (mDraining.remove(port)) {
+            // Still bound, take it back.
+            mContexts.put(port, createContext(config));
+            released(port);
+            handler.handle(Future.succeededFuture());
+            return;
+        }
+        if (mNetServers.containsKey(port)) {
+            handler.handle(Future.failedFuture("Port " + port + " already used"));
+            return;
+        }
+        mContexts.put(port, createContext(config));
+        NetServer server = vertx.createNetServer(createServerOptions(config)).connectHandler(sock -> {
+            RelayContext context = mContexts.get(port);
+            if (context == null) {
+                // Accepted while the port was being closed.
+                sock.close();
+                return;
+            }
+            mAccepted.merge(port, 1, Integer::sum);
+            sock.closeHandler(v -> mAccepted.computeIfPresent(port, (p, n) -> n > 1 ? n - 1 : null));
+            Handler<Buffer> dataHandler = mIsServer ? new ServerHandler(sock, context) : new ClientHandler(sock, context);
+            sock.handler(dataHandler);
+        });
+        mNetServers.put(port, server);
+        server.listen(port, "0.0.0.0", res -> {
+            if (res.succeeded()) {
+                log.debug("Instance listening at " + port);
+                handler.handle(Future.succeededFuture());
+            }else{
+                mNetServers.remove(port, server);
+                mContexts.remove(port);
+                handler.handle(Future.failedFuture(res.cause()));
+            }
+        });
+    }
+
+    private void close(int port, Handler<AsyncResult<Void>> handler) {
+        if (mContexts.remove(port) == null) {
+            handler.handle(Future.failedFuture("Port " + port + " not used"));
+            return;
+        }
+        mDraining.add(port);
+        if (mDrainTimerId == -1) {
+            mDrainTimerId = vertx.setPeriodic(DRAIN_CHECK, id -> checkDraining());
+        }
+        handler.handle(Future.succeededFuture());
+    }
+
+    private void checkDraining() {
+        Iterator<Integer> it = mDraining.iterator();
+        while (it.hasNext()) {
+            int port = it.next();
+            if (mAccepted.containsKey(port))
+                continue;
+            it.remove();
+            mNetServers.remove(port).close();
+            log.debug("Instance closed " + port);
+            released(port);
+        }
+        if (mDraining.isEmpty()) {
+            vertx.cancelTimer(mDrainTimerId);
+            mDrainTimerId = -1;
+        }
+    }
+
+    private void released(int port) {
+        List<Handler<Void>> handlers = mReleaseHandlers.remove(port);
+        if (handlers != null) {
+            for (Handler<Void> h : handlers) {
+                h.handle(null);
+            }
+        }
+    }
+
+    /**
+     * Listen on the port of config too, the result comes on the event loop of the instance.
+     */
+    public void addPort(LocalConfig config, Handler<AsyncResult<Void>> handler) {
+        context.runOnContext(v -> listen(config, handler));
+    }
+
+    /**
+     * Stop accepting on the port, its open connections go on. The port is
+     * released once they are done.
+     */
+    public void removePort(int port, Handler<AsyncResult<Void>> handler) {
+        context.runOnContext(v -> close(port, handler));
+    }
+
+    /**
+     * handler is called once a removed port is released or taken back, at
+     * once if it isn't draining.
+     */
+    public void whenReleased(int port, Handler<Void> handler) {
+        context.runOnContext(v -> {
+            if (!mDraining.contains(port)) {
+                handler.handle(null);
+                return;
+            }
+            mReleaseHandlers.computeIfAbsent(port, k -> new ArrayList<>()).add(handler);
+        });
+    }
+
+    /**
+     * Switch to config for new connections and listen on the ports of
+     * listeners only. Ports kept are not bound again, the socket options
+     * only change on new ports.
+     */
+    public void reload(LocalConfig config, List<LocalConfig> listeners, RateLimiter.Limits limits,
+                       Handler<AsyncResult<Void>> handler) {
+        context.runOnContext(v -> {
+            mConfig = config;
+            mLimits = limits;
+            if (mMuxPool != null) {
+                // Its connections close once their streams are done.
+                mOldMuxPools.add(mMuxPool);
+                mMuxPool = null;
+            }
+            if (mWarmPool != null) {
+                mWarmPool.close();
+                mWarmPool = null;
+            }
+            createShared();
+            Map<Integer, LocalConfig> ports = new HashMap<>();
+            for (LocalConfig listener : listeners) {
+                ports.put(getPort(listener), listener);
+            }
+            List<Future> done = new ArrayList<>();
+            for (Integer port : new ArrayList<>(mContexts.keySet())) {
+                if (!ports.containsKey(port)) {
+                    Promise<Void> promise = Promise.promise();
+                    close(port, promise);
+                    done.add(promise.future());
+                }
+            }
+            for (Map.Entry<Integer, LocalConfig> entry : ports.entrySet()) {
+                if (mContexts.containsKey(entry.getKey())) {
+                    mContexts.put(entry.getKey(), createContext(entry.getValue()));
+                    continue;
+                }
+                Promise<Void> promise = Promise.promise();
+                listen(entry.getValue(), promise);
+                done.add(promise.future());
+            }
+            CompositeFuture.all(done).onComplete(res -> handler.handle(res.mapEmpty()));
+        });
+    }
+
+    private static NetClientOptions createClientOptions(LocalConfig config) {
+        return new NetClientOptions()
+            .setConnectTimeout(config.connectTimeout * 1000)
+            .setTcpNoDelay(config.noDelay)
+            .setTcpFastOpen(config.fastOpen)
+            .setTcpQuickAck(config.tcpQuickAck)
+            .setTcpKeepAlive(config.keepAlive);
+    }
+
+    private static NetServerOptions createServerOptions(LocalConfig config) {
+        return new NetServerOptions()
+            .setAcceptBacklog(config.acceptBacklog)
+            .setTcpNoDelay(config.noDelay)
+            .setTcpFastOpen(config.fastOpen)
+            .setTcpQuickAck(config.tcpQuickAck)
+            .setTcpKeepAlive(config.keepAlive);
+    }
+
+    @Override
+    public void stop(Promise<Void> stopPromise) {
+        if (mNetClient != null) {
+            mNetClient.close();
+            mNetClient = null;
+        }
+        if (mTimeoutWheel != null) {
+            mTimeoutWheel.close();
+            mTimeoutWheel = null;
+        }
+        if (mDnsCache != null) {
+            mDnsCache.close();
+            mDnsCache = null;
+        }
+        if (mMuxPool != null) {
+            mMuxPool.close();
+            mMuxPool = null;
+        }
+        for (MuxPool pool : mOldMuxPools) {
+            pool.close();
+        }
+        mOldMuxPools.clear();
+        if (mWarmPool != null) {
+            mWarmPool.close();
+            mWarmPool = null;
+        }
+        List<Future> closed = new ArrayList<>();
+        for (NetServer server : mNetServers.values()) {
+            Promise<Void> promise = Promise.promise();
+            server.close(promise);
+            closed.add(promise.future());
+        }
+        mNetServers.clear();
+        mContexts.clear();
+        mDraining.clear();
+        mAccepted.clear();
+        mReleaseHandlers.clear();
+        if (mDrainTimerId != -1) {
+            vertx.cancelTimer(mDrainTimerId);
+            mDrainTimerId = -1;
+        }
+        CompositeFuture.all(closed).onComplete(res -> stopPromise.complete());
+    }
+}
@@ -1,15 +1,38 @@
 package shadowsocks;
 
+import io.vertx.core.AsyncResult;
+import io.vertx.core.CompositeFuture;
+import io.vertx.core.Future;
 import io.vertx.core.Handler;
+import io.vertx.core.Promise;
 import io.vertx.core.Vertx;
-import io.vertx.core.buffer.Buffer;
-import io.vertx.core.net.NetServer;
+import io.vertx.core.VertxOptions;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import shadowsocks.util.GlobalConfig;
+import shadowsocks.crypto.CipherBackends;
+import shadowsocks.crypto.CryptoFactory;
 import shadowsocks.util.LocalConfig;
-import shadowsocks.vertxio.ClientHandler;
-import shadowsocks.vertxio.ServerHandler;
+import shadowsocks.util.UpstreamConfig;
+import shadowsocks.util.UserConfig;
+import shadowsocks.vertxio.AccessLog;
+import shadowsocks.vertxio.DnsCache;
+import shadowsocks.vertxio.Metrics;
+import shadowsocks.vertxio.RateLimiter;
+import shadowsocks.vertxio.WarmPool;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ShadowsocksVertx {
 
@@ -17,38 +40,478 @@ public class ShadowsocksVertx {
 
     private Vertx mVertx;
     private boolean mIsServer;
-    private NetServer mNetServer;
+    // Replaced as a whole by a reload, never changed.
+    private volatile LocalConfig mConfig;
+    private List<String> mDeploymentIds;
+    private List<ShadowsocksVerticle> mVerticles = new CopyOnWriteArrayList<>();
+    private UdpRelayVerticle mUdpVerticle;
+    // Server only, port -> user.
+    private Map<Integer, UserConfig> mUsers = new ConcurrentHashMap<>();
+    // The ones of the config file, a reload leaves the others alone.
+    private Map<Integer, UserConfig> mFileUsers = new LinkedHashMap<>();
+    private Manager mManager;
+    private long mStatsTimerId = -1;
+    private long mWatchTimerId = -1;
+    private long mConfigModified;
+    private long mConfigSize;
+    private boolean mAccessLog;
+    // Shared by the instances, replaced by a reload, null without a rate limit.
+    private volatile RateLimiter.Limits mLimits;
+
+    // ms
+    private final static long STATS_INTERVAL = 300 * 1000;
 
     public ShadowsocksVertx(boolean isServer) {
-        mVertx = Vertx.vertx();
+        this(isServer, GlobalConfig.createLocalConfig());
+    }
+
+    /**
+     * Run with this config rather than the global one, a local and a server
+     * can run in the same process this way.
+     */
+    public ShadowsocksVertx(boolean isServer, LocalConfig config) {
+        int workers = config.workers;
+        VertxOptions options = new VertxOptions();
+        // Each listener instance is pinned to one event loop, make sure there are enough of them.
+        if (options.getEventLoopPoolSize() < workers) {
+            options.setEventLoopPoolSize(workers);
+        }
+        // epoll on linux when netty-transport-native-epoll is there, NIO otherwise.
+        options.setPreferNativeTransport(config.nativeTransport);
+        mVertx = Vertx.vertx(options);
+        if (options.getPreferNativeTransport()) {
+            if (mVertx.isNativeTransportEnabled()) {
+                log.info("Native transport enabled");
+            }else{
+                log.warn("Native transport not available, use NIO.");
+            }
+        }
         mIsServer = isServer;
+        mConfig = config;
+        mDeploymentIds = new CopyOnWriteArrayList<>();
     }
 
     public void start() {
+        start(null);
+    }
+
+    /**
+     * handler, if not null, gets the result of starting the TCP listeners.
+     */
+    public void start(Handler<AsyncResult<Void>> handler) {
+        LocalConfig config = mConfig;
+        String port = String.valueOf(mIsServer ? config.serverPort : config.localPort);
+        if (mIsServer) {
+            mFileUsers = getFileUsers(config);
+            mUsers.putAll(mFileUsers);
+            port = mUsers.keySet().toString();
+        }
+        String ports = port;
+        Metrics.setTargetPorts(config.metricsTargetPorts);
+        if (!config.accessLog.isEmpty()) {
+            AccessLog.open(config.accessLog, config.accessLogSampling);
+            mAccessLog = true;
+        }
+        // Shared by the instances, the buckets of the process and of the ports.
+        RateLimiter.Limits limits = RateLimiter.Limits.isEnabled(config) ? new RateLimiter.Limits(config) : null;
+        mLimits = limits;
+        if (config.isTcpEnabled()) {
+            AtomicInteger started = new AtomicInteger();
+            // Verticle instances on the same port share the listener, connections
+            // are spread over their event loops.
+            for (int i = 0; i < config.workers; i++) {
+                ShadowsocksVerticle verticle = new ShadowsocksVerticle(mIsServer, config, limits);
+                mVertx.deployVerticle(verticle, res -> {
+                    if (res.succeeded()) {
+                        mDeploymentIds.add(res.result());
+                        mVerticles.add(verticle);
+                        if (started.incrementAndGet() == config.workers) {
+                            log.info("Listening at " + ports + " with " + config.workers + " instances");
+                            if (handler != null) {
+                                handler.handle(Future.succeededFuture());
+                            }
+                        }
+                    }else{
+                        log.error("Start failed! " + res.cause().getMessage());
+                        // Only the first failure is reported.
+                        if (handler != null && started.getAndSet(-config.workers) >= 0) {
+                            handler.handle(Future.failedFuture(res.cause()));
+                        }
+                    }
+                });
+            }
+        } else if (handler != null) {
+            handler.handle(Future.succeededFuture());
+        }
+        if (mIsServer || (config.warmPool > 0 && !config.mux)) {
+            mStatsTimerId = mVertx.setPeriodic(STATS_INTERVAL, id -> logStats());
+        }
+        if (config.isUdpEnabled()) {
+            UdpRelayVerticle verticle = new UdpRelayVerticle(mIsServer, config);
+            mVertx.deployVerticle(verticle, res -> {
+                if (res.succeeded()) {
+                    mDeploymentIds.add(res.result());
+                    mUdpVerticle = verticle;
+                }else{
+                    log.error("UDP relay start failed! " + res.cause().getMessage());
+                }
+            });
+        }
+        if (config.metricsPort > 0) {
+            mVertx.deployVerticle(new MetricsVerticle(config.metricsPort), res -> {
+                if (res.succeeded()) {
+                    mDeploymentIds.add(res.result());
+                }else{
+                    log.error("Metrics start failed! " + res.cause().getMessage());
+                }
+            });
+        }
+        if (mIsServer && !config.managerAddress.isEmpty()) {
+            mManager = new Manager(mVertx, this, config.managerAddress);
+        }
+        String file = GlobalConfig.get().getConfigFile();
+        if (config.reloadInterval > 0 && file != null) {
+            watchConfig(file, config.reloadInterval);
+        }
+    }
+
+    private static Map<Integer, UserConfig> getFileUsers(LocalConfig config) {
+        Map<Integer, UserConfig> users = new LinkedHashMap<>();
+        if (config.users.isEmpty()) {
+            users.put(config.serverPort, new UserConfig(config.serverPort, config.password, config.method));
+        }
+        for (UserConfig user : config.users) {
+            users.put(user.port, user);
+        }
+        return users;
+    }
+
+    // Reload when the file changes, it is looked at every interval seconds.
+    private void watchConfig(String file, int interval) {
+        mVertx.fileSystem().props(file, res -> {
+            if (res.succeeded()) {
+                mConfigModified = res.result().lastModifiedTime();
+                mConfigSize = res.result().size();
+            }
+            mWatchTimerId = mVertx.setPeriodic(interval * 1000L, id -> mVertx.fileSystem().props(file, ar -> {
+                if (ar.failed())
+                    return;
+                if (ar.result().lastModifiedTime() == mConfigModified && ar.result().size() == mConfigSize)
+                    return;
+                mConfigModified = ar.result().lastModifiedTime();
+                mConfigSize = ar.result().size();
+                log.info("Config file changed, reloading");
+                reload(v -> {});
+            }));
+        });
+    }
+
+    /**
+     * Parse the config file again and switch to it without a restart. New
+     * connections get the new config, open ones keep theirs until they close.
+     * Ports are only bound or closed when they change. The options used to
+     * set up the instances need a restart, a warning tells which.
+     *
+     * The file is read and checked on a worker thread, a crypto_backend of
+     * "auto" may benchmark a new method; the switch runs on the context of
+     * the caller.
+     */
+    public void reload(Handler<AsyncResult<Void>> handler) {
+        mVertx.<LocalConfig>executeBlocking(promise -> {
+            try{
+                promise.complete(loadConfig(mIsServer));
+            }catch(Exception e){
+                promise.fail(e);
+            }
+        }, res -> {
+            if (res.failed()) {
+                log.error("Config not reloaded. " + res.cause().getMessage());
+                handler.handle(Future.failedFuture(res.cause()));
+                return;
+            }
+            apply(res.result(), handler);
+        });
+    }
+
+    // Blocking, the config of the file once its ciphers are known to work.
+    // One reload at a time, the global config is shared.
+    private static synchronized LocalConfig loadConfig(boolean isServer) throws Exception {
+        GlobalConfig.reloadConfigFromFile();
+        if (GlobalConfig.get().isServerMode() != isServer) {
+            throw new IllegalArgumentException("server_mode can't change");
+        }
         LocalConfig config = GlobalConfig.createLocalConfig();
-        int port = mIsServer ? config.serverPort : config.localPort;
-        mNetServer = mVertx.createNetServer().connectHandler(sock -> {
-            Handler<Buffer> dataHandler = mIsServer ? new ServerHandler(mVertx, sock, config) : new ClientHandler(mVertx, sock, config);
-            sock.handler(dataHandler);
-        }).listen(port, "0.0.0.0", res -> {
+        checkCiphers(config);
+        return config;
+    }
+
+    /**
+     * Blocking, selects the backend of every method of the config, servers
+     * and users included, and makes sure a crypt of each can be created. A
+     * method selected before keeps its backend, "auto" doesn't benchmark it
+     * again.
+     */
+    public static void checkCiphers(LocalConfig config) throws Exception {
+        Set<String> methods = new LinkedHashSet<>();
+        methods.add(config.method.toLowerCase());
+        for (UpstreamConfig server : config.servers) {
+            methods.add(server.method.toLowerCase());
+        }
+        for (UserConfig user : config.users) {
+            methods.add(user.method.toLowerCase());
+        }
+        for (String method : methods) {
+            CipherBackends.select(GlobalConfig.get().getCryptoBackend(), method);
+        }
+        CryptoFactory.create(config.method, config.password);
+        for (UpstreamConfig server : config.servers) {
+            CryptoFactory.create(server.method, server.password);
+        }
+        for (UserConfig user : config.users) {
+            CryptoFactory.create(user.method, user.password);
+        }
+    }
+
+    private synchronized void apply(LocalConfig config, Handler<AsyncResult<Void>> handler) {
+        List<String> restart = getRestartOptions(mConfig, config);
+        if (!restart.isEmpty()) {
+            log.warn("Changes of " + restart + " need a restart");
+        }
+        List<Integer> removed = new ArrayList<>(mIsServer ? mUsers.keySet() : Collections.singleton(mConfig.localPort));
+        List<LocalConfig> listeners = new ArrayList<>();
+        if (mIsServer) {
+            Map<Integer, UserConfig> users = getFileUsers(config);
+            for (Integer port : mFileUsers.keySet()) {
+                if (!users.containsKey(port)) {
+                    mUsers.remove(port);
+                }
+            }
+            mUsers.putAll(users);
+            mFileUsers = users;
+            for (UserConfig user : mUsers.values()) {
+                listeners.add(config.forUser(user));
+            }
+        }else{
+            listeners.add(config);
+        }
+        for (LocalConfig listener : listeners) {
+            removed.remove((Integer)(mIsServer ? listener.serverPort : listener.localPort));
+        }
+        mConfig = config;
+        Metrics.setTargetPorts(config.metricsTargetPorts);
+        RateLimiter.Limits limits = RateLimiter.Limits.isEnabled(config) ? new RateLimiter.Limits(config) : null;
+        mLimits = limits;
+        List<Future> done = new ArrayList<>();
+        for (ShadowsocksVerticle verticle : mVerticles) {
+            Promise<Void> promise = Promise.promise();
+            verticle.reload(config, listeners, limits, promise);
+            done.add(promise.future());
+        }
+        if (mUdpVerticle != null) {
+            Promise<Void> promise = Promise.promise();
+            mUdpVerticle.reload(listeners, promise);
+            done.add(promise.future());
+        }
+        String ports = mIsServer ? mUsers.keySet().toString() : String.valueOf(config.localPort);
+        CompositeFuture.all(done).onComplete(res -> {
             if (res.succeeded()) {
-                log.info("Listening at " + port);
+                log.info("Config reloaded, listening at " + ports);
             }else{
-                log.error("Start failed! " + res.cause().getMessage());
+                log.error("Config reloaded, but not all ports could be bound. " + res.cause().getMessage());
+            }
+            for (int port : removed) {
+                prune(port);
             }
+            handler.handle(res.mapEmpty());
         });
     }
 
-    public void stop() {
-        if (mNetServer != null) {
-            mNetServer.close(ar -> {
-                if (ar.succeeded()) {
-                    log.info("Stoped.");
-                }else{
-                    log.error("Stop failed.");
-                }
+    // What is only read when the instances start.
+    private static List<String> getRestartOptions(LocalConfig a, LocalConfig b) {
+        List<String> changed = new ArrayList<>();
+        check(changed, "workers", a.workers, b.workers);
+        check(changed, "mode", a.mode, b.mode);
+        check(changed, "connect_timeout", a.connectTimeout, b.connectTimeout);
+        // The ciphers cache it when their class is loaded.
+        check(changed, "iv_len", a.ivLen, b.ivLen);
+        check(changed, "native_transport", a.nativeTransport, b.nativeTransport);
+        check(changed, "no_delay", a.noDelay, b.noDelay);
+        check(changed, "fast_open", a.fastOpen, b.fastOpen);
+        check(changed, "tcp_quickack", a.tcpQuickAck, b.tcpQuickAck);
+        check(changed, "keep_alive", a.keepAlive, b.keepAlive);
+        check(changed, "accept_backlog", a.acceptBacklog, b.acceptBacklog);
+        check(changed, "udp_timeout", a.udpTimeout, b.udpTimeout);
+        check(changed, "udp_max_sessions", a.udpMaxSessions, b.udpMaxSessions);
+        check(changed, "dns_server", a.dnsServer, b.dnsServer);
+        check(changed, "dns_cache_size", a.dnsCacheSize, b.dnsCacheSize);
+        check(changed, "metrics_port", a.metricsPort, b.metricsPort);
+        check(changed, "manager_address", a.managerAddress, b.managerAddress);
+        check(changed, "reload_interval", a.reloadInterval, b.reloadInterval);
+        check(changed, "access_log", a.accessLog, b.accessLog);
+        check(changed, "access_log_sampling", a.accessLogSampling, b.accessLogSampling);
+        return changed;
+    }
+
+    private static void check(List<String> changed, String name, Object a, Object b) {
+        if (!Objects.equals(a, b)) {
+            changed.add(name);
+        }
+    }
+
+    public String getMethod() {
+        return mConfig.method;
+    }
+
+    public Collection<UserConfig> getUsers() {
+        return mUsers.values();
+    }
+
+    /**
+     * Server only, start listening on the port of the user. The connections
+     * of the new port share the instances of the other ports.
+     */
+    public void addUser(UserConfig user, Handler<AsyncResult<Void>> handler) {
+        // "auto" may benchmark a new method.
+        mVertx.<Void>executeBlocking(promise -> {
+            try{
+                CipherBackends.select(GlobalConfig.get().getCryptoBackend(), user.method);
+                CryptoFactory.create(user.method, user.password);
+                promise.complete();
+            }catch(Exception e){
+                promise.fail(e);
+            }
+        }, res -> {
+            if (res.failed()) {
+                handler.handle(Future.failedFuture(res.cause()));
+                return;
+            }
+            startUser(user, handler);
+        });
+    }
+
+    private void startUser(UserConfig user, Handler<AsyncResult<Void>> handler) {
+        if (mUsers.putIfAbsent(user.port, user) != null) {
+            handler.handle(Future.failedFuture("Port " + user.port + " already used"));
+            return;
+        }
+        LocalConfig config = mConfig.forUser(user);
+        List<Future> added = new ArrayList<>();
+        for (ShadowsocksVerticle verticle : mVerticles) {
+            Promise<Void> promise = Promise.promise();
+            verticle.addPort(config, promise);
+            added.add(promise.future());
+        }
+        if (mUdpVerticle != null) {
+            Promise<Void> promise = Promise.promise();
+            mUdpVerticle.addPort(config, promise);
+            added.add(promise.future());
+        }
+        CompositeFuture.all(added).onComplete(res -> {
+            if (res.succeeded()) {
+                log.info("User added, port " + user.port);
+                handler.handle(Future.succeededFuture());
+                return;
+            }
+            log.error("Failed to add port " + user.port + ". " + res.cause().getMessage());
+            // Undo what did work.
+            removePorts(user.port, ar -> {
+                mUsers.remove(user.port, user);
+                handler.handle(Future.failedFuture(res.cause()));
             });
-            mNetServer = null;
+        });
+    }
+
+    /**
+     * Server only, stop accepting on the port of the user. Open connections go
+     * on, the port is released once they are done.
+     */
+    public void removeUser(int port, Handler<AsyncResult<Void>> handler) {
+        if (mUsers.remove(port) == null) {
+            handler.handle(Future.failedFuture("Port " + port + " not used"));
+            return;
+        }
+        removePorts(port, res -> {
+            log.info("User removed, port " + port);
+            prune(port);
+            handler.handle(Future.succeededFuture());
+        });
+    }
+
+    // Once every instance released the port, drop its counters and buckets
+    // unless it is used again meanwhile.
+    private void prune(int port) {
+        List<Future> released = new ArrayList<>();
+        for (ShadowsocksVerticle verticle : mVerticles) {
+            Promise<Void> promise = Promise.promise();
+            verticle.whenReleased(port, v -> promise.complete());
+            released.add(promise.future());
+        }
+        CompositeFuture.all(released).onComplete(res -> {
+            if (mIsServer ? mUsers.containsKey(port) : mConfig.localPort == port)
+                return;
+            Metrics.remove(port);
+            RateLimiter.Limits limits = mLimits;
+            if (limits != null) {
+                limits.removePort(port);
+            }
+            log.debug("Counters of port " + port + " dropped");
+        });
+    }
+
+    // Always succeeds, instances which don't have the port are fine.
+    private void removePorts(int port, Handler<AsyncResult<Void>> handler) {
+        List<Future> removed = new ArrayList<>();
+        for (ShadowsocksVerticle verticle : mVerticles) {
+            Promise<Void> promise = Promise.promise();
+            verticle.removePort(port, ar -> promise.complete());
+            removed.add(promise.future());
+        }
+        if (mUdpVerticle != null) {
+            Promise<Void> promise = Promise.promise();
+            mUdpVerticle.removePort(port, ar -> promise.complete());
+            removed.add(promise.future());
         }
+        CompositeFuture.all(removed).onComplete(res -> handler.handle(Future.succeededFuture()));
+    }
+
+    private void logStats() {
+        log.info(mIsServer ? DnsCache.stats() : WarmPool.stats());
+    }
+
+    public void stop() {
+        if (mManager != null) {
+            mManager.close();
+            mManager = null;
+        }
+        if (mStatsTimerId != -1) {
+            mVertx.cancelTimer(mStatsTimerId);
+            mStatsTimerId = -1;
+            logStats();
+        }
+        if (mWatchTimerId != -1) {
+            mVertx.cancelTimer(mWatchTimerId);
+            mWatchTimerId = -1;
+        }
+        List<Future> undeployed = new ArrayList<>();
+        for (String id : mDeploymentIds) {
+            Promise<Void> promise = Promise.promise();
+            mVertx.undeploy(id, promise);
+            undeployed.add(promise.future());
+        }
+        mDeploymentIds.clear();
+        boolean accessLog = mAccessLog;
+        mAccessLog = false;
+        // The connections closed by the undeploys still log.
+        CompositeFuture.join(undeployed).onComplete(ar -> {
+            if (accessLog) {
+                AccessLog.close();
+            }
+            if (ar.succeeded()) {
+                log.info("Stoped.");
+            }else{
+                log.error("Stop failed.");
+            }
+            mVertx.close();
+        });
     }
 }
@@ -0,0 +1,148 @@
+package shadowsocks;
+
+import io.vertx.core.AbstractVerticle;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.CompositeFuture;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Promise;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import shadowsocks.util.LocalConfig;
+import shadowsocks.util.UserConfig;
+import shadowsocks.vertxio.DnsCache;
+import shadowsocks.vertxio.LocalUdpRelay;
+import shadowsocks.vertxio.ServerUdpRelay;
+import shadowsocks.vertxio.UdpRelay;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The UDP relay, it listens on the same port number as the TCP listener.
+ * A UDP port can't be shared between event loops so there is one instance,
+ * with one relay per user port on a multi-user server.
+ */
+public class UdpRelayVerticle extends AbstractVerticle {
+
+    public static Logger log = LogManager.getLogger(UdpRelayVerticle.class.getName());
+
+    private boolean mIsServer;
+    private LocalConfig mConfig;
+    private DnsCache mDnsCache;
+    // port -> relay, only touched on the event loop of the instance.
+    private final Map<Integer, UdpRelay> mRelays = new HashMap<>();
+
+    public UdpRelayVerticle(boolean isServer, LocalConfig config) {
+        mIsServer = isServer;
+        mConfig = config;
+    }
+
+    @Override
+    public void start(Promise<Void> startPromise) {
+        List<LocalConfig> ports = new ArrayList<>();
+        if (mIsServer) {
+            mDnsCache = new DnsCache(vertx, mConfig.dnsServer, mConfig.dnsCacheSize);
+            for (UserConfig user : mConfig.users) {
+                ports.add(mConfig.forUser(user));
+            }
+        }
+        if (ports.isEmpty()) {
+            ports.add(mConfig);
+        }
+        List<Future> started = new ArrayList<>();
+        for (LocalConfig config : ports) {
+            Promise<Void> promise = Promise.promise();
+            listen(config, promise);
+            started.add(promise.future());
+        }
+        CompositeFuture.all(started).onComplete(res -> {
+            if (res.succeeded()) {
+                startPromise.complete();
+            }else{
+                startPromise.fail(res.cause());
+            }
+        });
+    }
+
+    private void listen(LocalConfig config, Handler<AsyncResult<Void>> handler) {
+        int port = mIsServer ? config.serverPort : config.localPort;
+        if (mRelays.containsKey(port)) {
+            handler.handle(Future.failedFuture("Port " + port + " already used"));
+            return;
+        }
+        UdpRelay relay = mIsServer ? new ServerUdpRelay(vertx, config, mDnsCache) : new LocalUdpRelay(vertx, config);
+        mRelays.put(port, relay);
+        relay.listen(port, res -> {
+            if (res.succeeded()) {
+                log.info("UDP relay listening at " + port);
+                handler.handle(Future.succeededFuture());
+            }else{
+                mRelays.remove(port, relay);
+                relay.close();
+                handler.handle(Future.failedFuture(res.cause()));
+            }
+        });
+    }
+
+    public void addPort(LocalConfig config, Handler<AsyncResult<Void>> handler) {
+        context.runOnContext(v -> listen(config, handler));
+    }
+
+    public void removePort(int port, Handler<AsyncResult<Void>> handler) {
+        context.runOnContext(v -> {
+            UdpRelay relay = mRelays.remove(port);
+            if (relay == null) {
+                handler.handle(Future.failedFuture("Port " + port + " not used"));
+                return;
+            }
+            relay.close();
+            handler.handle(Future.succeededFuture());
+        });
+    }
+
+    /**
+     * Listen on the ports of listeners only, the relays of the ports kept
+     * switch to their new config.
+     */
+    public void reload(List<LocalConfig> listeners, Handler<AsyncResult<Void>> handler) {
+        context.runOnContext(v -> {
+            Map<Integer, LocalConfig> ports = new HashMap<>();
+            for (LocalConfig config : listeners) {
+                ports.put(mIsServer ? config.serverPort : config.localPort, config);
+            }
+            for (Integer port : new ArrayList<>(mRelays.keySet())) {
+                if (!ports.containsKey(port)) {
+                    mRelays.remove(port).close();
+                    log.info("UDP relay closed at " + port);
+                }
+            }
+            List<Future> done = new ArrayList<>();
+            for (Map.Entry<Integer, LocalConfig> entry : ports.entrySet()) {
+                UdpRelay relay = mRelays.get(entry.getKey());
+                if (relay != null) {
+                    relay.update(entry.getValue());
+                    continue;
+                }
+                Promise<Void> promise = Promise.promise();
+                listen(entry.getValue(), promise);
+                done.add(promise.future());
+            }
+            CompositeFuture.all(done).onComplete(res -> handler.handle(res.mapEmpty()));
+        });
+    }
+
+    @Override
+    public void stop() {
+        for (UdpRelay relay : mRelays.values()) {
+            relay.close();
+        }
+        mRelays.clear();
+        if (mDnsCache != null) {
+            mDnsCache.close();
+            mDnsCache = null;
+        }
+    }
+}
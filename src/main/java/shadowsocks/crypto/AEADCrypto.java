@@ -0,0 +1,335 @@
+package shadowsocks.crypto;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.bouncycastle.crypto.digests.SHA1Digest;
+import org.bouncycastle.crypto.generators.HKDFBytesGenerator;
+import org.bouncycastle.crypto.params.HKDFParameters;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.spec.AlgorithmParameterSpec;
+
+/**
+ * Shadowsocks AEAD methods (aes-*-gcm, chacha20-ietf-poly1305) on the JDK
+ * ciphers, AES-GCM uses the JVM intrinsics.
+ *
+ * A stream starts with a random salt, the session subkey is
+ * HKDF-SHA1(key, salt, "ss-subkey"). Data is sent in chunks:
+ * [encrypted payload length][length tag][encrypted payload][payload tag],
+ * the nonce is a little endian counter incremented after each seal/open.
+ *
+ * encrypt() seals all the readable bytes at once into one buffer,
+ * decrypt() opens every complete chunk it has and keeps the partial one.
+ *
+ * A UDP packet is [salt][encrypted payload][tag] sealed with a zero nonce.
+ */
+public class AEADCrypto implements SSCrypto {
+
+    private final static int TAG_LENGTH = 16;
+    private final static int NONCE_LENGTH = 12;
+    private final static int MAX_PAYLOAD = 0x3FFF;
+    private final static byte[] SUBKEY_INFO = "ss-subkey".getBytes(StandardCharsets.US_ASCII);
+
+    private final String mName;
+    private final String mTransformation;
+    private final String mKeyAlgorithm;
+    private final int mKeyLength;
+    private final byte[] mKey;
+
+    private final Cipher mEncryptCipher;
+    private final Cipher mDecryptCipher;
+    private SecretKeySpec mEncryptKey;
+    private SecretKeySpec mDecryptKey;
+    private final byte[] mEncryptNonce = new byte[NONCE_LENGTH];
+    private final byte[] mDecryptNonce = new byte[NONCE_LENGTH];
+
+    private byte[] mEncryptSalt;
+    private byte[] mDecryptSalt;
+    private int mDecryptSaltRead;
+
+    // Incomplete chunk of the last decrypt, null if none.
+    private ByteBuf mPending;
+    // Length of the chunk payload being waited for, -1 while waiting for the length.
+    private int mPayloadLength = -1;
+
+    private final byte[] mLengthBuffer = new byte[2 + TAG_LENGTH];
+    // Used for buffers which are not backed by a single array.
+    private byte[] mScratch;
+
+    private byte [] mLock = new byte[0];
+
+    public static boolean isAEAD(String name) {
+        return keyLength(name.toLowerCase()) != 0;
+    }
+
+    private static int keyLength(String name) {
+        switch (name) {
+            case "aes-128-gcm":
+                return 16;
+            case "aes-192-gcm":
+                return 24;
+            case "aes-256-gcm":
+            case "chacha20-ietf-poly1305":
+                return 32;
+            default:
+                return 0;
+        }
+    }
+
+    public AEADCrypto(String name, String password) throws CryptoException {
+        mName = name.toLowerCase();
+        mKeyLength = keyLength(mName);
+        if (mKeyLength == 0) {
+            throw new CryptoException("Unsupport method: " + mName);
+        }
+        if (mName.startsWith("aes")) {
+            mTransformation = "AES/GCM/NoPadding";
+            mKeyAlgorithm = "AES";
+        } else {
+            mTransformation = "ChaCha20-Poly1305";
+            mKeyAlgorithm = "ChaCha20";
+        }
+        try {
+            mEncryptCipher = Cipher.getInstance(mTransformation);
+            mDecryptCipher = Cipher.getInstance(mTransformation);
+        } catch (GeneralSecurityException e) {
+            throw new CryptoException("Unsupport method: " + mName + " (" + e.getMessage() + ")");
+        }
+        // The salt has the key length.
+        mKey = CryptoFactory.getKey(mName, password, mKeyLength, mKeyLength).getKey();
+    }
+
+    @Override
+    public int getIVLength() {
+        return mKeyLength;
+    }
+
+    @Override
+    public int getKeyLength() {
+        return mKeyLength;
+    }
+
+    @Override
+    public byte [] getIV(boolean encrypt) {
+        if (encrypt){
+            if (mEncryptSalt == null){
+                mEncryptSalt = Utils.randomBytes(mKeyLength);
+            }
+            return mEncryptSalt;
+        }else
+            return mDecryptSalt;
+    }
+
+    @Override
+    public byte [] getKey() {
+        return mKey;
+    }
+
+    private SecretKeySpec subkey(byte[] salt) {
+        HKDFBytesGenerator hkdf = new HKDFBytesGenerator(new SHA1Digest());
+        hkdf.init(new HKDFParameters(mKey, salt, SUBKEY_INFO));
+        byte[] subkey = new byte[mKeyLength];
+        hkdf.generateBytes(subkey, 0, mKeyLength);
+        return new SecretKeySpec(subkey, mKeyAlgorithm);
+    }
+
+    private AlgorithmParameterSpec spec(byte[] nonce) {
+        if (mKeyAlgorithm.equals("AES"))
+            return new GCMParameterSpec(TAG_LENGTH * 8, nonce);
+        return new IvParameterSpec(nonce);
+    }
+
+    private static void increment(byte[] nonce) {
+        for (int i = 0; i < nonce.length; i++) {
+            if (++nonce[i] != 0)
+                break;
+        }
+    }
+
+    // Seal/open one piece, returns the output length.
+    private int doFinal(Cipher cipher, int mode, SecretKeySpec key, byte[] nonce,
+                        byte[] in, int inOffset, int length, byte[] out, int outOffset) throws CryptoException {
+        try {
+            cipher.init(mode, key, spec(nonce));
+            int n = cipher.doFinal(in, inOffset, length, out, outOffset);
+            increment(nonce);
+            return n;
+        } catch (GeneralSecurityException e) {
+            throw new CryptoException(e);
+        }
+    }
+
+    @Override
+    public ByteBuf encrypt(ByteBuf data) throws CryptoException {
+        synchronized(mLock) {
+            int length = data.readableBytes();
+            int chunks = (length + MAX_PAYLOAD - 1) / MAX_PAYLOAD;
+            boolean first = mEncryptKey == null;
+            int size = length + chunks * (2 + TAG_LENGTH * 2) + (first ? mKeyLength : 0);
+            ByteBuf out = Unpooled.buffer(size, size);
+            if (first) {
+                byte[] salt = getIV(true);
+                mEncryptKey = subkey(salt);
+                out.writeBytes(salt);
+            }
+            byte[] in;
+            int inOffset;
+            if (data.hasArray()) {
+                in = data.array();
+                inOffset = data.arrayOffset() + data.readerIndex();
+            } else {
+                in = scratch(length);
+                inOffset = 0;
+                data.getBytes(data.readerIndex(), in, 0, length);
+            }
+            byte[] outArray = out.array();
+            int outOffset = out.arrayOffset() + out.writerIndex();
+            while (length > 0) {
+                int payload = Math.min(length, MAX_PAYLOAD);
+                mLengthBuffer[0] = (byte)(payload >> 8);
+                mLengthBuffer[1] = (byte)payload;
+                outOffset += doFinal(mEncryptCipher, Cipher.ENCRYPT_MODE, mEncryptKey, mEncryptNonce,
+                        mLengthBuffer, 0, 2, outArray, outOffset);
+                outOffset += doFinal(mEncryptCipher, Cipher.ENCRYPT_MODE, mEncryptKey, mEncryptNonce,
+                        in, inOffset, payload, outArray, outOffset);
+                inOffset += payload;
+                length -= payload;
+            }
+            data.skipBytes(data.readableBytes());
+            out.writerIndex(size);
+            return out;
+        }
+    }
+
+    private byte[] scratch(int length) {
+        if (mScratch == null || mScratch.length < length) {
+            mScratch = new byte[length];
+        }
+        return mScratch;
+    }
+
+    @Override
+    public ByteBuf decrypt(ByteBuf data) throws CryptoException {
+        synchronized(mLock) {
+            if (mDecryptKey == null) {
+                if (mDecryptSalt == null) {
+                    mDecryptSalt = new byte[mKeyLength];
+                }
+                int len = Math.min(mKeyLength - mDecryptSaltRead, data.readableBytes());
+                data.readBytes(mDecryptSalt, mDecryptSaltRead, len);
+                mDecryptSaltRead += len;
+                if (mDecryptSaltRead < mKeyLength) {
+                    return Unpooled.EMPTY_BUFFER;
+                }
+                mDecryptKey = subkey(mDecryptSalt);
+            }
+            ByteBuf in = data;
+            if (mPending != null) {
+                mPending.writeBytes(data);
+                in = mPending;
+            }
+            // Plain text is never longer than what we have.
+            ByteBuf out = Unpooled.buffer(in.readableBytes());
+            while (true) {
+                if (mPayloadLength < 0) {
+                    if (in.readableBytes() < 2 + TAG_LENGTH)
+                        break;
+                    in.readBytes(mLengthBuffer);
+                    doFinal(mDecryptCipher, Cipher.DECRYPT_MODE, mDecryptKey, mDecryptNonce,
+                            mLengthBuffer, 0, mLengthBuffer.length, mLengthBuffer, 0);
+                    mPayloadLength = ((mLengthBuffer[0] & 0xFF) << 8 | (mLengthBuffer[1] & 0xFF)) & MAX_PAYLOAD;
+                }
+                if (in.readableBytes() < mPayloadLength + TAG_LENGTH)
+                    break;
+                int length = mPayloadLength + TAG_LENGTH;
+                byte[] inArray;
+                int inOffset;
+                if (in.hasArray()) {
+                    inArray = in.array();
+                    inOffset = in.arrayOffset() + in.readerIndex();
+                } else {
+                    inArray = scratch(length);
+                    inOffset = 0;
+                    in.getBytes(in.readerIndex(), inArray, 0, length);
+                }
+                int n = doFinal(mDecryptCipher, Cipher.DECRYPT_MODE, mDecryptKey, mDecryptNonce,
+                        inArray, inOffset, length, out.array(), out.arrayOffset() + out.writerIndex());
+                out.writerIndex(out.writerIndex() + n);
+                in.skipBytes(length);
+                mPayloadLength = -1;
+            }
+            // Keep the incomplete chunk for the next call.
+            if (in.isReadable()) {
+                if (mPending == null) {
+                    mPending = Unpooled.buffer(in.readableBytes());
+                    mPending.writeBytes(in);
+                } else {
+                    mPending.discardReadBytes();
+                }
+            } else {
+                mPending = null;
+            }
+            return out;
+        }
+    }
+
+    @Override
+    public ByteBuf encryptPacket(ByteBuf data) throws CryptoException {
+        byte[] salt = Utils.randomBytes(mKeyLength);
+        int length = data.readableBytes();
+        int size = mKeyLength + length + TAG_LENGTH;
+        ByteBuf out = Unpooled.buffer(size, size);
+        out.writeBytes(salt);
+        synchronized(mLock) {
+            byte[] in = scratch(length);
+            data.readBytes(in, 0, length);
+            doFinal(mEncryptCipher, Cipher.ENCRYPT_MODE, subkey(salt), new byte[NONCE_LENGTH],
+                    in, 0, length, out.array(), out.arrayOffset() + mKeyLength);
+        }
+        out.writerIndex(size);
+        return out;
+    }
+
+    @Override
+    public ByteBuf decryptPacket(ByteBuf data) throws CryptoException {
+        int length = data.readableBytes() - mKeyLength;
+        if (length < TAG_LENGTH) {
+            throw new CryptoException("Packet too short");
+        }
+        byte[] salt = new byte[mKeyLength];
+        data.readBytes(salt);
+        ByteBuf out = Unpooled.buffer(length - TAG_LENGTH);
+        synchronized(mLock) {
+            byte[] in = scratch(length);
+            data.readBytes(in, 0, length);
+            int n = doFinal(mDecryptCipher, Cipher.DECRYPT_MODE, subkey(salt), new byte[NONCE_LENGTH],
+                    in, 0, length, out.array(), out.arrayOffset());
+            out.writerIndex(n);
+        }
+        return out;
+    }
+
+    private static byte [] toBytes(ByteBuf buf)
+    {
+        byte [] data = new byte[buf.readableBytes()];
+        buf.readBytes(data);
+        return data;
+    }
+
+    @Override
+    public byte [] encrypt(byte[] in, int length) throws CryptoException
+    {
+        return toBytes(encrypt(Unpooled.copiedBuffer(in, 0, length)));
+    }
+
+    @Override
+    public byte [] decrypt(byte[] in, int length) throws CryptoException
+    {
+        return toBytes(decrypt(Unpooled.copiedBuffer(in, 0, length)));
+    }
+}
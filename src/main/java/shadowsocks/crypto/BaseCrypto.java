@@ -1,9 +1,9 @@
 package shadowsocks.crypto;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import org.bouncycastle.crypto.StreamCipher;
-
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
+import org.bouncycastle.crypto.params.KeyParameter;
 
 /**
  * Crypt base class implementation
@@ -12,10 +12,13 @@ public abstract class BaseCrypto implements SSCrypto
 {
 
     protected abstract StreamCipher createCipher(byte[] iv, boolean encrypt) throws CryptoException;
-    protected abstract void process(byte[] in, ByteArrayOutputStream out, boolean encrypt);
+    // Process length bytes of data starting from offset, the result overwrites the input.
+    protected abstract void process(byte[] data, int offset, int length, boolean encrypt);
 
     protected final String mName;
     protected final byte[] mKey;
+    protected final KeyParameter mKeyParameter;
+    protected final CipherBackend mBackend;
     protected final int mIVLength;
     protected final int mKeyLength;
 
@@ -24,13 +27,21 @@ public abstract class BaseCrypto implements SSCrypto
 
     protected byte[] mEncryptIV;
     protected byte[] mDecryptIV;
+    // The IV may arrive in pieces, count how much of it we have got.
+    private int mDecryptIVRead;
 
-    // One SSCrypto could only do one decrypt/encrypt at the same time.
-    protected ByteArrayOutputStream mData;
+    // Used for buffers which are not backed by a single array.
+    private byte[] mScratch;
 
     private byte [] mLock = new byte[0];
 
     public BaseCrypto(String name, String password) throws CryptoException
+    {
+        this(name, password, CipherBackends.get(name.toLowerCase()));
+    }
+
+    // Runs on backend rather than the one selected for the method.
+    BaseCrypto(String name, String password, CipherBackend backend) throws CryptoException
     {
         mName = name.toLowerCase();
         mIVLength = getIVLength();
@@ -38,8 +49,10 @@ public abstract class BaseCrypto implements SSCrypto
         if (mKeyLength == 0) {
             throw new CryptoException("Unsupport method: " + mName);
         }
-        mKey = Utils.getKey(password, mKeyLength, mIVLength);
-        mData = new ByteArrayOutputStream();
+        CipherKey key = CryptoFactory.getKey(mName, password, mKeyLength, mIVLength);
+        mKey = key.getKey();
+        mKeyParameter = key.getKeyParameter();
+        mBackend = backend;
     }
 
     public byte [] getKey(){
@@ -56,64 +69,116 @@ public abstract class BaseCrypto implements SSCrypto
             return mDecryptIV;
     }
 
-    private byte [] encryptLocked(byte[] in) throws CryptoException
+    private void processBuffer(ByteBuf buf, boolean encrypt)
+    {
+        int length = buf.readableBytes();
+        if (length == 0)
+            return;
+        if (buf.hasArray()) {
+            process(buf.array(), buf.arrayOffset() + buf.readerIndex(), length, encrypt);
+            return;
+        }
+        if (mScratch == null || mScratch.length < length) {
+            mScratch = new byte[length];
+        }
+        buf.getBytes(buf.readerIndex(), mScratch, 0, length);
+        process(mScratch, 0, length, encrypt);
+        buf.setBytes(buf.readerIndex(), mScratch, 0, length);
+    }
+
+    @Override
+    public ByteBuf encrypt(ByteBuf data) throws CryptoException
     {
-        mData.reset();
-        if (mEncryptCipher == null) {
-            mEncryptIV = getIV(true);
-            mEncryptCipher = createCipher(mEncryptIV, true);
-            try {
-                mData.write(mEncryptIV);
-            } catch (IOException e) {
-                throw new CryptoException(e);
+        synchronized(mLock) {
+            if (mEncryptCipher == null) {
+                mEncryptIV = getIV(true);
+                mEncryptCipher = createCipher(mEncryptIV, true);
+                processBuffer(data, true);
+                return Unpooled.wrappedBuffer(Unpooled.wrappedBuffer(mEncryptIV), data);
             }
+            processBuffer(data, true);
+            return data;
         }
-        process(in, mData, true);
-        return mData.toByteArray();
     }
 
     @Override
-    public byte [] encrypt(byte[] in, int length) throws CryptoException
+    public ByteBuf decrypt(ByteBuf data) throws CryptoException
     {
         synchronized(mLock) {
-            if (length != in.length){
-                byte[] data = new byte[length];
-                System.arraycopy(in, 0, data, 0, length);
-                return encryptLocked(data);
-            }else{
-                return encryptLocked(in);
+            if (mDecryptCipher == null) {
+                if (mDecryptIV == null) {
+                    mDecryptIV = new byte[mIVLength];
+                }
+                int len = Math.min(mIVLength - mDecryptIVRead, data.readableBytes());
+                data.readBytes(mDecryptIV, mDecryptIVRead, len);
+                mDecryptIVRead += len;
+                if (mDecryptIVRead < mIVLength) {
+                    return data;
+                }
+                mDecryptCipher = createCipher(mDecryptIV, false);
             }
+            processBuffer(data, false);
+            return data;
         }
     }
 
-    private byte[] decryptLocked(byte[] in) throws CryptoException
+    private void processPacket(StreamCipher cipher, ByteBuf buf)
     {
-        byte[] data;
-        mData.reset();
-        if (mDecryptCipher == null) {
-            mDecryptCipher = createCipher(in, false);
-            mDecryptIV = new byte[mIVLength];
-            data = new byte[in.length - mIVLength];
-            System.arraycopy(in, 0, mDecryptIV, 0, mIVLength);
-            System.arraycopy(in, mIVLength, data, 0, in.length - mIVLength);
-        } else {
-            data = in;
+        int length = buf.readableBytes();
+        if (buf.hasArray()) {
+            int offset = buf.arrayOffset() + buf.readerIndex();
+            cipher.processBytes(buf.array(), offset, length, buf.array(), offset);
+            return;
         }
-        process(data, mData, false);
-        return mData.toByteArray();
+        if (mScratch == null || mScratch.length < length) {
+            mScratch = new byte[length];
+        }
+        buf.getBytes(buf.readerIndex(), mScratch, 0, length);
+        cipher.processBytes(mScratch, 0, length, mScratch, 0);
+        buf.setBytes(buf.readerIndex(), mScratch, 0, length);
     }
 
     @Override
-    public byte [] decrypt(byte[] in, int length) throws CryptoException
+    public ByteBuf encryptPacket(ByteBuf data) throws CryptoException
     {
+        byte [] iv = Utils.randomBytes(mIVLength);
         synchronized(mLock) {
-            if (length != in.length) {
-                byte[] data = new byte[length];
-                System.arraycopy(in, 0, data, 0, length);
-                return decryptLocked(data);
-            }else{
-                return decryptLocked(in);
-            }
+            processPacket(createCipher(iv, true), data);
         }
+        return Unpooled.wrappedBuffer(Unpooled.wrappedBuffer(iv), data);
+    }
+
+    @Override
+    public ByteBuf decryptPacket(ByteBuf data) throws CryptoException
+    {
+        if (data.readableBytes() < mIVLength) {
+            throw new CryptoException("Packet too short");
+        }
+        byte [] iv = new byte[mIVLength];
+        data.readBytes(iv);
+        synchronized(mLock) {
+            processPacket(createCipher(iv, false), data);
+        }
+        // Without the IV, so the plain text starts at index 0 like the AEAD ones.
+        return data.slice();
+    }
+
+    private static byte [] toBytes(ByteBuf buf)
+    {
+        byte [] data = new byte[buf.readableBytes()];
+        buf.readBytes(data);
+        return data;
+    }
+
+    @Override
+    public byte [] encrypt(byte[] in, int length) throws CryptoException
+    {
+        return toBytes(encrypt(Unpooled.copiedBuffer(in, 0, length)));
+    }
+
+    @Override
+    public byte [] decrypt(byte[] in, int length) throws CryptoException
+    {
+        return toBytes(decrypt(Unpooled.copiedBuffer(in, 0, length)));
     }
 }
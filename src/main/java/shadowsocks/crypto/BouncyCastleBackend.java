@@ -0,0 +1,37 @@
+package shadowsocks.crypto;
+
+import org.bouncycastle.crypto.StreamCipher;
+import org.bouncycastle.crypto.engines.AESEngine;
+import org.bouncycastle.crypto.engines.ChaChaEngine;
+import org.bouncycastle.crypto.engines.RC4Engine;
+import org.bouncycastle.crypto.modes.CFBBlockCipher;
+
+/**
+ * Pure java ciphers from BouncyCastle, they work on any JVM.
+ */
+class BouncyCastleBackend implements CipherBackend {
+
+    @Override
+    public String getName() {
+        return CipherBackends.BOUNCYCASTLE;
+    }
+
+    @Override
+    public boolean supports(String method) {
+        return method.equals("aes-256-cfb") || method.equals("chacha20") || method.equals("rc4-md5");
+    }
+
+    @Override
+    public StreamCipher createCipher(String method) throws CryptoException {
+        switch (method) {
+            case "aes-256-cfb":
+                return new CFBBlockCipher(new AESEngine(), 128);
+            case "chacha20":
+                return new ChaChaEngine();
+            case "rc4-md5":
+                return new RC4Engine();
+            default:
+                throw new CryptoException("Unsupport method: " + method);
+        }
+    }
+}
@@ -2,13 +2,9 @@
 package shadowsocks.crypto;
 
 import org.bouncycastle.crypto.StreamCipher;
-import org.bouncycastle.crypto.engines.ChaChaEngine;
-import org.bouncycastle.crypto.params.KeyParameter;
 import org.bouncycastle.crypto.params.ParametersWithIV;
 import shadowsocks.util.GlobalConfig;
 
-import java.io.ByteArrayOutputStream;
-
 public class Chacha20Crypto extends BaseCrypto {
 
 
@@ -22,6 +18,10 @@ public class Chacha20Crypto extends BaseCrypto {
         super(name, password);
     }
 
+    Chacha20Crypto(String name, String password, CipherBackend backend) throws CryptoException {
+        super(name, password, backend);
+    }
+
     @Override
     public int getIVLength() {
         return IV_LENGTH;
@@ -35,7 +35,7 @@ public class Chacha20Crypto extends BaseCrypto {
     @Override
     protected StreamCipher createCipher(byte[] iv, boolean encrypt) throws CryptoException
     {
-        StreamCipher c = new ChaChaEngine();
+        StreamCipher c = mBackend.createCipher(mName);
         byte[] newIv = new byte[8];
         if (IV_LENGTH < LEN) {// 长度不够填充0
             System.arraycopy(iv,0,newIv,0,IV_LENGTH);
@@ -48,22 +48,19 @@ public class Chacha20Crypto extends BaseCrypto {
             System.arraycopy(iv,0,newIv,0,LEN);
         }
 
-        ParametersWithIV parameterIV = new ParametersWithIV(new KeyParameter(mKey), newIv, 0, LEN);
+        ParametersWithIV parameterIV = new ParametersWithIV(mKeyParameter, newIv, 0, LEN);
         c.init(encrypt, parameterIV);
         return c;
     }
 
     @Override
-    protected void process(byte[] in, ByteArrayOutputStream out, boolean encrypt){
-        int size;
-        byte[] buffer = new byte[in.length];
+    protected void process(byte[] data, int offset, int length, boolean encrypt){
         StreamCipher cipher;
         if (encrypt){
             cipher = mEncryptCipher;
         }else{
             cipher = mDecryptCipher;
         }
-        size = cipher.processBytes(in, 0, in.length, buffer, 0);
-        out.write(buffer, 0, size);
+        cipher.processBytes(data, offset, length, data, offset);
     }
 }
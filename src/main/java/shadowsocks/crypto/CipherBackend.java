@@ -0,0 +1,14 @@
+package shadowsocks.crypto;
+
+import org.bouncycastle.crypto.StreamCipher;
+
+/**
+ * Provider of the stream cipher primitives used by the crypt classes.
+ * The returned cipher is not initialized yet, the caller inits it with the
+ * same parameters whatever the backend is.
+ */
+interface CipherBackend {
+    String getName();
+    boolean supports(String method);
+    StreamCipher createCipher(String method) throws CryptoException;
+}
@@ -0,0 +1,154 @@
+package shadowsocks.crypto;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Decides which backend runs each method.
+ *
+ * "bouncycastle" and "jca" force a backend (jca falls back to bouncycastle
+ * for the methods it doesn't have), "auto" checks every backend against
+ * bouncycastle and keeps the fastest one. A method is only checked again
+ * when it is selected with another name, a reload doesn't rerun the
+ * benchmark.
+ */
+public class CipherBackends {
+
+    private static Logger log = LogManager.getLogger(CipherBackends.class.getName());
+
+    public static final String BOUNCYCASTLE = "bouncycastle";
+    public static final String JCA = "jca";
+    public static final String AUTO = "auto";
+
+    private static final CipherBackend sBouncyCastle = new BouncyCastleBackend();
+    private static final CipherBackend[] sBackends = {sBouncyCastle, new JcaBackend()};
+
+    private static final ConcurrentHashMap<String, CipherBackend> sSelected = new ConcurrentHashMap<>();
+    // method -> the name it was selected with.
+    private static final ConcurrentHashMap<String, String> sSelectedBy = new ConcurrentHashMap<>();
+
+    // Micro benchmark, per backend.
+    private static final int BENCH_CHUNK = 16384;
+    private static final long BENCH_WARMUP_MS = 200;
+    private static final long BENCH_MEASURE_MS = 300;
+
+    static CipherBackend get(String method) {
+        CipherBackend backend = sSelected.get(method);
+        return backend != null ? backend : sBouncyCastle;
+    }
+
+    public static synchronized void select(String name, String method) throws CryptoException {
+        String cipherName = method.toLowerCase();
+        if (AEADCrypto.isAEAD(cipherName)) {
+            // Always on the JDK ciphers.
+            log.info("Crypto backend for " + cipherName + " [" + JCA + "]");
+            return;
+        }
+        CipherBackend selected = sSelected.get(cipherName);
+        if (selected != null && name.equals(sSelectedBy.get(cipherName))) {
+            log.debug("Crypto backend for " + cipherName + " [" + selected.getName() + "], selected before");
+            return;
+        }
+        if (name.equals(AUTO)) {
+            selected = benchmark(cipherName);
+        } else {
+            CipherBackend backend = find(name);
+            if (backend == null) {
+                throw new CryptoException("Unsupport crypto backend: " + name);
+            }
+            selected = backend;
+            if (!backend.supports(cipherName) || !verify(backend, cipherName)) {
+                log.warn("Crypto backend " + name + " can't run " + cipherName + ", use " + BOUNCYCASTLE);
+                selected = sBouncyCastle;
+            }
+        }
+        sSelected.put(cipherName, selected);
+        sSelectedBy.put(cipherName, name);
+        log.info("Crypto backend for " + cipherName + " [" + selected.getName() + "]");
+    }
+
+    private static CipherBackend find(String name) {
+        for (CipherBackend backend : sBackends) {
+            if (backend.getName().equals(name))
+                return backend;
+        }
+        return null;
+    }
+
+    private static CipherBackend benchmark(String method) throws CryptoException {
+        CipherBackend best = sBouncyCastle;
+        double bestSpeed = 0;
+        for (CipherBackend backend : sBackends) {
+            if (!backend.supports(method) || !verify(backend, method))
+                continue;
+            double speed = measure(backend, method);
+            log.info("Crypto backend " + backend.getName() + " runs " + method + " at " + (long)speed + " MB/s");
+            if (speed > bestSpeed) {
+                best = backend;
+                bestSpeed = speed;
+            }
+        }
+        return best;
+    }
+
+    // A crypt on the given backend, the one selected for the method is left alone.
+    private static SSCrypto create(CipherBackend backend, String method, String password) throws CryptoException {
+        return CryptoFactory.create(method, password, backend);
+    }
+
+    // Both directions must match bouncycastle, over odd sized chunks.
+    private static boolean verify(CipherBackend backend, String method) {
+        try {
+            byte[] plain = Utils.randomBytes(5000);
+            for (int direction = 0; direction < 2; direction++) {
+                SSCrypto encrypt = direction == 0 ? create(backend, method, "verify") : create(sBouncyCastle, method, "verify");
+                SSCrypto decrypt = direction == 0 ? create(sBouncyCastle, method, "verify") : create(backend, method, "verify");
+                ByteBuf result = Unpooled.buffer();
+                int offset = 0;
+                for (int size = 1; offset < plain.length; size = size * 3 + 1) {
+                    int len = Math.min(size, plain.length - offset);
+                    ByteBuf data = encrypt.encrypt(Unpooled.copiedBuffer(plain, offset, len));
+                    result.writeBytes(decrypt.decrypt(data));
+                    offset += len;
+                }
+                byte[] out = new byte[result.readableBytes()];
+                result.readBytes(out);
+                if (!Arrays.equals(plain, out)) {
+                    log.warn("Crypto backend " + backend.getName() + " gives wrong result for " + method);
+                    return false;
+                }
+            }
+            return true;
+        } catch (Exception e) {
+            log.warn("Crypto backend " + backend.getName() + " failed on " + method + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    // MB/s of encrypt + decrypt.
+    private static double measure(CipherBackend backend, String method) throws CryptoException {
+        SSCrypto encrypt = create(backend, method, "benchmark");
+        SSCrypto decrypt = create(backend, method, "benchmark");
+        ByteBuf data = Unpooled.wrappedBuffer(Utils.randomBytes(BENCH_CHUNK));
+        decrypt.decrypt(encrypt.encrypt(data));
+        long bytes = 0;
+        long start = System.nanoTime();
+        long end = start + (BENCH_WARMUP_MS + BENCH_MEASURE_MS) * 1000000L;
+        long measureStart = start + BENCH_WARMUP_MS * 1000000L;
+        long now = start;
+        while (now < end) {
+            decrypt.decrypt(encrypt.encrypt(data));
+            now = System.nanoTime();
+            if (now >= measureStart) {
+                bytes += BENCH_CHUNK;
+            }
+        }
+        double seconds = (now - measureStart) / 1e9;
+        return bytes / seconds / 1024 / 1024;
+    }
+}
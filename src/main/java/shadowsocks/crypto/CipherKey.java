@@ -0,0 +1,26 @@
+package shadowsocks.crypto;
+
+import org.bouncycastle.crypto.params.KeyParameter;
+
+/**
+ * Key derived from the password, shared by all the connections of one method/password.
+ * Never modify the content.
+ */
+class CipherKey {
+
+    private final byte[] mKey;
+    private final KeyParameter mKeyParameter;
+
+    CipherKey(byte[] key) {
+        mKey = key;
+        mKeyParameter = new KeyParameter(key);
+    }
+
+    byte[] getKey() {
+        return mKey;
+    }
+
+    KeyParameter getKeyParameter() {
+        return mKeyParameter;
+    }
+}
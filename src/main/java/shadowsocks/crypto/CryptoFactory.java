@@ -1,18 +1,54 @@
 package shadowsocks.crypto;
 
+import java.util.concurrent.ConcurrentHashMap;
+
 public class CryptoFactory{
 
+    // (method, password) -> derived key, method and password rarely change.
+    private static final ConcurrentHashMap<String, CipherKey> sKeyCache = new ConcurrentHashMap<>();
+
     public static SSCrypto create(String name, String password) throws CryptoException
+    {
+        return create(name, password, CipherBackends.get(name.toLowerCase()));
+    }
+
+    // The stream ciphers on the given backend, the AEAD ones always on the JDK.
+    static SSCrypto create(String name, String password, CipherBackend backend) throws CryptoException
     {
         String cipherName = name.toLowerCase();
         if (cipherName.equals("aes-256-cfb")) {
-            return new AESCrypto(name, password);
+            return new AESCrypto(name, password, backend);
         }else if (cipherName.equals("chacha20")) {
-            return new Chacha20Crypto(name, password);
+            return new Chacha20Crypto(name, password, backend);
         } else if (cipherName.equals("rc4-md5")) {
-            return new RC4MD5Crypto("rc4-md5",password);
+            return new RC4MD5Crypto("rc4-md5", password, backend);
+        } else if (AEADCrypto.isAEAD(cipherName)) {
+            return new AEADCrypto(name, password);
         } else{
             throw new CryptoException("Unsupport method: " + name);
         }
     }
+
+    static CipherKey getKey(String name, String password, int keyLen, int ivLen) throws CryptoException
+    {
+        String id = name + ":" + keyLen + ":" + password;
+        CipherKey key = sKeyCache.get(id);
+        if (key == null) {
+            key = new CipherKey(Utils.getKey(password, keyLen, ivLen));
+            CipherKey old = sKeyCache.putIfAbsent(id, key);
+            if (old != null) {
+                key = old;
+            }
+        }
+        return key;
+    }
+
+    /**
+     * Drop the derived keys, call it when the config changes.
+     * Ciphers already created keep their keys.
+     */
+    public static void clearCache()
+    {
+        sKeyCache.clear();
+    }
 }
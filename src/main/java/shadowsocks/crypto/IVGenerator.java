@@ -0,0 +1,67 @@
+package shadowsocks.crypto;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+/**
+ * Source of IVs and salts.
+ *
+ * Every thread (in practice every event loop) owns a DRBG seeded once from
+ * the system, and takes IVs from a block of random bytes it refills in a
+ * single call. No lock is shared between threads and the seeding cost is
+ * paid once per thread instead of once per connection.
+ */
+final class IVGenerator {
+
+    private static final int BLOCK_SIZE = 4096;
+
+    private static final ThreadLocal<IVGenerator> sGenerator = ThreadLocal.withInitial(IVGenerator::new);
+
+    private final SecureRandom mRandom;
+    private final byte[] mBlock;
+    private int mPosition;
+
+    private IVGenerator() {
+        mRandom = createRandom();
+        mBlock = new byte[BLOCK_SIZE];
+        mPosition = BLOCK_SIZE;
+    }
+
+    private static SecureRandom createRandom() {
+        // DRBG since java 9, SHA1PRNG is always there. Both don't lock like NativePRNG does.
+        for (String algorithm : new String[]{"DRBG", "SHA1PRNG"}) {
+            try {
+                SecureRandom random = SecureRandom.getInstance(algorithm);
+                random.nextBytes(new byte[1]); // force seeding now
+                return random;
+            } catch (NoSuchAlgorithmException e) {
+                // try the next one
+            }
+        }
+        return new SecureRandom();
+    }
+
+    private void fill(byte[] out, int offset, int length) {
+        if (length > BLOCK_SIZE) {
+            byte[] data = new byte[length];
+            mRandom.nextBytes(data);
+            System.arraycopy(data, 0, out, offset, length);
+            return;
+        }
+        while (length > 0) {
+            if (mPosition == BLOCK_SIZE) {
+                mRandom.nextBytes(mBlock);
+                mPosition = 0;
+            }
+            int n = Math.min(length, BLOCK_SIZE - mPosition);
+            System.arraycopy(mBlock, mPosition, out, offset, n);
+            mPosition += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    static void nextBytes(byte[] out, int offset, int length) {
+        sGenerator.get().fill(out, offset, length);
+    }
+}
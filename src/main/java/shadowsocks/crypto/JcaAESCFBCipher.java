@@ -0,0 +1,143 @@
+package shadowsocks.crypto;
+
+import org.bouncycastle.crypto.CipherParameters;
+import org.bouncycastle.crypto.StreamCipher;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.crypto.params.ParametersWithIV;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+
+/**
+ * AES-CFB128 on top of the JDK AES block cipher.
+ *
+ * "AES/CFB/NoPadding" of the JDK holds back partial blocks, which a relay
+ * can't use, so the feedback is done here and only the block encryption
+ * goes to the JDK ("AES/ECB/NoPadding", AES-NI when the JVM has it).
+ * Decryption knows all the ciphertext up front, the keystream of all the
+ * full blocks is computed with a single call.
+ */
+class JcaAESCFBCipher implements StreamCipher {
+
+    private static final int BLOCK_SIZE = 16;
+
+    private Cipher mCipher;
+    private boolean mEncrypt;
+    // Previous ciphertext block (the IV at the beginning).
+    private final byte[] mFeedback = new byte[BLOCK_SIZE];
+    private final byte[] mKeystream = new byte[BLOCK_SIZE];
+    // Bytes of mKeystream already used.
+    private int mPosition = BLOCK_SIZE;
+    private byte[] mIV;
+
+    // Reused by the bulk decryption.
+    private byte[] mBulkIn;
+    private byte[] mBulkOut;
+
+    static boolean isAvailable() {
+        try {
+            // 256 bits keys need the unlimited policy on old JVMs.
+            return Cipher.getMaxAllowedKeyLength("AES") >= 256;
+        } catch (GeneralSecurityException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void init(boolean forEncryption, CipherParameters params) throws IllegalArgumentException {
+        if (!(params instanceof ParametersWithIV)) {
+            throw new IllegalArgumentException("IV required for " + getAlgorithmName());
+        }
+        ParametersWithIV ivParams = (ParametersWithIV)params;
+        byte[] key = ((KeyParameter)ivParams.getParameters()).getKey();
+        byte[] iv = ivParams.getIV();
+        // Same as BouncyCastle: a short IV is padded with zeros in front, a long one is cut.
+        mIV = new byte[BLOCK_SIZE];
+        if (iv.length < BLOCK_SIZE) {
+            System.arraycopy(iv, 0, mIV, BLOCK_SIZE - iv.length, iv.length);
+        } else {
+            System.arraycopy(iv, 0, mIV, 0, BLOCK_SIZE);
+        }
+        try {
+            mCipher = Cipher.getInstance("AES/ECB/NoPadding");
+            mCipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalArgumentException(e);
+        }
+        mEncrypt = forEncryption;
+        reset();
+    }
+
+    @Override
+    public String getAlgorithmName() {
+        return "AES/CFB128";
+    }
+
+    private void encryptBlock(byte[] in, int inOff, byte[] out, int outOff, int len) {
+        try {
+            mCipher.update(in, inOff, len, out, outOff);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void nextKeystream() {
+        encryptBlock(mFeedback, 0, mKeystream, 0, BLOCK_SIZE);
+        mPosition = 0;
+    }
+
+    @Override
+    public byte returnByte(byte in) {
+        if (mPosition == BLOCK_SIZE) {
+            nextKeystream();
+        }
+        byte out = (byte)(in ^ mKeystream[mPosition]);
+        mFeedback[mPosition++] = mEncrypt ? out : in;
+        return out;
+    }
+
+    @Override
+    public int processBytes(byte[] in, int inOff, int len, byte[] out, int outOff) {
+        int done = 0;
+        // Finish the current block.
+        while (done < len && mPosition != BLOCK_SIZE) {
+            out[outOff + done] = returnByte(in[inOff + done]);
+            done++;
+        }
+        int blocks = (len - done) / BLOCK_SIZE;
+        if (!mEncrypt && blocks > 1) {
+            decryptBlocks(in, inOff + done, out, outOff + done, blocks);
+            done += blocks * BLOCK_SIZE;
+        }
+        while (done < len) {
+            out[outOff + done] = returnByte(in[inOff + done]);
+            done++;
+        }
+        return len;
+    }
+
+    // Keystream block i is E(C[i-1]), C[-1] being the current feedback.
+    private void decryptBlocks(byte[] in, int inOff, byte[] out, int outOff, int blocks) {
+        int length = blocks * BLOCK_SIZE;
+        if (mBulkIn == null || mBulkIn.length < length + BLOCK_SIZE) {
+            mBulkIn = new byte[length + BLOCK_SIZE];
+            mBulkOut = new byte[length + BLOCK_SIZE];
+        }
+        System.arraycopy(mFeedback, 0, mBulkIn, 0, BLOCK_SIZE);
+        // Keeps the ciphertext, in and out may be the same array.
+        System.arraycopy(in, inOff, mBulkIn, BLOCK_SIZE, length);
+        encryptBlock(mBulkIn, 0, mBulkOut, 0, length);
+        for (int i = 0; i < length; i++) {
+            out[outOff + i] = (byte)(mBulkIn[BLOCK_SIZE + i] ^ mBulkOut[i]);
+        }
+        System.arraycopy(mBulkIn, length, mFeedback, 0, BLOCK_SIZE);
+        mPosition = BLOCK_SIZE;
+    }
+
+    @Override
+    public void reset() {
+        System.arraycopy(mIV, 0, mFeedback, 0, BLOCK_SIZE);
+        mPosition = BLOCK_SIZE;
+    }
+}
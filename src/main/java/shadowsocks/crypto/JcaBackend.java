@@ -0,0 +1,36 @@
+package shadowsocks.crypto;
+
+import org.bouncycastle.crypto.StreamCipher;
+
+/**
+ * Ciphers from the JDK providers, they use the AES intrinsics of the JVM.
+ * rc4-md5 is not provided, it stays on BouncyCastle.
+ */
+class JcaBackend implements CipherBackend {
+
+    @Override
+    public String getName() {
+        return CipherBackends.JCA;
+    }
+
+    @Override
+    public boolean supports(String method) {
+        if (method.equals("aes-256-cfb"))
+            return JcaAESCFBCipher.isAvailable();
+        if (method.equals("chacha20"))
+            return JcaChaCha20Cipher.isAvailable();
+        return false;
+    }
+
+    @Override
+    public StreamCipher createCipher(String method) throws CryptoException {
+        switch (method) {
+            case "aes-256-cfb":
+                return new JcaAESCFBCipher();
+            case "chacha20":
+                return new JcaChaCha20Cipher();
+            default:
+                throw new CryptoException("Unsupport method: " + method);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package shadowsocks.crypto;
+
+import org.bouncycastle.crypto.CipherParameters;
+import org.bouncycastle.crypto.StreamCipher;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.crypto.params.ParametersWithIV;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+import java.lang.reflect.Constructor;
+import java.security.GeneralSecurityException;
+import java.security.spec.AlgorithmParameterSpec;
+
+/**
+ * The original 8 bytes nonce ChaCha20 on top of the JDK (java 11+) ChaCha20.
+ *
+ * The JDK implements the IETF variant: 32 bits counter and 12 bytes nonce.
+ * With the nonce 0x00000000 || iv it gives the same keystream as long as the
+ * high word of the 64 bits counter is 0, that is for the first 256GB of a
+ * stream. The JDK throws beyond that.
+ */
+class JcaChaCha20Cipher implements StreamCipher {
+
+    private static final Constructor<?> sParameterSpec = findParameterSpec();
+
+    private Cipher mCipher;
+    private SecretKeySpec mKey;
+    private byte[] mNonce;
+    private boolean mEncrypt;
+
+    private static Constructor<?> findParameterSpec() {
+        try {
+            // Not in java 8, we are compiled for it.
+            Class<?> c = Class.forName("javax.crypto.spec.ChaCha20ParameterSpec");
+            Cipher.getInstance("ChaCha20");
+            return c.getConstructor(byte[].class, int.class);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    static boolean isAvailable() {
+        return sParameterSpec != null;
+    }
+
+    @Override
+    public void init(boolean forEncryption, CipherParameters params) throws IllegalArgumentException {
+        if (!(params instanceof ParametersWithIV) || ((ParametersWithIV)params).getIV().length != 8) {
+            throw new IllegalArgumentException("8 bytes IV required for " + getAlgorithmName());
+        }
+        ParametersWithIV ivParams = (ParametersWithIV)params;
+        mKey = new SecretKeySpec(((KeyParameter)ivParams.getParameters()).getKey(), "ChaCha20");
+        mNonce = new byte[12];
+        System.arraycopy(ivParams.getIV(), 0, mNonce, 4, 8);
+        mEncrypt = forEncryption;
+        reset();
+    }
+
+    @Override
+    public String getAlgorithmName() {
+        return "ChaCha20";
+    }
+
+    @Override
+    public byte returnByte(byte in) {
+        byte[] data = {in};
+        processBytes(data, 0, 1, data, 0);
+        return data[0];
+    }
+
+    @Override
+    public int processBytes(byte[] in, int inOff, int len, byte[] out, int outOff) {
+        try {
+            return mCipher.update(in, inOff, len, out, outOff);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void reset() {
+        try {
+            mCipher = Cipher.getInstance("ChaCha20");
+            AlgorithmParameterSpec spec = (AlgorithmParameterSpec)sParameterSpec.newInstance(mNonce, 0);
+            mCipher.init(mEncrypt ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE, mKey, spec);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
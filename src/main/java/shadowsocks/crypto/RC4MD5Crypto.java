@@ -1,12 +1,9 @@
 package shadowsocks.crypto;
 
 import org.bouncycastle.crypto.StreamCipher;
-import org.bouncycastle.crypto.engines.RC4Engine;
 import org.bouncycastle.crypto.params.KeyParameter;
 import shadowsocks.util.GlobalConfig;
 
-import java.io.ByteArrayOutputStream;
-
 public class RC4MD5Crypto extends BaseCrypto {
 
     private final static int IV_LENGTH = GlobalConfig.get().getIvLen();
@@ -17,6 +14,10 @@ public class RC4MD5Crypto extends BaseCrypto {
         super(name, password);
     }
 
+    RC4MD5Crypto(String name, String password, CipherBackend backend) throws CryptoException {
+        super(name, password, backend);
+    }
+
     @Override
     public int getIVLength() {
         return IV_LENGTH;
@@ -30,7 +31,7 @@ public class RC4MD5Crypto extends BaseCrypto {
     @Override
     protected StreamCipher createCipher(byte[] iv, boolean encrypt) throws CryptoException
     {
-        StreamCipher c = new RC4Engine();
+        StreamCipher c = mBackend.createCipher(mName);
         byte[] data = new byte[KEY_LENGTH + IV_LENGTH];
         System.arraycopy(mKey,0,data,0,KEY_LENGTH);
         System.arraycopy(iv,0,data,KEY_LENGTH,IV_LENGTH);
@@ -43,16 +44,13 @@ public class RC4MD5Crypto extends BaseCrypto {
 
 
     @Override
-    protected void process(byte[] in, ByteArrayOutputStream out, boolean encrypt){
-        int size;
-        byte[] buffer = new byte[in.length];
+    protected void process(byte[] data, int offset, int length, boolean encrypt){
         StreamCipher cipher;
         if (encrypt){
             cipher = mEncryptCipher;
         }else{
             cipher = mDecryptCipher;
         }
-        size = cipher.processBytes(in, 0, in.length, buffer, 0);
-        out.write(buffer, 0, size);
+        cipher.processBytes(data, offset, length, data, offset);
     }
 }
@@ -0,0 +1,21 @@
+package shadowsocks.crypto;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * Interface of crypt working on netty buffers.
+ *
+ * Both methods consume the readable bytes of the given buffer and return the
+ * buffer holding the result, callers must always continue with the returned
+ * buffer. Stream ciphers transform the bytes in place and return the same
+ * buffer, only the first encrypted buffer gets the IV in front of it.
+ *
+ * The packet methods are for UDP, each packet is a whole message with its
+ * own IV and they don't touch the stream state.
+ */
+public interface SSBufferCrypto {
+    ByteBuf encrypt(ByteBuf data) throws CryptoException;
+    ByteBuf decrypt(ByteBuf data) throws CryptoException;
+    ByteBuf encryptPacket(ByteBuf data) throws CryptoException;
+    ByteBuf decryptPacket(ByteBuf data) throws CryptoException;
+}
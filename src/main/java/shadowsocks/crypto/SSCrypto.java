@@ -3,7 +3,7 @@ package shadowsocks.crypto;
 /**
  * Interface of crypt
  */
-public interface SSCrypto {
+public interface SSCrypto extends SSBufferCrypto {
     byte [] encrypt(byte[] data, int length) throws CryptoException;
     byte [] decrypt(byte[] data, int length) throws CryptoException;
     int getIVLength();
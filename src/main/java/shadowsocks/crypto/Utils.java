@@ -3,7 +3,6 @@ package shadowsocks.crypto;
 import java.io.UnsupportedEncodingException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
 
 public class Utils{
 
@@ -99,19 +98,23 @@ public class Utils{
 
     public static byte[] randomBytes(int size) {
         byte[] bytes = new byte[size];
-        new SecureRandom().nextBytes(bytes);
+        IVGenerator.nextBytes(bytes, 0, size);
         return bytes;
     }
 
 
-    public static byte[] md5(byte[] source) {
+    private static final ThreadLocal<MessageDigest> sMD5 = ThreadLocal.withInitial(() -> {
         try {
-            MessageDigest md = MessageDigest.getInstance("MD5");
-            return md.digest(source);
+            return MessageDigest.getInstance("MD5");
         } catch (Exception e) {
             // 抛出去
             throw new RuntimeException(e);
         }
+    });
+
+    public static byte[] md5(byte[] source) {
+        // digest() resets the instance, it is safe to reuse it on this thread.
+        return sMD5.get().digest(source);
     }
 
 }
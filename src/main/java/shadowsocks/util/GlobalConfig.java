@@ -3,10 +3,16 @@ package shadowsocks.util;
 import io.vertx.core.json.JsonObject;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import shadowsocks.crypto.CryptoFactory;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
@@ -27,8 +33,45 @@ public class GlobalConfig{
     private AtomicInteger mPort;
     private AtomicInteger mLocalPort;
     private AtomicInteger mTimeout; /* UNIT second */
+    private AtomicInteger mHandshakeTimeout; /* UNIT second */
     private AtomicBoolean mIsServerMode;
     private AtomicInteger mIvLen;// IV 长度
+    private AtomicInteger mWorkers;
+    private AtomicInteger mConnectTimeout; /* UNIT second */
+    private AtomicReference<String> mCryptoBackend;
+    private AtomicBoolean mNativeTransport;
+    private AtomicBoolean mNoDelay;
+    private AtomicBoolean mFastOpen;
+    private AtomicBoolean mTcpQuickAck;
+    private AtomicBoolean mKeepAlive;
+    private AtomicInteger mAcceptBacklog;
+    private AtomicReference<String> mMode;
+    private AtomicInteger mUdpTimeout; /* UNIT second */
+    private AtomicInteger mUdpMaxSessions;
+    private AtomicReference<String> mDnsServer;
+    private AtomicInteger mDnsCacheSize;
+    private AtomicReference<String> mBalance;
+    private AtomicReference<List<UpstreamConfig>> mServers;
+    private AtomicReference<List<UserConfig>> mUsers;
+    private AtomicBoolean mMux;
+    private AtomicInteger mMuxConnections;
+    private AtomicInteger mWarmPool;
+    private AtomicInteger mWarmPoolMaxAge;
+    private AtomicInteger mWarmPoolRate;
+    private AtomicInteger mMetricsPort;
+    private AtomicReference<List<Integer>> mMetricsTargetPorts;
+    private AtomicReference<String> mManagerAddress;
+    private AtomicInteger mRateLimit;
+    private AtomicInteger mPortRateLimit;
+    private AtomicInteger mConnectionRateLimit;
+    private AtomicInteger mReloadInterval;
+    private AtomicReference<String> mAccessLog;
+    private AtomicInteger mAccessLogSampling;
+    private AtomicBoolean mCoalesceWrites;
+    private AtomicInteger mUpHighWaterMark;
+    private AtomicInteger mUpLowWaterMark;
+    private AtomicInteger mDownHighWaterMark;
+    private AtomicInteger mDownLowWaterMark;
 
     final private static String DEFAULT_METHOD = "aes-256-cfb";
     final private static String DEFAULT_PASSWORD = "123456";
@@ -36,7 +79,42 @@ public class GlobalConfig{
     final private static int DEFAULT_PORT = 8388;
     final private static int DEFAULT_LOCAL_PORT = 9999;
     final private static int DEFAULT_TIMEOUT = 300;
+    final private static int DEFAULT_HANDSHAKE_TIMEOUT = 30;
     final private static int DEFAULT_IV_LEN = 16;
+    final private static int DEFAULT_WORKERS = Runtime.getRuntime().availableProcessors();
+    final private static int DEFAULT_CONNECT_TIMEOUT = 5;
+    final private static String DEFAULT_CRYPTO_BACKEND = "bouncycastle";
+    final private static boolean DEFAULT_NATIVE_TRANSPORT = false;
+    final private static boolean DEFAULT_NO_DELAY = true;
+    final private static boolean DEFAULT_FAST_OPEN = false;
+    final private static boolean DEFAULT_TCP_QUICKACK = false;
+    final private static boolean DEFAULT_KEEP_ALIVE = false;
+    final private static int DEFAULT_ACCEPT_BACKLOG = -1;
+    final private static String DEFAULT_MODE = "tcp_only";
+    final private static int DEFAULT_UDP_TIMEOUT = 60;
+    final private static int DEFAULT_UDP_MAX_SESSIONS = 16384;
+    final private static String DEFAULT_DNS_SERVER = "";
+    final private static int DEFAULT_DNS_CACHE_SIZE = 4096;
+    final private static String DEFAULT_BALANCE = "round_robin";
+    final private static boolean DEFAULT_MUX = false;
+    final private static int DEFAULT_MUX_CONNECTIONS = 4;
+    final private static int DEFAULT_WARM_POOL = 0;
+    final private static int DEFAULT_WARM_POOL_MAX_AGE = 20;
+    final private static int DEFAULT_WARM_POOL_RATE = 10;
+    final private static int DEFAULT_METRICS_PORT = 0;
+    final private static List<Integer> DEFAULT_METRICS_TARGET_PORTS = Collections.unmodifiableList(Arrays.asList(22, 25, 53, 80, 443, 853, 993, 8080, 8443));
+    final private static String DEFAULT_MANAGER_ADDRESS = "";
+    final private static int DEFAULT_RATE_LIMIT = 0;
+    final private static int DEFAULT_PORT_RATE_LIMIT = 0;
+    final private static int DEFAULT_CONNECTION_RATE_LIMIT = 0;
+    final private static int DEFAULT_RELOAD_INTERVAL = 0;
+    final private static String DEFAULT_ACCESS_LOG = "";
+    final private static int DEFAULT_ACCESS_LOG_SAMPLING = 1;
+    final private static boolean DEFAULT_COALESCE_WRITES = true;
+    final private static int DEFAULT_UP_HIGH_WATER_MARK = 64;
+    final private static int DEFAULT_UP_LOW_WATER_MARK = 32;
+    final private static int DEFAULT_DOWN_HIGH_WATER_MARK = 64;
+    final private static int DEFAULT_DOWN_LOW_WATER_MARK = 32;
 
     final static String SERVER_MODE = "server_mode";
     final static String SERVER_ADDR = "server";
@@ -45,7 +123,44 @@ public class GlobalConfig{
     final static String METHOD = "method";
     final static String PASSWORD = "password";
     final static String TIMEOUT = "timeout";
+    final static String HANDSHAKE_TIMEOUT = "handshake_timeout";
     final static String IV_LEN = "iv_len";
+    final static String WORKERS = "workers";
+    final static String CONNECT_TIMEOUT = "connect_timeout";
+    final static String CRYPTO_BACKEND = "crypto_backend";
+    final static String NATIVE_TRANSPORT = "native_transport";
+    final static String NO_DELAY = "no_delay";
+    final static String FAST_OPEN = "fast_open";
+    final static String TCP_QUICKACK = "tcp_quickack";
+    final static String KEEP_ALIVE = "keep_alive";
+    final static String ACCEPT_BACKLOG = "accept_backlog";
+    final static String MODE = "mode";
+    final static String UDP_TIMEOUT = "udp_timeout";
+    final static String UDP_MAX_SESSIONS = "udp_max_sessions";
+    final static String DNS_SERVER = "dns_server";
+    final static String DNS_CACHE_SIZE = "dns_cache_size";
+    final static String BALANCE = "balance";
+    final static String SERVERS = "servers";
+    final static String PORT_PASSWORD = "port_password";
+    final static String MUX = "mux";
+    final static String MUX_CONNECTIONS = "mux_connections";
+    final static String WARM_POOL = "warm_pool";
+    final static String WARM_POOL_MAX_AGE = "warm_pool_max_age";
+    final static String WARM_POOL_RATE = "warm_pool_rate";
+    final static String METRICS_PORT = "metrics_port";
+    final static String METRICS_TARGET_PORTS = "metrics_target_ports";
+    final static String MANAGER_ADDRESS = "manager_address";
+    final static String RATE_LIMIT = "rate_limit";
+    final static String PORT_RATE_LIMIT = "port_rate_limit";
+    final static String CONNECTION_RATE_LIMIT = "connection_rate_limit";
+    final static String RELOAD_INTERVAL = "reload_interval";
+    final static String ACCESS_LOG = "access_log";
+    final static String ACCESS_LOG_SAMPLING = "access_log_sampling";
+    final static String COALESCE_WRITES = "coalesce_writes";
+    final static String UP_HIGH_WATER_MARK = "up_high_water_mark";
+    final static String UP_LOW_WATER_MARK = "up_low_water_mark";
+    final static String DOWN_HIGH_WATER_MARK = "down_high_water_mark";
+    final static String DOWN_LOW_WATER_MARK = "down_low_water_mark";
 
     //Lock
     public void getLock() {
@@ -63,6 +178,14 @@ public class GlobalConfig{
         return mTimeout.get();
     }
 
+    //Handshake timeout, until the connection relays data
+    public void setHandshakeTimeout(int t) {
+        mHandshakeTimeout.set(t);
+    }
+    public int getHandshakeTimeout() {
+        return mHandshakeTimeout.get();
+    }
+
     //Password(Key)
     public void setPassowrd(String p) {
         mPassword.set(p);
@@ -128,6 +251,294 @@ public class GlobalConfig{
         return mIvLen.get();
     }
 
+    //Workers, the number of listener instances (one per event loop).
+    public void setWorkers(int w) {
+        mWorkers.set(w);
+    }
+    public int getWorkers() {
+        return mWorkers.get();
+    }
+
+    //Connect timeout of outbound connections
+    public void setConnectTimeout(int t) {
+        mConnectTimeout.set(t);
+    }
+    public int getConnectTimeout() {
+        return mConnectTimeout.get();
+    }
+
+    //Crypto backend: bouncycastle, jca or auto
+    public void setCryptoBackend(String b) {
+        mCryptoBackend.set(b);
+    }
+    public String getCryptoBackend() {
+        return mCryptoBackend.get();
+    }
+
+    //Native transport (epoll), NIO if not available
+    public void setNativeTransport(boolean v) {
+        mNativeTransport.set(v);
+    }
+    public boolean isNativeTransport() {
+        return mNativeTransport.get();
+    }
+
+    //TCP_NODELAY
+    public void setNoDelay(boolean v) {
+        mNoDelay.set(v);
+    }
+    public boolean isNoDelay() {
+        return mNoDelay.get();
+    }
+
+    //TCP fast open, native transport only
+    public void setFastOpen(boolean v) {
+        mFastOpen.set(v);
+    }
+    public boolean isFastOpen() {
+        return mFastOpen.get();
+    }
+
+    //TCP_QUICKACK, native transport only
+    public void setTcpQuickAck(boolean v) {
+        mTcpQuickAck.set(v);
+    }
+    public boolean isTcpQuickAck() {
+        return mTcpQuickAck.get();
+    }
+
+    //SO_KEEPALIVE
+    public void setKeepAlive(boolean v) {
+        mKeepAlive.set(v);
+    }
+    public boolean isKeepAlive() {
+        return mKeepAlive.get();
+    }
+
+    //Accept backlog, -1 for the OS default
+    public void setAcceptBacklog(int v) {
+        mAcceptBacklog.set(v);
+    }
+    public int getAcceptBacklog() {
+        return mAcceptBacklog.get();
+    }
+
+    //tcp_only, tcp_and_udp or udp_only
+    public void setMode(String v) {
+        mMode.set(v);
+    }
+    public String getMode() {
+        return mMode.get();
+    }
+
+    //UDP session idle timeout
+    public void setUdpTimeout(int v) {
+        mUdpTimeout.set(v);
+    }
+    public int getUdpTimeout() {
+        return mUdpTimeout.get();
+    }
+
+    //UDP sessions kept at most
+    public void setUdpMaxSessions(int v) {
+        mUdpMaxSessions.set(v);
+    }
+    public int getUdpMaxSessions() {
+        return mUdpMaxSessions.get();
+    }
+
+    //host or host:port, empty for /etc/resolv.conf
+    public void setDnsServer(String v) {
+        mDnsServer.set(v);
+    }
+    public String getDnsServer() {
+        return mDnsServer.get();
+    }
+
+    //names cached per instance
+    public void setDnsCacheSize(int v) {
+        mDnsCacheSize.set(v);
+    }
+    public int getDnsCacheSize() {
+        return mDnsCacheSize.get();
+    }
+
+    //round_robin, least_connections or ewma
+    public void setBalance(String v) {
+        mBalance.set(v);
+    }
+    public String getBalance() {
+        return mBalance.get();
+    }
+
+    //Empty if only the server above is used
+    public void setServers(List<UpstreamConfig> v) {
+        mServers.set(v);
+    }
+    public List<UpstreamConfig> getServers() {
+        return mServers.get();
+    }
+
+    //Empty if only the server port above is used
+    public void setUsers(List<UserConfig> v) {
+        mUsers.set(v);
+    }
+    public List<UserConfig> getUsers() {
+        return mUsers.get();
+    }
+
+    //relay the connections over a few mux connections
+    public void setMux(boolean v) {
+        mMux.set(v);
+    }
+    public boolean isMux() {
+        return mMux.get();
+    }
+
+    //mux connections per instance
+    public void setMuxConnections(int v) {
+        mMuxConnections.set(v);
+    }
+    public int getMuxConnections() {
+        return mMuxConnections.get();
+    }
+
+    //warm connections kept per server, 0 disables the pool
+    public void setWarmPool(int v) {
+        mWarmPool.set(v);
+    }
+    public int getWarmPool() {
+        return mWarmPool.get();
+    }
+
+    //seconds a warm connection is kept
+    public void setWarmPoolMaxAge(int v) {
+        mWarmPoolMaxAge.set(v);
+    }
+    public int getWarmPoolMaxAge() {
+        return mWarmPoolMaxAge.get();
+    }
+
+    //warm connections made per second
+    public void setWarmPoolRate(int v) {
+        mWarmPoolRate.set(v);
+    }
+    public int getWarmPoolRate() {
+        return mWarmPoolRate.get();
+    }
+
+    //port of the metrics endpoint, 0 disables it
+    public void setMetricsPort(int v) {
+        mMetricsPort.set(v);
+    }
+    public int getMetricsPort() {
+        return mMetricsPort.get();
+    }
+
+    //target ports counted on their own, the others are counted together
+    public void setMetricsTargetPorts(List<Integer> v) {
+        mMetricsTargetPorts.set(v);
+    }
+    public List<Integer> getMetricsTargetPorts() {
+        return mMetricsTargetPorts.get();
+    }
+
+    //host:port of the manager UDP interface, empty disables it
+    public void setManagerAddress(String v) {
+        mManagerAddress.set(v);
+    }
+    public String getManagerAddress() {
+        return mManagerAddress.get();
+    }
+
+    //KB/s of the whole process, in each direction. 0 no limit
+    public void setRateLimit(int v) {
+        mRateLimit.set(v);
+    }
+    public int getRateLimit() {
+        return mRateLimit.get();
+    }
+
+    //KB/s of every listener port (user), in each direction. 0 no limit
+    public void setPortRateLimit(int v) {
+        mPortRateLimit.set(v);
+    }
+    public int getPortRateLimit() {
+        return mPortRateLimit.get();
+    }
+
+    //KB/s of every connection, in each direction. 0 no limit
+    public void setConnectionRateLimit(int v) {
+        mConnectionRateLimit.set(v);
+    }
+    public int getConnectionRateLimit() {
+        return mConnectionRateLimit.get();
+    }
+
+    //Seconds between checks of the config file for changes. 0 no reload
+    public void setReloadInterval(int v) {
+        mReloadInterval.set(v);
+    }
+    public int getReloadInterval() {
+        return mReloadInterval.get();
+    }
+
+    //File of the access log, one line per connection, empty to disable.
+    public void setAccessLog(String v) {
+        mAccessLog.set(v);
+    }
+    public String getAccessLog() {
+        return mAccessLog.get();
+    }
+
+    //Log one connection in so many, failed ones always logged.
+    public void setAccessLogSampling(int v) {
+        mAccessLogSampling.set(v);
+    }
+    public int getAccessLogSampling() {
+        return mAccessLogSampling.get();
+    }
+
+    //Flush relayed data once per event loop round rather than every write.
+    public void setCoalesceWrites(boolean v) {
+        mCoalesceWrites.set(v);
+    }
+    public boolean isCoalesceWrites() {
+        return mCoalesceWrites.get();
+    }
+
+    //Queued KB towards the target above which reading stops
+    public void setUpHighWaterMark(int v) {
+        mUpHighWaterMark.set(v);
+    }
+    public int getUpHighWaterMark() {
+        return mUpHighWaterMark.get();
+    }
+
+    //Queued KB towards the target below which reading goes on
+    public void setUpLowWaterMark(int v) {
+        mUpLowWaterMark.set(v);
+    }
+    public int getUpLowWaterMark() {
+        return mUpLowWaterMark.get();
+    }
+
+    //Queued KB towards the program above which reading stops
+    public void setDownHighWaterMark(int v) {
+        mDownHighWaterMark.set(v);
+    }
+    public int getDownHighWaterMark() {
+        return mDownHighWaterMark.get();
+    }
+
+    //Queued KB towards the program below which reading goes on
+    public void setDownLowWaterMark(int v) {
+        mDownLowWaterMark.set(v);
+    }
+    public int getDownLowWaterMark() {
+        return mDownLowWaterMark.get();
+    }
+
     public synchronized static GlobalConfig get()
     {
         if (mConfig == null)
@@ -147,13 +558,51 @@ public class GlobalConfig{
         mIsServerMode = new AtomicBoolean(false);
         mConfigFile = new AtomicReference<>();
         mTimeout = new AtomicInteger(DEFAULT_TIMEOUT);
+        mHandshakeTimeout = new AtomicInteger(DEFAULT_HANDSHAKE_TIMEOUT);
         mIvLen = new AtomicInteger(DEFAULT_IV_LEN);
+        mWorkers = new AtomicInteger(DEFAULT_WORKERS);
+        mConnectTimeout = new AtomicInteger(DEFAULT_CONNECT_TIMEOUT);
+        mCryptoBackend = new AtomicReference<>(DEFAULT_CRYPTO_BACKEND);
+        mNativeTransport = new AtomicBoolean(DEFAULT_NATIVE_TRANSPORT);
+        mNoDelay = new AtomicBoolean(DEFAULT_NO_DELAY);
+        mFastOpen = new AtomicBoolean(DEFAULT_FAST_OPEN);
+        mTcpQuickAck = new AtomicBoolean(DEFAULT_TCP_QUICKACK);
+        mKeepAlive = new AtomicBoolean(DEFAULT_KEEP_ALIVE);
+        mAcceptBacklog = new AtomicInteger(DEFAULT_ACCEPT_BACKLOG);
+        mMode = new AtomicReference<>(DEFAULT_MODE);
+        mUdpTimeout = new AtomicInteger(DEFAULT_UDP_TIMEOUT);
+        mUdpMaxSessions = new AtomicInteger(DEFAULT_UDP_MAX_SESSIONS);
+        mDnsServer = new AtomicReference<>(DEFAULT_DNS_SERVER);
+        mDnsCacheSize = new AtomicInteger(DEFAULT_DNS_CACHE_SIZE);
+        mBalance = new AtomicReference<>(DEFAULT_BALANCE);
+        mServers = new AtomicReference<>(Collections.emptyList());
+        mUsers = new AtomicReference<>(Collections.emptyList());
+        mMux = new AtomicBoolean(DEFAULT_MUX);
+        mMuxConnections = new AtomicInteger(DEFAULT_MUX_CONNECTIONS);
+        mWarmPool = new AtomicInteger(DEFAULT_WARM_POOL);
+        mWarmPoolMaxAge = new AtomicInteger(DEFAULT_WARM_POOL_MAX_AGE);
+        mWarmPoolRate = new AtomicInteger(DEFAULT_WARM_POOL_RATE);
+        mMetricsPort = new AtomicInteger(DEFAULT_METRICS_PORT);
+        mMetricsTargetPorts = new AtomicReference<>(DEFAULT_METRICS_TARGET_PORTS);
+        mManagerAddress = new AtomicReference<>(DEFAULT_MANAGER_ADDRESS);
+        mRateLimit = new AtomicInteger(DEFAULT_RATE_LIMIT);
+        mPortRateLimit = new AtomicInteger(DEFAULT_PORT_RATE_LIMIT);
+        mConnectionRateLimit = new AtomicInteger(DEFAULT_CONNECTION_RATE_LIMIT);
+        mReloadInterval = new AtomicInteger(DEFAULT_RELOAD_INTERVAL);
+        mAccessLog = new AtomicReference<>(DEFAULT_ACCESS_LOG);
+        mAccessLogSampling = new AtomicInteger(DEFAULT_ACCESS_LOG_SAMPLING);
+        mCoalesceWrites = new AtomicBoolean(DEFAULT_COALESCE_WRITES);
+        mUpHighWaterMark = new AtomicInteger(DEFAULT_UP_HIGH_WATER_MARK);
+        mUpLowWaterMark = new AtomicInteger(DEFAULT_UP_LOW_WATER_MARK);
+        mDownHighWaterMark = new AtomicInteger(DEFAULT_DOWN_HIGH_WATER_MARK);
+        mDownLowWaterMark = new AtomicInteger(DEFAULT_DOWN_LOW_WATER_MARK);
     }
 
     public void printConfig(){
         log.info("Current config is:");
         log.info("Mode [" + (isServerMode()?"Server":"Local") + "]");
         log.info("Crypto method [" + getMethod() + "]");
+        log.info("Crypto backend [" + getCryptoBackend() + "]");
         log.info("Password [" + getPassword() + "]");
         log.info("Iv len [" + getIvLen() + "]");
         if (isServerMode()) {
@@ -164,16 +613,52 @@ public class GlobalConfig{
             log.info("Local port [" + getLocalPort() + "]");
         }
         log.info("Timeout [" + getTimeout() + "]");
+        log.info("Handshake timeout [" + getHandshakeTimeout() + "]");
+        log.info("Connect timeout [" + getConnectTimeout() + "]");
+        log.info("Workers [" + getWorkers() + "]");
+        log.info("Native transport [" + isNativeTransport() + "]");
+        log.info("No delay [" + isNoDelay() + "]");
+        log.info("Fast open [" + isFastOpen() + "]");
+        log.info("TCP quick ack [" + isTcpQuickAck() + "]");
+        log.info("Keep alive [" + isKeepAlive() + "]");
+        log.info("Accept backlog [" + getAcceptBacklog() + "]");
+        log.info("Relay mode [" + getMode() + "]");
+        log.info("UDP timeout [" + getUdpTimeout() + "]");
+        log.info("UDP max sessions [" + getUdpMaxSessions() + "]");
+        log.info("DNS server [" + getDnsServer() + "]");
+        log.info("DNS cache size [" + getDnsCacheSize() + "]");
+        if (!isServerMode() && !getServers().isEmpty()) {
+            log.info("Servers " + getServers());
+            log.info("Balance [" + getBalance() + "]");
+        }
+        if (isServerMode() && !getUsers().isEmpty()) {
+            log.info("Users " + getUsers());
+        }
+        log.info("Mux [" + isMux() + "]");
+        log.info("Mux connections [" + getMuxConnections() + "]");
+        log.info("Warm pool [" + getWarmPool() + "]");
+        log.info("Warm pool max age [" + getWarmPoolMaxAge() + "]");
+        log.info("Warm pool rate [" + getWarmPoolRate() + "]");
+        log.info("Metrics port [" + getMetricsPort() + "]");
+        log.info("Metrics target ports " + getMetricsTargetPorts());
+        log.info("Manager address [" + getManagerAddress() + "]");
+        log.info("Rate limit (KB/s) [" + getRateLimit() + "]");
+        log.info("Port rate limit (KB/s) [" + getPortRateLimit() + "]");
+        log.info("Connection rate limit (KB/s) [" + getConnectionRateLimit() + "]");
+        log.info("Reload interval [" + getReloadInterval() + "]");
+        log.info("Access log [" + getAccessLog() + "]");
+        log.info("Access log sampling [" + getAccessLogSampling() + "]");
+        log.info("Coalesce writes [" + isCoalesceWrites() + "]");
+        log.info("Up high water mark (KB) [" + getUpHighWaterMark() + "]");
+        log.info("Up low water mark (KB) [" + getUpLowWaterMark() + "]");
+        log.info("Down high water mark (KB) [" + getDownHighWaterMark() + "]");
+        log.info("Down low water mark (KB) [" + getDownLowWaterMark() + "]");
     }
 
     public static String readConfigFile(String name){
         try{
-            BufferedReader reader = new BufferedReader(new FileReader(name));
-            char [] data = new char[4096]; /*4096*/
-            int size = reader.read(data, 0, data.length);
-            if (size < 0)
-                return null;
-            return new String(data);
+            byte [] data = Files.readAllBytes(Paths.get(name));
+            return new String(data, StandardCharsets.UTF_8);
         }catch(IOException e){
             log.error("Read config file " + name + " error.", e);
             return null;
@@ -218,6 +703,11 @@ public class GlobalConfig{
             log.debug("CFG:Timeout: " + timeout);
             GlobalConfig.get().setTimeout(timeout);
         }
+        if (jsonobj.containsKey(HANDSHAKE_TIMEOUT)) {
+            int handshakeTimeout = jsonobj.getInteger(HANDSHAKE_TIMEOUT);
+            log.debug("CFG:Handshake timeout: " + handshakeTimeout);
+            GlobalConfig.get().setHandshakeTimeout(handshakeTimeout);
+        }
         if (jsonobj.containsKey(SERVER_MODE)) {
             boolean isServer = jsonobj.getBoolean(SERVER_MODE);
             log.debug("CFG:Running on server mode: " + isServer);
@@ -229,6 +719,230 @@ public class GlobalConfig{
             log.debug("CFG:IV len : " + ivLen);
             GlobalConfig.get().setIvLen(ivLen);
         }
+        if (jsonobj.containsKey(WORKERS)) {
+            int workers = jsonobj.getInteger(WORKERS);
+            log.debug("CFG:Workers: " + workers);
+            if (workers > 0) {
+                GlobalConfig.get().setWorkers(workers);
+            }
+        }
+        if (jsonobj.containsKey(CONNECT_TIMEOUT)) {
+            int connectTimeout = jsonobj.getInteger(CONNECT_TIMEOUT);
+            log.debug("CFG:Connect timeout: " + connectTimeout);
+            GlobalConfig.get().setConnectTimeout(connectTimeout);
+        }
+        if (jsonobj.containsKey(CRYPTO_BACKEND)) {
+            String backend = jsonobj.getString(CRYPTO_BACKEND);
+            log.debug("CFG:Crypto backend: " + backend);
+            GlobalConfig.get().setCryptoBackend(backend);
+        }
+        if (jsonobj.containsKey(NATIVE_TRANSPORT)) {
+            boolean nativeTransport = jsonobj.getBoolean(NATIVE_TRANSPORT);
+            log.debug("CFG:Native transport: " + nativeTransport);
+            GlobalConfig.get().setNativeTransport(nativeTransport);
+        }
+        if (jsonobj.containsKey(NO_DELAY)) {
+            boolean noDelay = jsonobj.getBoolean(NO_DELAY);
+            log.debug("CFG:No delay: " + noDelay);
+            GlobalConfig.get().setNoDelay(noDelay);
+        }
+        if (jsonobj.containsKey(FAST_OPEN)) {
+            boolean fastOpen = jsonobj.getBoolean(FAST_OPEN);
+            log.debug("CFG:Fast open: " + fastOpen);
+            GlobalConfig.get().setFastOpen(fastOpen);
+        }
+        if (jsonobj.containsKey(TCP_QUICKACK)) {
+            boolean tcpQuickAck = jsonobj.getBoolean(TCP_QUICKACK);
+            log.debug("CFG:TCP quick ack: " + tcpQuickAck);
+            GlobalConfig.get().setTcpQuickAck(tcpQuickAck);
+        }
+        if (jsonobj.containsKey(KEEP_ALIVE)) {
+            boolean keepAlive = jsonobj.getBoolean(KEEP_ALIVE);
+            log.debug("CFG:Keep alive: " + keepAlive);
+            GlobalConfig.get().setKeepAlive(keepAlive);
+        }
+        if (jsonobj.containsKey(ACCEPT_BACKLOG)) {
+            int acceptBacklog = jsonobj.getInteger(ACCEPT_BACKLOG);
+            log.debug("CFG:Accept backlog: " + acceptBacklog);
+            GlobalConfig.get().setAcceptBacklog(acceptBacklog);
+        }
+        if (jsonobj.containsKey(MODE)) {
+            String mode = jsonobj.getString(MODE);
+            log.debug("CFG:Mode: " + mode);
+            GlobalConfig.get().setMode(mode);
+        }
+        if (jsonobj.containsKey(UDP_TIMEOUT)) {
+            int udpTimeout = jsonobj.getInteger(UDP_TIMEOUT);
+            log.debug("CFG:UDP timeout: " + udpTimeout);
+            GlobalConfig.get().setUdpTimeout(udpTimeout);
+        }
+        if (jsonobj.containsKey(UDP_MAX_SESSIONS)) {
+            int udpMaxSessions = jsonobj.getInteger(UDP_MAX_SESSIONS);
+            log.debug("CFG:UDP max sessions: " + udpMaxSessions);
+            GlobalConfig.get().setUdpMaxSessions(udpMaxSessions);
+        }
+        if (jsonobj.containsKey(DNS_SERVER)) {
+            String dnsServer = jsonobj.getString(DNS_SERVER);
+            log.debug("CFG:DNS server: " + dnsServer);
+            GlobalConfig.get().setDnsServer(dnsServer);
+        }
+        if (jsonobj.containsKey(DNS_CACHE_SIZE)) {
+            int dnsCacheSize = jsonobj.getInteger(DNS_CACHE_SIZE);
+            log.debug("CFG:DNS cache size: " + dnsCacheSize);
+            GlobalConfig.get().setDnsCacheSize(dnsCacheSize);
+        }
+        if (jsonobj.containsKey(BALANCE)) {
+            String balance = jsonobj.getString(BALANCE);
+            log.debug("CFG:Balance: " + balance);
+            GlobalConfig.get().setBalance(balance);
+        }
+        if (jsonobj.containsKey(SERVERS)) {
+            // Each server falls back to the top level settings.
+            List<UpstreamConfig> servers = new ArrayList<>();
+            for (Object o : jsonobj.getJsonArray(SERVERS)) {
+                JsonObject server = (JsonObject)o;
+                servers.add(new UpstreamConfig(server.getString(SERVER_ADDR, GlobalConfig.get().getServer()),
+                        server.getInteger(SERVER_PORT, GlobalConfig.get().getPort()),
+                        server.getString(PASSWORD, GlobalConfig.get().getPassword()),
+                        server.getString(METHOD, GlobalConfig.get().getMethod())));
+            }
+            log.debug("CFG:Servers: " + servers);
+            GlobalConfig.get().setServers(servers);
+        }
+        if (jsonobj.containsKey(PORT_PASSWORD)) {
+            // "port": "password" or "port": {"password": ..., "method": ...}
+            List<UserConfig> users = new ArrayList<>();
+            for (String port : jsonobj.getJsonObject(PORT_PASSWORD).fieldNames()) {
+                Object value = jsonobj.getJsonObject(PORT_PASSWORD).getValue(port);
+                if (value instanceof JsonObject) {
+                    JsonObject user = (JsonObject)value;
+                    users.add(new UserConfig(Integer.parseInt(port),
+                            user.getString(PASSWORD, GlobalConfig.get().getPassword()),
+                            user.getString(METHOD, GlobalConfig.get().getMethod())));
+                } else {
+                    users.add(new UserConfig(Integer.parseInt(port), value.toString(), GlobalConfig.get().getMethod()));
+                }
+            }
+            log.debug("CFG:Users: " + users);
+            GlobalConfig.get().setUsers(users);
+        }
+        if (jsonobj.containsKey(MUX)) {
+            boolean mux = jsonobj.getBoolean(MUX);
+            log.debug("CFG:Mux: " + mux);
+            GlobalConfig.get().setMux(mux);
+        }
+        if (jsonobj.containsKey(MUX_CONNECTIONS)) {
+            int muxConnections = jsonobj.getInteger(MUX_CONNECTIONS);
+            log.debug("CFG:Mux connections: " + muxConnections);
+            GlobalConfig.get().setMuxConnections(muxConnections);
+        }
+        if (jsonobj.containsKey(WARM_POOL)) {
+            int warmPool = jsonobj.getInteger(WARM_POOL);
+            log.debug("CFG:Warm pool: " + warmPool);
+            GlobalConfig.get().setWarmPool(warmPool);
+        }
+        if (jsonobj.containsKey(WARM_POOL_MAX_AGE)) {
+            int warmPoolMaxAge = jsonobj.getInteger(WARM_POOL_MAX_AGE);
+            log.debug("CFG:Warm pool max age: " + warmPoolMaxAge);
+            GlobalConfig.get().setWarmPoolMaxAge(warmPoolMaxAge);
+        }
+        if (jsonobj.containsKey(WARM_POOL_RATE)) {
+            int warmPoolRate = jsonobj.getInteger(WARM_POOL_RATE);
+            log.debug("CFG:Warm pool rate: " + warmPoolRate);
+            GlobalConfig.get().setWarmPoolRate(warmPoolRate);
+        }
+        if (jsonobj.containsKey(METRICS_PORT)) {
+            int metricsPort = jsonobj.getInteger(METRICS_PORT);
+            log.debug("CFG:Metrics port: " + metricsPort);
+            GlobalConfig.get().setMetricsPort(metricsPort);
+        }
+        if (jsonobj.containsKey(METRICS_TARGET_PORTS)) {
+            List<Integer> metricsTargetPorts = new ArrayList<>();
+            for (Object o : jsonobj.getJsonArray(METRICS_TARGET_PORTS)) {
+                metricsTargetPorts.add(((Number)o).intValue());
+            }
+            log.debug("CFG:Metrics target ports: " + metricsTargetPorts);
+            GlobalConfig.get().setMetricsTargetPorts(metricsTargetPorts);
+        }
+        if (jsonobj.containsKey(MANAGER_ADDRESS)) {
+            String managerAddress = jsonobj.getString(MANAGER_ADDRESS);
+            log.debug("CFG:Manager address: " + managerAddress);
+            GlobalConfig.get().setManagerAddress(managerAddress);
+        }
+        if (jsonobj.containsKey(RATE_LIMIT)) {
+            int rateLimit = jsonobj.getInteger(RATE_LIMIT);
+            log.debug("CFG:Rate limit (KB/s): " + rateLimit);
+            GlobalConfig.get().setRateLimit(rateLimit);
+        }
+        if (jsonobj.containsKey(PORT_RATE_LIMIT)) {
+            int portRateLimit = jsonobj.getInteger(PORT_RATE_LIMIT);
+            log.debug("CFG:Port rate limit (KB/s): " + portRateLimit);
+            GlobalConfig.get().setPortRateLimit(portRateLimit);
+        }
+        if (jsonobj.containsKey(CONNECTION_RATE_LIMIT)) {
+            int connectionRateLimit = jsonobj.getInteger(CONNECTION_RATE_LIMIT);
+            log.debug("CFG:Connection rate limit (KB/s): " + connectionRateLimit);
+            GlobalConfig.get().setConnectionRateLimit(connectionRateLimit);
+        }
+        if (jsonobj.containsKey(RELOAD_INTERVAL)) {
+            int reloadInterval = jsonobj.getInteger(RELOAD_INTERVAL);
+            log.debug("CFG:Reload interval: " + reloadInterval);
+            GlobalConfig.get().setReloadInterval(reloadInterval);
+        }
+        if (jsonobj.containsKey(ACCESS_LOG)) {
+            String accessLog = jsonobj.getString(ACCESS_LOG);
+            log.debug("CFG:Access log: " + accessLog);
+            GlobalConfig.get().setAccessLog(accessLog);
+        }
+        if (jsonobj.containsKey(ACCESS_LOG_SAMPLING)) {
+            int accessLogSampling = jsonobj.getInteger(ACCESS_LOG_SAMPLING);
+            log.debug("CFG:Access log sampling: " + accessLogSampling);
+            GlobalConfig.get().setAccessLogSampling(accessLogSampling);
+        }
+        if (jsonobj.containsKey(COALESCE_WRITES)) {
+            boolean coalesceWrites = jsonobj.getBoolean(COALESCE_WRITES);
+            log.debug("CFG:Coalesce writes: " + coalesceWrites);
+            GlobalConfig.get().setCoalesceWrites(coalesceWrites);
+        }
+        if (jsonobj.containsKey(UP_HIGH_WATER_MARK)) {
+            int upHighWaterMark = jsonobj.getInteger(UP_HIGH_WATER_MARK);
+            log.debug("CFG:Up high water mark (KB): " + upHighWaterMark);
+            GlobalConfig.get().setUpHighWaterMark(upHighWaterMark);
+        }
+        if (jsonobj.containsKey(UP_LOW_WATER_MARK)) {
+            int upLowWaterMark = jsonobj.getInteger(UP_LOW_WATER_MARK);
+            log.debug("CFG:Up low water mark (KB): " + upLowWaterMark);
+            GlobalConfig.get().setUpLowWaterMark(upLowWaterMark);
+        }
+        if (jsonobj.containsKey(DOWN_HIGH_WATER_MARK)) {
+            int downHighWaterMark = jsonobj.getInteger(DOWN_HIGH_WATER_MARK);
+            log.debug("CFG:Down high water mark (KB): " + downHighWaterMark);
+            GlobalConfig.get().setDownHighWaterMark(downHighWaterMark);
+        }
+        if (jsonobj.containsKey(DOWN_LOW_WATER_MARK)) {
+            int downLowWaterMark = jsonobj.getInteger(DOWN_LOW_WATER_MARK);
+            log.debug("CFG:Down low water mark (KB): " + downLowWaterMark);
+            GlobalConfig.get().setDownLowWaterMark(downLowWaterMark);
+        }
+        // Method or password may have changed.
+        CryptoFactory.clearCache();
+    }
+
+    /**
+     * Parse the config file again into a new config, options left out of the
+     * file go back to their defaults. The current config stays if the file
+     * can't be parsed.
+     */
+    public synchronized static void reloadConfigFromFile() {
+        GlobalConfig old = get();
+        mConfig = new GlobalConfig();
+        mConfig.setConfigFile(old.getConfigFile());
+        try{
+            getConfigFromFile();
+        }catch(RuntimeException e){
+            mConfig = old;
+            throw e;
+        }
     }
 
     public static LocalConfig createLocalConfig() {
@@ -242,6 +956,45 @@ public class GlobalConfig{
                 GlobalConfig.get().getTimeout(),
                 GlobalConfig.get().getIvLen()
                 );
+        lc.workers = GlobalConfig.get().getWorkers();
+        lc.connectTimeout = GlobalConfig.get().getConnectTimeout();
+        lc.handshakeTimeout = GlobalConfig.get().getHandshakeTimeout();
+        lc.noDelay = GlobalConfig.get().isNoDelay();
+        lc.fastOpen = GlobalConfig.get().isFastOpen();
+        lc.tcpQuickAck = GlobalConfig.get().isTcpQuickAck();
+        lc.keepAlive = GlobalConfig.get().isKeepAlive();
+        lc.acceptBacklog = GlobalConfig.get().getAcceptBacklog();
+        lc.mode = GlobalConfig.get().getMode();
+        lc.udpTimeout = GlobalConfig.get().getUdpTimeout();
+        lc.udpMaxSessions = GlobalConfig.get().getUdpMaxSessions();
+        lc.dnsServer = GlobalConfig.get().getDnsServer();
+        lc.dnsCacheSize = GlobalConfig.get().getDnsCacheSize();
+        lc.balance = GlobalConfig.get().getBalance();
+        lc.servers = GlobalConfig.get().getServers();
+        if (lc.servers.isEmpty()) {
+            lc.servers = Collections.singletonList(new UpstreamConfig(lc.server, lc.serverPort, lc.password, lc.method));
+        }
+        lc.users = GlobalConfig.get().getUsers();
+        lc.mux = GlobalConfig.get().isMux();
+        lc.muxConnections = GlobalConfig.get().getMuxConnections();
+        lc.warmPool = GlobalConfig.get().getWarmPool();
+        lc.warmPoolMaxAge = GlobalConfig.get().getWarmPoolMaxAge();
+        lc.warmPoolRate = GlobalConfig.get().getWarmPoolRate();
+        lc.metricsPort = GlobalConfig.get().getMetricsPort();
+        lc.metricsTargetPorts = GlobalConfig.get().getMetricsTargetPorts();
+        lc.managerAddress = GlobalConfig.get().getManagerAddress();
+        lc.rateLimit = GlobalConfig.get().getRateLimit();
+        lc.portRateLimit = GlobalConfig.get().getPortRateLimit();
+        lc.connectionRateLimit = GlobalConfig.get().getConnectionRateLimit();
+        lc.reloadInterval = GlobalConfig.get().getReloadInterval();
+        lc.accessLog = GlobalConfig.get().getAccessLog();
+        lc.accessLogSampling = GlobalConfig.get().getAccessLogSampling();
+        lc.coalesceWrites = GlobalConfig.get().isCoalesceWrites();
+        lc.nativeTransport = GlobalConfig.get().isNativeTransport();
+        lc.upHighWaterMark = GlobalConfig.get().getUpHighWaterMark();
+        lc.upLowWaterMark = GlobalConfig.get().getUpLowWaterMark();
+        lc.downHighWaterMark = GlobalConfig.get().getDownHighWaterMark();
+        lc.downLowWaterMark = GlobalConfig.get().getDownLowWaterMark();
         GlobalConfig.get().releaseLock();
         return lc;
     }
@@ -1,6 +1,9 @@
 package shadowsocks.util;
 
-public class LocalConfig{
+import java.util.Collections;
+import java.util.List;
+
+public class LocalConfig implements Cloneable{
     public String password;
     public String method;
     public String server;
@@ -8,6 +11,44 @@ public class LocalConfig{
     public int localPort;
     public int timeout;
     public int ivLen;
+    public int workers;
+    public int connectTimeout;
+    public int handshakeTimeout;
+    public boolean noDelay;
+    public boolean fastOpen;
+    public boolean tcpQuickAck;
+    public boolean keepAlive;
+    public int acceptBacklog;
+    public String mode;
+    public int udpTimeout;
+    public int udpMaxSessions;
+    public String dnsServer;
+    public int dnsCacheSize;
+    public String balance;
+    // Never empty, the server above when no list is configured.
+    public List<UpstreamConfig> servers;
+    // Server only, the ports to listen on instead of serverPort if not empty.
+    public List<UserConfig> users;
+    public boolean mux;
+    public int muxConnections;
+    public int warmPool;
+    public int warmPoolMaxAge;
+    public int warmPoolRate;
+    public int metricsPort;
+    public List<Integer> metricsTargetPorts;
+    public String managerAddress;
+    public int rateLimit;
+    public int portRateLimit;
+    public int connectionRateLimit;
+    public int reloadInterval;
+    public String accessLog;
+    public int accessLogSampling;
+    public boolean coalesceWrites;
+    public boolean nativeTransport;
+    public int upHighWaterMark;
+    public int upLowWaterMark;
+    public int downHighWaterMark;
+    public int downLowWaterMark;
 
     public LocalConfig(String k, String m, String s, int p, int lp, int t, int i){
         password = k;
@@ -18,4 +59,29 @@ public class LocalConfig{
         timeout = t;
         ivLen = i;
     }
+
+    /**
+     * This config for one user, listening on its port.
+     */
+    public LocalConfig forUser(UserConfig user){
+        LocalConfig lc;
+        try {
+            lc = (LocalConfig)clone();
+        } catch (CloneNotSupportedException e) {
+            throw new AssertionError(e);
+        }
+        lc.serverPort = user.port;
+        lc.password = user.password;
+        lc.method = user.method;
+        lc.users = Collections.emptyList();
+        return lc;
+    }
+
+    public boolean isTcpEnabled(){
+        return !"udp_only".equals(mode);
+    }
+
+    public boolean isUdpEnabled(){
+        return "tcp_and_udp".equals(mode) || "udp_only".equals(mode);
+    }
 }
@@ -0,0 +1,23 @@
+package shadowsocks.util;
+
+/**
+ * One of the servers the local may relay to.
+ */
+public class UpstreamConfig{
+    public String server;
+    public int serverPort;
+    public String password;
+    public String method;
+
+    public UpstreamConfig(String s, int p, String k, String m){
+        server = s;
+        serverPort = p;
+        password = k;
+        method = m;
+    }
+
+    @Override
+    public String toString(){
+        return server + ":" + serverPort;
+    }
+}
@@ -0,0 +1,21 @@
+package shadowsocks.util;
+
+/**
+ * One user of a multi-user server, a port with its own password and method.
+ */
+public class UserConfig{
+    public int port;
+    public String password;
+    public String method;
+
+    public UserConfig(int p, String k, String m){
+        port = p;
+        password = k;
+        method = m;
+    }
+
+    @Override
+    public String toString(){
+        return String.valueOf(port);
+    }
+}
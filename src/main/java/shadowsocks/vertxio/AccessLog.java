@@ -0,0 +1,256 @@
+package shadowsocks.vertxio;
+
+import io.vertx.core.net.NetSocket;
+import io.vertx.core.net.SocketAddress;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * One line per connection, a JSON object:
+ *
+ *   {"time":"2026-10-18T08:00:00.123Z","client":"1.2.3.4:5678","port":8388,
+ *    "target":"example.com:443","up":517,"down":4096,"duration":1200,"close":"end"}
+ *
+ * time is when it closed, up and down are payload bytes, duration is in ms.
+ * target is null when the connection closed before sending its address.
+ *
+ * The event loops only add an entry to a lock-free queue, a thread of its own
+ * formats them and writes a batch with one call, the event loops never wait
+ * on the file. The queue is bounded, when the writer can't keep up entries
+ * are dropped and the count goes to the file.
+ *
+ * With sampling n one connection in n is logged, failed ones always are.
+ * Shared by everything in the process, like the metrics.
+ */
+public class AccessLog {
+
+    public static Logger log = LogManager.getLogger(AccessLog.class.getName());
+
+    // Close reasons, END is the only one that is not a failure.
+    public final static String END = "end";
+    public final static String TIMEOUT = "timeout";
+    public final static String ERROR = "error";
+    public final static String CRYPTO = "crypto";
+    public final static String CONNECT = "connect";
+    public final static String PROTOCOL = "protocol";
+    // Mux stream reset by the peer or lost with its connection.
+    public final static String RESET = "reset";
+
+    private final static int MAX_QUEUE = 64 * 1024;
+    private final static int BATCH = 1024;
+    // ms the writer sleeps once the queue is empty.
+    private final static long FLUSH_INTERVAL = 100;
+
+    private static class Entry {
+        final long time;
+        final SocketAddress client;
+        final int port;
+        final String host;
+        final int targetPort;
+        final long up;
+        final long down;
+        final long duration;
+        final String reason;
+
+        Entry(long time, SocketAddress client, int port, String host, int targetPort,
+              long up, long down, long duration, String reason) {
+            this.time = time;
+            this.client = client;
+            this.port = port;
+            this.host = host;
+            this.targetPort = targetPort;
+            this.up = up;
+            this.down = down;
+            this.duration = duration;
+            this.reason = reason;
+        }
+    }
+
+    private static volatile AccessLog sLog;
+    // ShadowsocksVertx instances using it, guarded by the class.
+    private static int sOpened;
+
+    private final String mPath;
+    private final int mSampling;
+    private final ConcurrentLinkedQueue<Entry> mQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger mSize = new AtomicInteger();
+    private final LongAdder mDropped = new LongAdder();
+    private final Writer mOut;
+    private final Thread mThread;
+    private volatile boolean mRunning = true;
+
+    private AccessLog(String path, int sampling) throws IOException {
+        mPath = path;
+        mSampling = Math.max(1, sampling);
+        mOut = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(path, true), StandardCharsets.UTF_8), 64 * 1024);
+        mThread = new Thread(this::run, "access-log");
+        mThread.setDaemon(true);
+        mThread.start();
+        // What is queued is still written when the process is stopped.
+        Runtime.getRuntime().addShutdownHook(new Thread(this::stop));
+    }
+
+    /**
+     * Starts logging to path, a second open only counts one more user.
+     */
+    public synchronized static void open(String path, int sampling) {
+        if (sLog != null) {
+            if (!sLog.mPath.equals(path)) {
+                log.warn("Access log already written to " + sLog.mPath + ", " + path + " ignored.");
+            }
+            sOpened++;
+            return;
+        }
+        try{
+            sLog = new AccessLog(path, sampling);
+            sOpened = 1;
+            log.info("Access log at " + path + (sampling > 1 ? ", one connection in " + sampling : ""));
+        }catch(IOException e){
+            log.error("Can't open access log " + path + ". " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes what is queued and stops once the last user closed it.
+     */
+    public synchronized static void close() {
+        if (sLog == null || --sOpened > 0)
+            return;
+        sLog.stop();
+        sLog = null;
+    }
+
+    private void stop() {
+        mRunning = false;
+        LockSupport.unpark(mThread);
+        try{
+            mThread.join(TimeUnit.SECONDS.toMillis(1));
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public static boolean isEnabled() {
+        return sLog != null;
+    }
+
+    /**
+     * A connection closed. client is the socket of the program or of the
+     * local, host null if the target is not known, start the
+     * currentTimeMillis() it was accepted at.
+     */
+    public static void log(NetSocket client, int port, String host, int targetPort,
+                           long up, long down, long start, String reason) {
+        AccessLog accessLog = sLog;
+        if (accessLog == null)
+            return;
+        if (accessLog.mSampling > 1 && END.equals(reason)
+                && ThreadLocalRandom.current().nextInt(accessLog.mSampling) != 0)
+            return;
+        if (accessLog.mSize.incrementAndGet() > MAX_QUEUE) {
+            accessLog.mSize.decrementAndGet();
+            accessLog.mDropped.increment();
+            return;
+        }
+        long now = System.currentTimeMillis();
+        accessLog.mQueue.offer(new Entry(now, client.remoteAddress(), port,
+                host, targetPort, up, down, now - start, reason));
+    }
+
+    private void run() {
+        StringBuilder batch = new StringBuilder(BATCH * 160);
+        boolean failed = false;
+        while (true) {
+            // Read before draining, what is queued before a close is written.
+            boolean running = mRunning;
+            int count = 0;
+            Entry entry;
+            while (count < BATCH && (entry = mQueue.poll()) != null) {
+                format(batch, entry);
+                count++;
+            }
+            mSize.addAndGet(-count);
+            long dropped = mDropped.sumThenReset();
+            if (dropped > 0) {
+                batch.append("{\"time\":\"").append(Instant.now()).append("\",\"dropped\":").append(dropped).append("}\n");
+            }
+            try{
+                if (batch.length() > 0) {
+                    mOut.append(batch);
+                }
+                if (count < BATCH) {
+                    mOut.flush();
+                }
+                failed = false;
+            }catch(IOException e){
+                // Once per failure, not for every batch.
+                if (!failed) {
+                    log.error("Access log write failed. " + e.getMessage());
+                }
+                failed = true;
+            }
+            batch.setLength(0);
+            if (count == BATCH)
+                continue;
+            if (!running)
+                break;
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(FLUSH_INTERVAL));
+        }
+        try{
+            mOut.close();
+        }catch(IOException e){
+            log.error("Access log close failed. " + e.getMessage());
+        }
+    }
+
+    private static void format(StringBuilder sb, Entry e) {
+        sb.append("{\"time\":\"").append(Instant.ofEpochMilli(e.time)).append('"');
+        sb.append(",\"client\":");
+        if (e.client != null) {
+            quote(sb, e.client.toString());
+        }else{
+            sb.append("null");
+        }
+        sb.append(",\"port\":").append(e.port);
+        sb.append(",\"target\":");
+        if (e.host != null) {
+            // Any bytes may come as a domain.
+            quote(sb, e.host + ":" + e.targetPort);
+        }else{
+            sb.append("null");
+        }
+        sb.append(",\"up\":").append(e.up);
+        sb.append(",\"down\":").append(e.down);
+        sb.append(",\"duration\":").append(e.duration);
+        sb.append(",\"close\":\"").append(e.reason).append("\"}\n");
+    }
+
+    private static void quote(StringBuilder sb, String s) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int)c));
+            }else{
+                sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+}
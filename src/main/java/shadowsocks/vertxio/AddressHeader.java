@@ -0,0 +1,83 @@
+package shadowsocks.vertxio;
+
+import io.vertx.core.buffer.Buffer;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Address part of socks5 and shadowsocks requests: type + address + port.
+ */
+class AddressHeader {
+
+    final static int ADDR_TYPE_IPV4 = 1;
+    final static int ADDR_TYPE_HOST = 3;
+    final static int ADDR_TYPE_IPV6 = 4;
+
+    final String host;
+    final int port;
+    // Bytes taken by the header.
+    final int length;
+
+    private AddressHeader(String host, int port, int length) {
+        this.host = host;
+        this.port = port;
+        this.length = length;
+    }
+
+    /**
+     * Parse the header starting at offset.
+     * Returns null if the buffer doesn't hold the whole header yet, throws
+     * IllegalArgumentException on an unknown address type.
+     */
+    static AddressHeader parse(Buffer buffer, int offset) {
+        int bufferLength = buffer.length() - offset;
+        if (bufferLength < 1)
+            return null;
+        int addrType = buffer.getByte(offset);
+        String host;
+        int current;
+        if (addrType == ADDR_TYPE_IPV4 || addrType == ADDR_TYPE_IPV6) {
+            int addrLength = addrType == ADDR_TYPE_IPV4 ? 4 : 16;
+            // type(1) + addr + port(2)
+            if (bufferLength < addrLength + 3)
+                return null;
+            try {
+                host = InetAddress.getByAddress(buffer.getBytes(offset + 1, offset + 1 + addrLength)).getHostAddress();
+            } catch (UnknownHostException e) {
+                throw new IllegalArgumentException(e);
+            }
+            current = addrLength + 1;
+        } else if (addrType == ADDR_TYPE_HOST) {
+            if (bufferLength < 2)
+                return null;
+            short hostLength = buffer.getUnsignedByte(offset + 1);
+            // type(1) + len(1) + host + port(2)
+            if (bufferLength < hostLength + 4)
+                return null;
+            host = buffer.getString(offset + 2, offset + hostLength + 2);
+            current = hostLength + 2;
+        } else {
+            throw new IllegalArgumentException("Unsupport addr type " + addrType);
+        }
+        int port = buffer.getUnsignedShort(offset + current);
+        return new AddressHeader(host, port, current + 2);
+    }
+
+    /**
+     * Header of an IP literal, as given by a socket address.
+     */
+    static Buffer encode(String ip, int port) {
+        byte[] addr;
+        try {
+            addr = InetAddress.getByName(ip).getAddress();
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException(e);
+        }
+        Buffer header = Buffer.buffer(addr.length + 3);
+        header.appendByte((byte)(addr.length == 4 ? ADDR_TYPE_IPV4 : ADDR_TYPE_IPV6));
+        header.appendBytes(addr);
+        header.appendShort((short)port);
+        return header;
+    }
+}
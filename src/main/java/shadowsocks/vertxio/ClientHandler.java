@@ -1,10 +1,10 @@
 package shadowsocks.vertxio;
 
+import io.netty.buffer.ByteBuf;
 import io.vertx.core.Handler;
 import io.vertx.core.Vertx;
 import io.vertx.core.buffer.Buffer;
 import io.vertx.core.net.NetClient;
-import io.vertx.core.net.NetClientOptions;
 import io.vertx.core.net.NetSocket;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -13,29 +13,66 @@ import shadowsocks.crypto.CryptoFactory;
 import shadowsocks.crypto.SSCrypto;
 import shadowsocks.util.LocalConfig;
 
-import java.net.InetAddress;
-import java.net.UnknownHostException;
-
-public class ClientHandler implements Handler<Buffer> {
+public class ClientHandler implements Handler<Buffer>, TimeoutWheel.Timeoutable {
 
     public static Logger log = LogManager.getLogger(ClientHandler.class.getName());
 
-    private final static int ADDR_TYPE_IPV4 = 1;
-    private final static int ADDR_TYPE_HOST = 3;
+    private final static int CMD_CONNECT = 1;
+    private final static int CMD_UDP_ASSOCIATE = 3;
+    // Servers tried for one connection.
+    private final static int MAX_CONNECT_ATTEMPTS = 2;
 
     private Vertx mVertx;
+    private NetClient mNetClient;
+    private TimeoutWheel mTimeoutWheel;
+    private TimeoutWheel.Entry mTimeout;
+    // ms, from the wheel clock.
+    private long mStartTime;
+    private long mLastActive;
     private NetSocket mLocalSocket;
     private NetSocket mServerSocket;
     private LocalConfig mConfig;
     private int mCurrentStage;
+    // Bytes received before the server is connected, parsed from mReadIndex.
+    // Once the address is parsed, the rest (the remote header and the data
+    // following it) is sent to the server as it is.
     private Buffer mBufferQueue;
+    private int mReadIndex;
     private SSCrypto mCrypto;
+    private UpstreamPool mUpstreams;
+    private RelayContext mContext;
+    // The server of this connection, null once released.
+    private UpstreamPool.Upstream mUpstream;
+    private boolean mUdpAssociate;
+    // null until the target is known.
+    private Metrics.Counters mMetrics;
+    // Rate limit of each direction, null without one.
+    private RateLimiter.Bucket mUpLimit;
+    private RateLimiter.Bucket mDownLimit;
+    // Both directions once the server is connected.
+    private Pump mUp;
+    private Pump mDown;
+    // The program shut down its output before the server was connected.
+    private boolean mLocalEnded;
+    // Closing after an end, the sockets close once their queued writes are out.
+    private boolean mFlushing;
+    // For the access log, the target is null until the address is parsed.
+    private String mTargetHost;
+    private int mTargetPort;
+    private long mBytesUp;
+    private long mBytesDown;
+    // ms, the wheel clock is too coarse for the duration.
+    private long mAcceptTime;
 
     private class Stage {
         final public static int HELLO = 0;
         final public static int HEADER = 1;
         final public static int ADDRESS = 2;
         final public static int DATA = 3;
+        // UDP associate, the connection only holds the association.
+        final public static int UDP = 4;
+        // Handed over to a mux stream.
+        final public static int MUX = 5;
         final public static int DESTORY = 100;
     }
 
@@ -45,227 +82,346 @@ public class ClientHandler implements Handler<Buffer> {
         }
     }
 
-    //When any sockets meet close/end/exception, destory the others.
+    //When any sockets meet end/exception, destory the others. Not on close, the
+    //socket may still hold paused data then, its end comes after that data.
     private void setFinishHandler(NetSocket socket) {
-        socket.closeHandler(v -> {
-            destory();
-        });
         socket.endHandler(v -> {
-            destory();
+            destory(AccessLog.END, true);
         });
         socket.exceptionHandler(e -> {
             log.error("Client setFinishHandler Exception " + e.getMessage()
                     +" local " + socket.localAddress() + " , remote " + socket.remoteAddress());
-            destory();
+            destory(AccessLog.ERROR);
         });
     }
 
-    public ClientHandler(Vertx vertx, NetSocket socket, LocalConfig config) {
-        mVertx = vertx;
+    public ClientHandler(NetSocket socket, RelayContext context) {
+        mVertx = context.vertx;
+        mNetClient = context.netClient;
+        mTimeoutWheel = context.timeoutWheel;
+        mStartTime = mTimeoutWheel.now();
+        mAcceptTime = System.currentTimeMillis();
+        mLastActive = mStartTime;
         mLocalSocket = socket;
-        mConfig = config;
+        mConfig = context.config;
         mCurrentStage = Stage.HELLO;
         mBufferQueue = Buffer.buffer();
+        mReadIndex = 0;
         setFinishHandler(mLocalSocket);
-        try{
-            mCrypto = CryptoFactory.create(mConfig.method, mConfig.password);
-        }catch(Exception e){
-            //Will never happen, we check this before.
-        }
+        mUpstreams = context.upstreams;
+        mContext = context;
+        mTimeout = mTimeoutWheel.add(this);
     }
 
-    private Buffer compactBuffer(int start) {
-        mBufferQueue = Buffer.buffer().appendBuffer(mBufferQueue.slice(start, mBufferQueue.length()));
-        return mBufferQueue;
+    @Override
+    public long getDeadline() {
+        if (mCurrentStage == Stage.DESTORY)
+            return mFlushing ? mLastActive + mConfig.timeout * 1000L : -1;
+        if (mCurrentStage == Stage.MUX)
+            return -1;
+        // The association lasts as long as the program keeps the connection.
+        if (mCurrentStage == Stage.UDP)
+            return Long.MAX_VALUE;
+        if (mServerSocket == null)
+            return mStartTime + mConfig.handshakeTimeout * 1000L;
+        return mLastActive + mConfig.timeout * 1000L;
     }
 
-    private Buffer cleanBuffer() {
-        mBufferQueue = Buffer.buffer();
-        return mBufferQueue;
+    @Override
+    public void onTimeout() {
+        log.debug((mServerSocket == null ? "Handshake" : "Idle") + " timeout, local " + mLocalSocket.remoteAddress());
+        destory(AccessLog.TIMEOUT);
+    }
+
+    // Bytes not parsed yet.
+    private int remaining() {
+        return mBufferQueue.length() - mReadIndex;
     }
 
+    private void skip(int length) {
+        mReadIndex += length;
+        if (mReadIndex == mBufferQueue.length()) {
+            mBufferQueue = Buffer.buffer();
+            mReadIndex = 0;
+        }
+    }
 
     private boolean handleStageHello() {
-        int bufferLength = mBufferQueue.length();
+        int bufferLength = remaining();
         // VERSION + METHOD LEN + METHOD
         if (bufferLength < 3)
             return false;
         //SOCK5
-        if (mBufferQueue.getByte(0) != 5) {
+        if (mBufferQueue.getByte(mReadIndex) != 5) {
             log.warn("Protocol error.");
             return true;
         }
-        int methodLen = mBufferQueue.getByte(1);
+        int methodLen = mBufferQueue.getUnsignedByte(mReadIndex + 1);
         if (bufferLength < methodLen + 2)
             return false;
         byte [] msg = {0x05, 0x00};
         mLocalSocket.write(Buffer.buffer(msg));
         //Discard the method list
-        cleanBuffer();
+        skip(methodLen + 2);
         nextStage();
+        if (remaining() > 0) {
+            return handleStageHeader();
+        }
         return false;
     }
 
     private boolean handleStageHeader() {
-        int bufferLength = mBufferQueue.length();
+        int bufferLength = remaining();
         // VERSION + MODE + RSV + ADDR TYPE
         if (bufferLength < 4)
             return false;
         // 1 connect
         // 2 bind
         // 3 udp associate
-        // just support mode 1 now
-        if (mBufferQueue.getByte(1) != 1) {
-            log.warn("Mode != 1");
+        int cmd = mBufferQueue.getByte(mReadIndex + 1);
+        if (cmd == CMD_UDP_ASSOCIATE && mConfig.isUdpEnabled()) {
+            mUdpAssociate = true;
+        } else if (cmd != CMD_CONNECT) {
+            log.warn("Unsupport command " + cmd);
+            // command not supported
+            byte [] msg = {0x05, 0x07, 0x00, 0x01, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00};
+            mLocalSocket.write(Buffer.buffer(msg));
             return true;
         }
         nextStage();
         //keep the addr type
-        compactBuffer(3);
-        if (mBufferQueue.length() > 0) {
+        skip(3);
+        if (remaining() > 0) {
             return handleStageAddress();
         }
         return false;
     }
 
     private boolean handleStageAddress() {
-        int bufferLength = mBufferQueue.length();
-        String addr = null;
-        // Construct the remote header.
-        Buffer remoteHeader = Buffer.buffer();
-        int addrType = mBufferQueue.getByte(0);
-
-        remoteHeader.appendByte((byte)(addrType));
-
-        if (addrType == ADDR_TYPE_IPV4) {
-            // addr type (1) + ipv4(4) + port(2)
-            if (bufferLength < 7)
-                return false;
-            try{
-                addr = InetAddress.getByAddress(mBufferQueue.getBytes(1, 5)).toString();
-            }catch(UnknownHostException e){
-                log.error("UnknownHostException.", e);
-                return true;
-            }
-            remoteHeader.appendBytes(mBufferQueue.getBytes(1,5));
-            compactBuffer(5);
-        }else if (addrType == ADDR_TYPE_HOST) {
-            short hostLength = mBufferQueue.getUnsignedByte(1);
-            // addr type(1) + len(1) + host + port(2)
-            if (bufferLength < hostLength + 4)
-                return false;
-            addr = mBufferQueue.getString(2, hostLength + 2);
-            remoteHeader.appendByte((byte)hostLength).appendString(addr);
-            compactBuffer(hostLength + 2);
-        }else {
-            log.warn("Unsupport addr type " + addrType);
+        AddressHeader header;
+        try {
+            header = AddressHeader.parse(mBufferQueue, mReadIndex);
+        } catch (IllegalArgumentException e) {
+            log.warn(e.getMessage());
             return true;
         }
-        int port = mBufferQueue.getUnsignedShort(0);
-        remoteHeader.appendShort((short)port);
-        compactBuffer(2);
-        log.info("Connecting to " + addr + ":" + port);
-        connectToRemote(mConfig.server, mConfig.serverPort, remoteHeader);
+        if (header == null)
+            return false;
+        if (mUdpAssociate) {
+            // The relay shares the port number, reply with the address the program reached us on.
+            Buffer reply = Buffer.buffer(new byte[]{0x05, 0x00, 0x00})
+                .appendBuffer(AddressHeader.encode(mLocalSocket.localAddress().host(), mConfig.localPort));
+            mLocalSocket.write(reply);
+            log.debug("UDP associate from " + mLocalSocket.remoteAddress());
+            mBufferQueue = null;
+            mCurrentStage = Stage.UDP;
+            return false;
+        }
+        if (mContext.muxPool != null) {
+            log.debug("Connecting to " + header.host + ":" + header.port + " (mux)");
+            byte [] msg = {0x05, 0x00, 0x00, 0x01, 0x00, 0x00, 0x00, 0x00, 0x00, 0x01};
+            mLocalSocket.write(Buffer.buffer(msg));
+            Buffer address = mBufferQueue.getBuffer(mReadIndex, mReadIndex + header.length);
+            Buffer data = mBufferQueue.slice(mReadIndex + header.length, mBufferQueue.length());
+            mBufferQueue = null;
+            mCurrentStage = Stage.MUX;
+            mTimeoutWheel.remove(mTimeout);
+            mContext.muxPool.open(mContext, address, mLocalSocket, data);
+            return false;
+        }
+        // The remote header is the address part of the request, keep it in the queue.
+        log.debug("Connecting to " + header.host + ":" + header.port);
+        mTargetHost = header.host;
+        mTargetPort = header.port;
+        mMetrics = Metrics.get(mConfig.localPort, header.port);
+        mMetrics.opened();
+        Pump.allowHalfClose(mLocalSocket);
+        mBytesUp = remaining() - header.length;
+        mMetrics.bytesUp.add(mBytesUp);
+        if (mContext.rateLimiter != null) {
+            mUpLimit = mContext.rateLimiter.newBucket(mConfig.localPort, true);
+            mDownLimit = mContext.rateLimiter.newBucket(mConfig.localPort, false);
+        }
+        connectToRemote(null, 1);
         nextStage();
         return false;
     }
 
-    private void connectToRemote(String addr, int port, Buffer remoteHeader) {
-        // 5s timeout.
-        NetClientOptions options = new NetClientOptions().setConnectTimeout(5000);
-        NetClient client = mVertx.createNetClient(options);
-        client.connect(port, addr, res -> {  // connect handler
+    private void connectToRemote(UpstreamPool.Upstream exclude, int attempt) {
+        UpstreamPool.Upstream upstream = mUpstreams.select(exclude);
+        mUpstream = upstream;
+        try{
+            mCrypto = CryptoFactory.create(upstream.config.method, upstream.config.password);
+        }catch(Exception e){
+            //Will never happen, we check this before.
+        }
+        NetSocket warm = mContext.warmPool != null ? mContext.warmPool.take(upstream) : null;
+        if (warm != null) {
+            remoteConnected(warm);
+            return;
+        }
+        long start = System.nanoTime();
+        mNetClient.connect(upstream.config.serverPort, upstream.config.server, res -> {  // connect handler
             if (!res.succeeded()) {
-                log.error("Failed to connect " + addr + ":" + port + ". Caused by " + res.cause().getMessage());
-                destory();
+                upstream.failed();
+                mMetrics.connectFailures.increment();
+                releaseUpstream();
+                if (mCurrentStage != Stage.DESTORY && attempt < MAX_CONNECT_ATTEMPTS && mUpstreams.size() > 1) {
+                    log.warn("Failed to connect " + upstream.config + ", try another server. Caused by " + res.cause().getMessage());
+                    connectToRemote(upstream, attempt + 1);
+                    return;
+                }
+                log.error("Failed to connect " + upstream.config + ". Caused by " + res.cause().getMessage());
+                destory(AccessLog.CONNECT);
                 return;
             }
-            mServerSocket = res.result();
-            setFinishHandler(mServerSocket);
-            mServerSocket.handler(buffer -> { // remote socket data handler
-                try {
-                    byte [] data = buffer.getBytes();
-                    byte [] decryptData = mCrypto.decrypt(data, data.length);
-                    flowControl(mLocalSocket, mServerSocket);
-                    mLocalSocket.write(Buffer.buffer(decryptData));
-                }catch(CryptoException e){
-                    log.error("Catch exception", e);
-                    destory();
-                }
-            });
-            // reply to program.
-            byte [] msg = {0x05, 0x00, 0x00, 0x01, 0x00, 0x00, 0x00, 0x00, 0x00, 0x01};
-            mLocalSocket.write(Buffer.buffer(msg));
-            // send remote header.
-            try{
+            upstream.connected(System.nanoTime() - start);
+            remoteConnected(res.result());
+        });
+    }
 
-                byte [] header = remoteHeader.getBytes();
-                byte [] encryptHeader = mCrypto.encrypt(header, header.length);
-                mServerSocket.write(Buffer.buffer(encryptHeader));
+    private void remoteConnected(NetSocket socket) {
+        if (mCurrentStage == Stage.DESTORY) {
+            socket.close();
+            return;
+        }
+        mServerSocket = socket;
+        setFinishHandler(mServerSocket);
+        mUp = new Pump(mContext, mLocalSocket, mServerSocket, true, mUpLimit, mMetrics);
+        mDown = new Pump(mContext, mServerSocket, mLocalSocket, false, mDownLimit, mMetrics);
+        Pump.allowHalfClose(mServerSocket);
+        mServerSocket.handler(buffer -> { // remote socket data handler
+            mLastActive = mTimeoutWheel.now();
+            if (buffer.length() == 0) {
+                ended(mDown);
+                return;
+            }
+            try {
+                ByteBuf data = mCrypto.decrypt(buffer.getByteBuf());
+                if (!data.isReadable())
+                    return;
+                int length = data.readableBytes();
+                mBytesDown += length;
+                mMetrics.bytesDown.add(length);
+                mDown.write(Buffer.buffer(data), length);
             }catch(CryptoException e){
-                log.error("Catch exception", e);
-                destory();
+                log.error("Catch exception " + e.getMessage() + ", remote " + mServerSocket.remoteAddress());
+                mMetrics.cryptoErrors.increment();
+                destory(AccessLog.CRYPTO);
             }
         });
+        // reply to program.
+        byte [] msg = {0x05, 0x00, 0x00, 0x01, 0x00, 0x00, 0x00, 0x00, 0x00, 0x01};
+        mLocalSocket.write(Buffer.buffer(msg));
+        // send remote header and what came with it.
+        Buffer pending = mBufferQueue.slice(mReadIndex, mBufferQueue.length());
+        mBufferQueue = null;
+        sendToRemote(pending);
+        if (mLocalEnded) {
+            ended(mUp);
+        }
     }
 
     private void sendToRemote(Buffer buffer) {
-
-        Buffer chunkBuffer = Buffer.buffer();
         try{
-
-            chunkBuffer.appendBuffer(buffer);
-            byte [] data = chunkBuffer.getBytes();
-            byte [] encryptData = mCrypto.encrypt(data, data.length);
-            if (mServerSocket.writeQueueFull()) {
-                log.warn("-->remote write queue full");
-            }
-            flowControl(mServerSocket, mLocalSocket);
-            mServerSocket.write(Buffer.buffer(encryptData));
+            int length = buffer.length();
+            // Encrypted in place, the buffer is not used after this.
+            ByteBuf data = mCrypto.encrypt(buffer.getByteBuf());
+            mUp.write(Buffer.buffer(data), length);
         }catch(CryptoException e){
-            log.error("Catch exception", e);
-            destory();
+            log.error("Catch exception " + e.getMessage());
+            mMetrics.cryptoErrors.increment();
+            destory(AccessLog.CRYPTO);
         }
     }
 
-    private void flowControl(NetSocket a, NetSocket b) {
-        if (a.writeQueueFull()) {
-            b.pause();
-            a.drainHandler(done -> {
-                b.resume();
-            });
+    // The peer of one side shut down its output, the connection is done once both did.
+    private void ended(Pump pump) {
+        pump.end();
+        if (mUp.isEnded() && mDown.isEnded()) {
+            destory(AccessLog.END, true);
         }
     }
 
-    private boolean handleStageData() {
-
-        // Chunk max length = 8192.
-        int chunkMaxLen = 8192;
+    private boolean handleStageData(Buffer buffer) {
+        if (buffer.length() == 0) {
+            if (mServerSocket == null) {
+                mLocalEnded = true;
+            }else{
+                ended(mUp);
+            }
+            return false;
+        }
+        mBytesUp += buffer.length();
+        mMetrics.bytesUp.add(buffer.length());
+        if (mServerSocket == null) {
+            //remote is not ready, hold the data.
+            mBufferQueue.appendBuffer(buffer);
+            return false;
+        }
+        sendToRemote(buffer);
+        return false;
+    }
 
-        while (mBufferQueue.length() > 0) {
-            int bufferLength = mBufferQueue.length();
-            int end = bufferLength > chunkMaxLen ? chunkMaxLen : bufferLength;
-            sendToRemote(mBufferQueue.slice(0, end));
-            compactBuffer(end);
+    private void releaseUpstream() {
+        if (mUpstream != null) {
+            mUpstream.release();
+            mUpstream = null;
         }
+    }
 
-        return false;
+    private void destory(String reason) {
+        destory(reason, false);
     }
 
-    private synchronized void destory() {
+    // flush: one side ended, what is queued for the other one still goes out.
+    // reason: why it closed, for the access log.
+    private synchronized void destory(String reason, boolean flush) {
         if (mCurrentStage != Stage.DESTORY) {
+            // A mux stream logs its own.
+            if (mCurrentStage != Stage.MUX) {
+                AccessLog.log(mLocalSocket, mConfig.localPort, mTargetHost, mTargetPort,
+                        mBytesUp, mBytesDown, mAcceptTime, reason);
+            }
             mCurrentStage = Stage.DESTORY;
+            if (mMetrics != null) {
+                mMetrics.closed();
+            }
+        }
+        releaseUpstream();
+        if (mUp != null) {
+            mUp.close();
+            mDown.close();
+        }
+        mFlushing = flush;
+        // Kept while flushing, it still times out.
+        if (!flush) {
+            mTimeoutWheel.remove(mTimeout);
+        }
+        close(mLocalSocket, flush);
+        close(mServerSocket, flush);
+    }
+
+    private void close(NetSocket socket, boolean flush) {
+        if (socket == null)
+            return;
+        if (flush) {
+            // Closing drops queued writes, close once they are out.
+            socket.write(Buffer.buffer(), v -> socket.close());
+        }else{
+            socket.close();
         }
-        if (mLocalSocket != null)
-            mLocalSocket.close();
-        if (mServerSocket != null)
-            mServerSocket.close();
     }
 
     @Override
     public void handle(Buffer buffer) {
         boolean finish = false;
-        mBufferQueue.appendBuffer(buffer);
+        mLastActive = mTimeoutWheel.now();
+        if (mCurrentStage == Stage.DATA) {
+            finish = handleStageData(buffer);
+        } else if (mCurrentStage == Stage.HELLO || mCurrentStage == Stage.HEADER || mCurrentStage == Stage.ADDRESS) {
+            mBufferQueue.appendBuffer(buffer);
+        }
         switch (mCurrentStage) {
             case Stage.HELLO:
                 finish = handleStageHello();
@@ -276,13 +432,10 @@ public class ClientHandler implements Handler<Buffer> {
             case Stage.ADDRESS:
                 finish = handleStageAddress();
                 break;
-            case Stage.DATA:
-                finish = handleStageData();
-                break;
             default:
         }
         if (finish) {
-            destory();
+            destory(AccessLog.PROTOCOL);
         }
     }
 }
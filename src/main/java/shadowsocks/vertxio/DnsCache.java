@@ -0,0 +1,194 @@
+package shadowsocks.vertxio;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.netty.util.NetUtil;
+
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of name resolutions, one per event loop.
+ *
+ * Entries live for the TTL of their answer (clamped to [MIN_TTL, MAX_TTL]),
+ * names which don't exist are remembered for NEGATIVE_TTL. Lookups of a name
+ * which is already being resolved wait for that query instead of sending
+ * another one. An entry used again late in its life is refreshed in the
+ * background, so a popular name never makes a connection wait.
+ *
+ * The statistics are shared by all the caches.
+ *
+ * Not thread safe, it must only be used from the event loop that created it.
+ */
+public class DnsCache {
+
+    // seconds
+    final static long NEGATIVE_TTL = 10;
+    private final static long MIN_TTL = 1;
+    private final static long MAX_TTL = 3600;
+    // Uses during the TTL which make an entry worth a background refresh.
+    private final static int REFRESH_HITS = 2;
+
+    private final static LongAdder sHits = new LongAdder();
+    private final static LongAdder sMisses = new LongAdder();
+    private final static LongAdder sNegativeHits = new LongAdder();
+    private final static LongAdder sCollapsed = new LongAdder();
+    private final static LongAdder sRefreshes = new LongAdder();
+    private final static LongAdder sFailures = new LongAdder();
+
+    private static class Entry {
+        final List<String> addresses;
+        final long expires;
+        // Time from which a hit triggers a refresh.
+        final long refreshAt;
+        int hits;
+        boolean refreshing;
+
+        Entry(List<String> addresses, long ttl, long now) {
+            this.addresses = addresses;
+            ttl = Math.max(MIN_TTL, Math.min(MAX_TTL, ttl)) * 1000;
+            expires = now + ttl;
+            refreshAt = now + ttl * 3 / 4;
+        }
+    }
+
+    private final DnsResolver mResolver;
+    private final LinkedHashMap<String, Entry> mEntries;
+    private final Map<String, List<Handler<AsyncResult<List<String>>>>> mInflight = new HashMap<>();
+
+    public DnsCache(Vertx vertx, String nameserver, int maxEntries) {
+        mResolver = new DnsResolver(vertx, nameserver);
+        mEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, DnsCache.Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Resolve to one IPv4 address, IP literals are given back as they are.
+     */
+    public void resolve(String host, Handler<AsyncResult<String>> handler) {
+        if (NetUtil.isValidIpV4Address(host) || NetUtil.isValidIpV6Address(host)) {
+            handler.handle(Future.succeededFuture(host));
+            return;
+        }
+        resolve(host, DnsResolver.TYPE_A, res -> {
+            if (res.succeeded()) {
+                handler.handle(Future.succeededFuture(res.result().get(0)));
+            } else {
+                handler.handle(Future.failedFuture(res.cause()));
+            }
+        });
+    }
+
+    /**
+     * Addresses of the given type, fails if there are none.
+     */
+    public void resolve(String host, int type, Handler<AsyncResult<List<String>>> handler) {
+        String key = type + ":" + host.toLowerCase();
+        long now = System.currentTimeMillis();
+        Entry entry = mEntries.get(key);
+        if (entry != null && entry.expires > now) {
+            entry.hits++;
+            if (entry.addresses.isEmpty()) {
+                sNegativeHits.increment();
+                handler.handle(Future.failedFuture(new UnknownHostException(host)));
+                return;
+            }
+            sHits.increment();
+            if (!entry.refreshing && entry.hits >= REFRESH_HITS && now >= entry.refreshAt) {
+                entry.refreshing = true;
+                sRefreshes.increment();
+                query(key, host, type);
+            }
+            handler.handle(Future.succeededFuture(entry.addresses));
+            return;
+        }
+        sMisses.increment();
+        List<Handler<AsyncResult<List<String>>>> waiting = mInflight.get(key);
+        if (waiting != null) {
+            sCollapsed.increment();
+            waiting.add(handler);
+            return;
+        }
+        waiting = new ArrayList<>();
+        waiting.add(handler);
+        mInflight.put(key, waiting);
+        query(key, host, type);
+    }
+
+    private void query(String key, String host, int type) {
+        mResolver.query(host, type, res -> {
+            long now = System.currentTimeMillis();
+            if (res.succeeded()) {
+                mEntries.put(key, new Entry(res.result().addresses, res.result().ttl, now));
+            } else {
+                sFailures.increment();
+                // A failed refresh keeps the entry until it expires.
+                Entry entry = mEntries.get(key);
+                if (entry != null) {
+                    entry.refreshing = false;
+                }
+            }
+            List<Handler<AsyncResult<List<String>>>> waiting = mInflight.remove(key);
+            if (waiting == null)
+                return;
+            for (Handler<AsyncResult<List<String>>> h : waiting) {
+                if (res.failed()) {
+                    h.handle(Future.failedFuture(res.cause()));
+                } else if (res.result().addresses.isEmpty()) {
+                    h.handle(Future.failedFuture(new UnknownHostException(host)));
+                } else {
+                    h.handle(Future.succeededFuture(res.result().addresses));
+                }
+            }
+        });
+    }
+
+    public void close() {
+        mResolver.close();
+    }
+
+    public static long getHits() {
+        return sHits.sum();
+    }
+
+    public static long getMisses() {
+        return sMisses.sum();
+    }
+
+    public static long getNegativeHits() {
+        return sNegativeHits.sum();
+    }
+
+    public static long getCollapsed() {
+        return sCollapsed.sum();
+    }
+
+    public static long getRefreshes() {
+        return sRefreshes.sum();
+    }
+
+    public static long getFailures() {
+        return sFailures.sum();
+    }
+
+    public static String stats() {
+        long hits = getHits() + getNegativeHits();
+        long total = hits + getMisses();
+        return String.format("DNS cache: hit rate %.1f%% (%d/%d), negative hits %d, collapsed %d, refreshes %d, failures %d",
+                total == 0 ? 0.0 : hits * 100.0 / total, hits, total,
+                getNegativeHits(), getCollapsed(), getRefreshes(), getFailures());
+    }
+}
@@ -0,0 +1,448 @@
+package shadowsocks.vertxio;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.datagram.DatagramPacket;
+import io.vertx.core.datagram.DatagramSocket;
+import io.vertx.core.datagram.DatagramSocketOptions;
+import io.vertx.core.net.SocketAddress;
+import io.netty.util.NetUtil;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Minimal asynchronous stub resolver, sends A/AAAA queries over UDP and
+ * reads the addresses and their TTL from the answer.
+ *
+ * The TTL is what the vert.x resolver doesn't give, DnsCache needs it.
+ * Names in /etc/hosts are answered from there. A query which gets no answer,
+ * or can't be sent, goes to the next nameserver until every one was tried.
+ * The query sockets are IPv6 ones when a nameserver has an IPv6 address.
+ *
+ * The answers are cached and served to every user, a forged one must not
+ * get in. Every query has a socket of its own, a random source port on top
+ * of the random id, and an answer is only taken from a nameserver, with
+ * QR set and the question of the query in it. A truncated answer fails the
+ * query, it may miss addresses and would be cached as they are.
+ *
+ * Not thread safe, it must only be used from the event loop that created it.
+ */
+public class DnsResolver {
+
+    public static Logger log = LogManager.getLogger(DnsResolver.class.getName());
+
+    public final static int TYPE_A = 1;
+    public final static int TYPE_AAAA = 28;
+
+    private final static int DNS_PORT = 53;
+    private final static String FALLBACK_NAMESERVER = "8.8.8.8";
+    private final static long QUERY_TIMEOUT = 2000;
+    private final static int ATTEMPTS = 2;
+    private final static int HEADER_LENGTH = 12;
+    private final static int FLAG_QR = 0x8000;
+    private final static int FLAG_TC = 0x0200;
+    private final static int RCODE_NXDOMAIN = 3;
+    // TTL of the /etc/hosts answers.
+    private final static long HOSTS_TTL = 3600;
+
+    private static Map<String, List<String>> sHosts;
+
+    public static class Answer {
+        // Empty if the name has no address of the type.
+        public final List<String> addresses;
+        // seconds
+        public final long ttl;
+
+        Answer(List<String> addresses, long ttl) {
+            this.addresses = addresses;
+            this.ttl = ttl;
+        }
+    }
+
+    private class Query {
+        final int id;
+        final String name;
+        final int type;
+        // Header and question, the answer must have the same question.
+        final Buffer packet;
+        final Handler<AsyncResult<Answer>> handler;
+        DatagramSocket socket;
+        int attempt;
+        long timerId = -1;
+
+        Query(int id, String name, int type, Handler<AsyncResult<Answer>> handler) {
+            this.id = id;
+            this.name = name;
+            this.type = type;
+            this.handler = handler;
+            packet = encode(id, name, type);
+        }
+    }
+
+    private final Vertx mVertx;
+    private final List<String> mNameservers;
+    // The addresses of mNameservers, answers only come from them.
+    private final List<byte[]> mAddresses = new ArrayList<>();
+    private final int mPort;
+    private final int mAttempts;
+    private final boolean mIpV6;
+    private final Set<Query> mQueries = new HashSet<>();
+
+    /**
+     * nameserver is "host" or "host:port", null to use the ones of /etc/resolv.conf.
+     */
+    public DnsResolver(Vertx vertx, String nameserver) {
+        this(vertx, nameservers(nameserver), port(nameserver));
+    }
+
+    DnsResolver(Vertx vertx, List<String> nameservers, int port) {
+        mVertx = vertx;
+        mPort = port;
+        mNameservers = new ArrayList<>();
+        for (String server : nameservers) {
+            byte[] address = NetUtil.createByteArrayFromIpAddressString(server);
+            if (address == null) {
+                // A name, resolved once when the instance starts.
+                try {
+                    address = InetAddress.getByName(server).getAddress();
+                } catch (UnknownHostException e) {
+                    log.error("Can't resolve nameserver " + server);
+                    continue;
+                }
+            }
+            mNameservers.add(server);
+            mAddresses.add(address);
+        }
+        if (mNameservers.isEmpty()) {
+            mNameservers.add(FALLBACK_NAMESERVER);
+            mAddresses.add(NetUtil.createByteArrayFromIpAddressString(FALLBACK_NAMESERVER));
+        }
+        boolean ipV6 = false;
+        for (byte[] address : mAddresses) {
+            ipV6 |= address.length == 16;
+        }
+        mIpV6 = ipV6;
+        mAttempts = Math.max(ATTEMPTS, mNameservers.size());
+    }
+
+    // "host:port", an IPv6 address has more than one colon.
+    private static int colon(String nameserver) {
+        int colon = nameserver.lastIndexOf(':');
+        if (colon > 0 && nameserver.indexOf(':') == colon)
+            return colon;
+        return -1;
+    }
+
+    private static List<String> nameservers(String nameserver) {
+        if (nameserver == null || nameserver.isEmpty())
+            return systemNameservers();
+        int colon = colon(nameserver);
+        return Collections.singletonList(colon > 0 ? nameserver.substring(0, colon) : nameserver);
+    }
+
+    private static int port(String nameserver) {
+        if (nameserver == null || nameserver.isEmpty())
+            return DNS_PORT;
+        int colon = colon(nameserver);
+        return colon > 0 ? Integer.parseInt(nameserver.substring(colon + 1)) : DNS_PORT;
+    }
+
+    private static List<String> systemNameservers() {
+        List<String> servers = new ArrayList<>();
+        try {
+            for (String line : Files.readAllLines(Paths.get("/etc/resolv.conf"), StandardCharsets.UTF_8)) {
+                String[] fields = line.trim().split("\\s+");
+                if (fields.length >= 2 && fields[0].equals("nameserver")) {
+                    servers.add(fields[1]);
+                }
+            }
+        } catch (IOException e) {
+            log.debug("Can't read /etc/resolv.conf. " + e.getMessage());
+        }
+        if (servers.isEmpty()) {
+            servers.add(FALLBACK_NAMESERVER);
+        }
+        return servers;
+    }
+
+    private synchronized static Map<String, List<String>> hosts() {
+        if (sHosts != null)
+            return sHosts;
+        sHosts = new HashMap<>();
+        try {
+            for (String line : Files.readAllLines(Paths.get("/etc/hosts"), StandardCharsets.UTF_8)) {
+                int comment = line.indexOf('#');
+                if (comment >= 0) {
+                    line = line.substring(0, comment);
+                }
+                String[] fields = line.trim().split("\\s+");
+                for (int i = 1; i < fields.length; i++) {
+                    sHosts.computeIfAbsent(fields[i].toLowerCase(), k -> new ArrayList<>()).add(fields[0]);
+                }
+            }
+        } catch (IOException e) {
+            log.debug("Can't read /etc/hosts. " + e.getMessage());
+        }
+        return sHosts;
+    }
+
+    public void query(String name, int type, Handler<AsyncResult<Answer>> handler) {
+        List<String> hosts = hosts().get(name.toLowerCase());
+        if (hosts != null) {
+            List<String> addresses = new ArrayList<>();
+            for (String addr : hosts) {
+                boolean v4 = addr.indexOf(':') < 0;
+                if (v4 == (type == TYPE_A)) {
+                    addresses.add(addr);
+                }
+            }
+            handler.handle(Future.succeededFuture(new Answer(addresses, HOSTS_TTL)));
+            return;
+        }
+        Query q;
+        try {
+            q = new Query(ThreadLocalRandom.current().nextInt(0x10000), name, type, handler);
+        } catch (IllegalArgumentException e) {
+            handler.handle(Future.failedFuture(e));
+            return;
+        }
+        mQueries.add(q);
+        // An IPv6 socket also sends to the IPv4 nameservers.
+        q.socket = mVertx.createDatagramSocket(new DatagramSocketOptions().setIpV6(mIpV6));
+        q.socket.handler(response -> handleResponse(q, response));
+        q.socket.listen(0, mIpV6 ? "::" : "0.0.0.0", res -> {
+            if (res.failed()) {
+                log.error("DNS resolver bind failed. " + res.cause().getMessage());
+                finish(q, Future.failedFuture(res.cause()));
+                return;
+            }
+            // Closed meanwhile.
+            if (!mQueries.contains(q))
+                return;
+            send(q);
+        });
+    }
+
+    private void send(Query q) {
+        int attempt = q.attempt;
+        String server = mNameservers.get(attempt % mNameservers.size());
+        q.timerId = mVertx.setTimer(QUERY_TIMEOUT, id -> {
+            q.timerId = -1;
+            next(q, "DNS query timeout: " + q.name);
+        });
+        q.socket.send(q.packet, mPort, server, res -> {
+            if (res.failed() && q.attempt == attempt && mQueries.contains(q)) {
+                log.debug("DNS query send to " + server + " failed. " + res.cause().getMessage());
+                if (q.timerId >= 0) {
+                    mVertx.cancelTimer(q.timerId);
+                    q.timerId = -1;
+                }
+                next(q, "DNS query send failed: " + q.name);
+            }
+        });
+    }
+
+    // The next nameserver, or the query fails with message.
+    private void next(Query q, String message) {
+        if (!mQueries.contains(q))
+            return;
+        if (++q.attempt < mAttempts) {
+            send(q);
+            return;
+        }
+        finish(q, Future.failedFuture(message));
+    }
+
+    private void finish(Query q, AsyncResult<Answer> result) {
+        if (!mQueries.remove(q))
+            return;
+        if (q.timerId >= 0) {
+            mVertx.cancelTimer(q.timerId);
+        }
+        q.socket.close();
+        q.handler.handle(result);
+    }
+
+    private static Buffer encode(int id, String name, int type) {
+        Buffer packet = Buffer.buffer(name.length() + 18);
+        packet.appendUnsignedShort(id);
+        // standard query, recursion desired
+        packet.appendUnsignedShort(0x0100);
+        // one question, no answer/authority/additional
+        packet.appendUnsignedShort(1);
+        packet.appendUnsignedShort(0);
+        packet.appendUnsignedShort(0);
+        packet.appendUnsignedShort(0);
+        for (String label : name.split("\\.")) {
+            if (label.isEmpty())
+                continue;
+            byte[] bytes = label.getBytes(StandardCharsets.US_ASCII);
+            if (bytes.length > 63)
+                throw new IllegalArgumentException("Bad name " + name);
+            packet.appendByte((byte)bytes.length);
+            packet.appendBytes(bytes);
+        }
+        packet.appendByte((byte)0);
+        packet.appendUnsignedShort(type);
+        // class IN
+        packet.appendUnsignedShort(1);
+        return packet;
+    }
+
+    // Offset following the name starting at offset.
+    private static int skipName(Buffer packet, int offset) {
+        while (true) {
+            int len = packet.getUnsignedByte(offset);
+            if (len == 0)
+                return offset + 1;
+            // compression pointer, it ends the name.
+            if ((len & 0xC0) == 0xC0)
+                return offset + 2;
+            offset += len + 1;
+        }
+    }
+
+    private void handleResponse(Query q, DatagramPacket response) {
+        if (!isNameserver(response.sender())) {
+            log.debug("DNS response for " + q.name + " from " + response.sender() + " ignored");
+            return;
+        }
+        Buffer packet = response.data();
+        Answer answer;
+        try {
+            if (!matches(packet, q)) {
+                log.debug("DNS response not matching the query for " + q.name);
+                return;
+            }
+            answer = decode(packet, q.type);
+        } catch (IndexOutOfBoundsException | UnknownHostException e) {
+            log.debug("Bad DNS response for " + q.name);
+            return;
+        }
+        if (answer == null) {
+            finish(q, Future.failedFuture("DNS query failed: " + q.name));
+            return;
+        }
+        finish(q, Future.succeededFuture(answer));
+    }
+
+    private boolean isNameserver(SocketAddress sender) {
+        if (sender.port() != mPort)
+            return false;
+        byte[] address = NetUtil.createByteArrayFromIpAddressString(sender.host());
+        if (address == null)
+            return false;
+        // An IPv4 nameserver seen from an IPv6 socket.
+        if (address.length == 16 && isIpV4Mapped(address)) {
+            address = Arrays.copyOfRange(address, 12, 16);
+        }
+        for (byte[] a : mAddresses) {
+            if (Arrays.equals(a, address))
+                return true;
+        }
+        return false;
+    }
+
+    // ::ffff:a.b.c.d
+    private static boolean isIpV4Mapped(byte[] address) {
+        for (int i = 0; i < 10; i++) {
+            if (address[i] != 0)
+                return false;
+        }
+        return address[10] == (byte)0xFF && address[11] == (byte)0xFF;
+    }
+
+    // An answer (QR) to a standard query with the id and question of q.
+    private static boolean matches(Buffer packet, Query q) {
+        Buffer query = q.packet;
+        if (packet.length() < query.length())
+            return false;
+        if (packet.getUnsignedShort(0) != q.id)
+            return false;
+        int flags = packet.getUnsignedShort(2);
+        // QR set, opcode 0
+        if ((flags & FLAG_QR) == 0 || (flags & 0x7800) != 0)
+            return false;
+        if (packet.getUnsignedShort(4) != 1)
+            return false;
+        // name, the case may differ, then type and class.
+        int nameEnd = query.length() - 4;
+        for (int i = HEADER_LENGTH; i < query.length(); i++) {
+            int a = packet.getUnsignedByte(i);
+            int b = query.getUnsignedByte(i);
+            if (i < nameEnd) {
+                a = Character.toLowerCase(a);
+                b = Character.toLowerCase(b);
+            }
+            if (a != b)
+                return false;
+        }
+        return true;
+    }
+
+    // null on server failure or a truncated answer.
+    private static Answer decode(Buffer packet, int type) throws UnknownHostException {
+        int flags = packet.getUnsignedShort(2);
+        if ((flags & FLAG_TC) != 0)
+            return null;
+        int rcode = flags & 0xF;
+        if (rcode == RCODE_NXDOMAIN)
+            return new Answer(Collections.emptyList(), DnsCache.NEGATIVE_TTL);
+        if (rcode != 0)
+            return null;
+        int questions = packet.getUnsignedShort(4);
+        int answers = packet.getUnsignedShort(6);
+        int offset = HEADER_LENGTH;
+        for (int i = 0; i < questions; i++) {
+            // name + type(2) + class(2)
+            offset = skipName(packet, offset) + 4;
+        }
+        List<String> addresses = new ArrayList<>();
+        long ttl = Long.MAX_VALUE;
+        for (int i = 0; i < answers; i++) {
+            offset = skipName(packet, offset);
+            int rrType = packet.getUnsignedShort(offset);
+            long rrTtl = packet.getUnsignedInt(offset + 4);
+            int length = packet.getUnsignedShort(offset + 8);
+            offset += 10;
+            // CNAMEs come with the records of the canonical name, only keep the addresses.
+            if (rrType == type && length == (type == TYPE_A ? 4 : 16)) {
+                addresses.add(InetAddress.getByAddress(packet.getBytes(offset, offset + length)).getHostAddress());
+                ttl = Math.min(ttl, rrTtl);
+            }
+            offset += length;
+        }
+        if (addresses.isEmpty())
+            return new Answer(addresses, DnsCache.NEGATIVE_TTL);
+        return new Answer(addresses, ttl);
+    }
+
+    public void close() {
+        for (Query q : mQueries) {
+            if (q.timerId >= 0) {
+                mVertx.cancelTimer(q.timerId);
+            }
+            q.socket.close();
+        }
+        mQueries.clear();
+    }
+}
@@ -0,0 +1,95 @@
+package shadowsocks.vertxio;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundBuffer;
+import io.netty.util.concurrent.EventExecutor;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.impl.NetSocketInternal;
+import io.vertx.core.net.NetSocket;
+
+import java.util.ArrayList;
+
+/**
+ * Write coalescing. A NetSocket flushes every write to a socket it is not
+ * reading from, which is every write of a relay: one syscall for each read
+ * of the other side. Here the writes only go to the channel and the sockets
+ * written to are flushed once, by a task run after the event loop is done
+ * with the reads of its current round.
+ *
+ * A bulk transfer reads many times in a round and makes one syscall for
+ * them, an interactive write still goes out in the round it is read in,
+ * there is no timer. The written bytes count in writeQueueFull() right
+ * away, a socket with MAX_PENDING bytes waiting (or its low water mark) is
+ * flushed at once so they don't make it look full.
+ *
+ * Belongs to one event loop, sockets of another one are written as usual.
+ */
+public class Flusher {
+
+    // Or the low water mark of the channel if that is lower.
+    private final static int MAX_PENDING = 16 * 1024;
+
+    private final EventExecutor mExecutor;
+    // Run before the flush, they may write more (a mux connection encrypting its batch).
+    private ArrayList<Runnable> mTasks = new ArrayList<>();
+    private ArrayList<ChannelHandlerContext> mPending = new ArrayList<>();
+    private ArrayList<ChannelHandlerContext> mSpare = new ArrayList<>();
+    private boolean mScheduled;
+    private final Runnable mFlush = this::flush;
+
+    public Flusher(EventExecutor executor) {
+        mExecutor = executor;
+    }
+
+    public void write(NetSocket socket, Buffer data) {
+        ChannelHandlerContext ctx = ((NetSocketInternal)socket).channelHandlerContext();
+        if (ctx.executor() != mExecutor) {
+            socket.write(data);
+            return;
+        }
+        ctx.write(data.getByteBuf());
+        ChannelOutboundBuffer out = ctx.channel().unsafe().outboundBuffer();
+        if (out == null || out.totalPendingWriteBytes() >= Math.min(MAX_PENDING, ctx.channel().config().getWriteBufferLowWaterMark())) {
+            ctx.flush();
+            return;
+        }
+        int last = mPending.size() - 1;
+        // Mostly the same socket a few times in a row.
+        if (last < 0 || mPending.get(last) != ctx) {
+            mPending.add(ctx);
+        }
+        schedule();
+    }
+
+    /**
+     * Runs task once the reads of the round are done, before the flush.
+     */
+    public void later(Runnable task) {
+        mTasks.add(task);
+        schedule();
+    }
+
+    private void schedule() {
+        if (!mScheduled) {
+            mScheduled = true;
+            mExecutor.execute(mFlush);
+        }
+    }
+
+    private void flush() {
+        // Still scheduled, what the tasks write is flushed below.
+        for (int i = 0; i < mTasks.size(); i++) {
+            mTasks.get(i).run();
+        }
+        mTasks.clear();
+        // A drain handler called by a flush may write again, that takes another round.
+        mScheduled = false;
+        ArrayList<ChannelHandlerContext> pending = mPending;
+        mPending = mSpare;
+        for (ChannelHandlerContext ctx : pending) {
+            ctx.flush();
+        }
+        pending.clear();
+        mSpare = pending;
+    }
+}
@@ -0,0 +1,174 @@
+package shadowsocks.vertxio;
+
+import io.netty.util.NetUtil;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.net.NetSocket;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.net.UnknownHostException;
+import java.util.ArrayDeque;
+import java.util.List;
+
+/**
+ * Connect to a name the RFC 8305 (happy eyeballs v2) way.
+ *
+ * AAAA and A are resolved at the same time. Connecting starts as soon as the
+ * AAAA answer is there, or RESOLUTION_DELAY after the A answer. Attempts
+ * alternate between the families starting with IPv6, a new one starts every
+ * ATTEMPT_DELAY or as soon as the previous one fails, so a broken family
+ * costs ATTEMPT_DELAY instead of a connect timeout. The first connected
+ * socket wins, the later ones are closed.
+ *
+ * One connector per connect, everything runs on the event loop of the context.
+ */
+public class HappyEyeballsConnector {
+
+    public static Logger log = LogManager.getLogger(HappyEyeballsConnector.class.getName());
+
+    // ms, the values recommended by RFC 8305.
+    private final static long RESOLUTION_DELAY = 50;
+    private final static long ATTEMPT_DELAY = 250;
+
+    private final RelayContext mContext;
+    private final String mHost;
+    private final int mPort;
+    private final Handler<AsyncResult<NetSocket>> mHandler;
+
+    private final ArrayDeque<String> mV6 = new ArrayDeque<>();
+    private final ArrayDeque<String> mV4 = new ArrayDeque<>();
+    private boolean mV6Resolved;
+    private boolean mV4Resolved;
+    private boolean mLastV6;
+    private boolean mStarted;
+    private boolean mDone;
+    // Attempts not finished yet.
+    private int mRunning;
+    private long mTimerId = -1;
+    private Throwable mLastError;
+
+    public static void connect(RelayContext context, String host, int port, Handler<AsyncResult<NetSocket>> handler) {
+        new HappyEyeballsConnector(context, host, port, handler).start();
+    }
+
+    private HappyEyeballsConnector(RelayContext context, String host, int port, Handler<AsyncResult<NetSocket>> handler) {
+        mContext = context;
+        mHost = host;
+        mPort = port;
+        mHandler = handler;
+    }
+
+    private void start() {
+        if (NetUtil.isValidIpV4Address(mHost) || NetUtil.isValidIpV6Address(mHost)) {
+            mV6Resolved = mV4Resolved = true;
+            (mHost.indexOf(':') >= 0 ? mV6 : mV4).add(mHost);
+            startAttempts();
+            return;
+        }
+        mContext.dnsCache.resolve(mHost, DnsResolver.TYPE_AAAA, res -> {
+            mV6Resolved = true;
+            resolved(res, mV6);
+        });
+        mContext.dnsCache.resolve(mHost, DnsResolver.TYPE_A, res -> {
+            mV4Resolved = true;
+            resolved(res, mV4);
+        });
+    }
+
+    private void resolved(AsyncResult<List<String>> res, ArrayDeque<String> addresses) {
+        if (mDone)
+            return;
+        if (res.succeeded()) {
+            addresses.addAll(res.result());
+        } else {
+            mLastError = res.cause();
+        }
+        if (mStarted) {
+            // Attempts stalled waiting for addresses.
+            if (mTimerId == -1) {
+                nextAttempt();
+            }
+            return;
+        }
+        if (!mV6.isEmpty() || (mV6Resolved && mV4Resolved)) {
+            startAttempts();
+        } else if (!mV4.isEmpty() && mTimerId == -1) {
+            // Give the AAAA answer a moment.
+            mTimerId = mContext.vertx.setTimer(RESOLUTION_DELAY, id -> {
+                mTimerId = -1;
+                startAttempts();
+            });
+        }
+    }
+
+    private void startAttempts() {
+        if (mStarted)
+            return;
+        mStarted = true;
+        nextAttempt();
+    }
+
+    private String pick() {
+        ArrayDeque<String> first = mLastV6 ? mV4 : mV6;
+        ArrayDeque<String> second = mLastV6 ? mV6 : mV4;
+        if (!first.isEmpty()) {
+            mLastV6 = first == mV6;
+            return first.poll();
+        }
+        if (!second.isEmpty()) {
+            mLastV6 = second == mV6;
+            return second.poll();
+        }
+        return null;
+    }
+
+    private void nextAttempt() {
+        cancelTimer();
+        String addr = pick();
+        if (addr == null) {
+            if (mRunning == 0 && mV6Resolved && mV4Resolved) {
+                fail();
+            }
+            return;
+        }
+        mRunning++;
+        mContext.netClient.connect(mPort, addr, res -> {
+            mRunning--;
+            if (res.succeeded()) {
+                if (mDone) {
+                    res.result().close();
+                    return;
+                }
+                mDone = true;
+                cancelTimer();
+                log.debug("Connected to " + mHost + " at " + addr);
+                mHandler.handle(Future.succeededFuture(res.result()));
+                return;
+            }
+            if (mDone)
+                return;
+            log.debug("Connect to " + mHost + " at " + addr + " failed. " + res.cause().getMessage());
+            mLastError = res.cause();
+            nextAttempt();
+        });
+        mTimerId = mContext.vertx.setTimer(ATTEMPT_DELAY, id -> {
+            mTimerId = -1;
+            nextAttempt();
+        });
+    }
+
+    private void cancelTimer() {
+        if (mTimerId != -1) {
+            mContext.vertx.cancelTimer(mTimerId);
+            mTimerId = -1;
+        }
+    }
+
+    private void fail() {
+        mDone = true;
+        Throwable cause = mLastError != null ? mLastError : new UnknownHostException(mHost);
+        mHandler.handle(Future.failedFuture(cause));
+    }
+}
@@ -0,0 +1,66 @@
+package shadowsocks.vertxio;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.datagram.DatagramPacket;
+import shadowsocks.crypto.CryptoException;
+import shadowsocks.crypto.CryptoFactory;
+import shadowsocks.util.LocalConfig;
+import shadowsocks.util.UpstreamConfig;
+
+/**
+ * Local side of the UDP relay.
+ *
+ * Programs send socks5 UDP requests [RSV(2)][FRAG(1)][address][data], the
+ * address and data are encrypted as one packet and sent to the server.
+ * Replies are [address][data] from the server, they go back to the program
+ * with the socks5 header. Fragments are not supported and dropped.
+ */
+public class LocalUdpRelay extends UdpRelay {
+
+    // RSV(2) + FRAG(1)
+    private final static int SOCKS_HEADER_LENGTH = 3;
+
+    // UDP always goes to the first server.
+    private UpstreamConfig mUpstream;
+
+    public LocalUdpRelay(Vertx vertx, LocalConfig config) {
+        super(vertx, config);
+    }
+
+    @Override
+    public void update(LocalConfig config) {
+        mConfig = config;
+        mUpstream = config.servers.get(0);
+        try{
+            mCrypto = CryptoFactory.create(mUpstream.method, mUpstream.password);
+        }catch(Exception e){
+            //Will never happen, we check this before.
+        }
+    }
+
+    @Override
+    protected void handleRequest(DatagramPacket packet) throws CryptoException {
+        Buffer data = packet.data();
+        if (data.length() <= SOCKS_HEADER_LENGTH)
+            return;
+        if (data.getByte(2) != 0) {
+            log.debug("Drop UDP fragment from " + packet.sender());
+            return;
+        }
+        if (AddressHeader.parse(data, SOCKS_HEADER_LENGTH) == null)
+            return;
+        ByteBuf request = data.getByteBuf().skipBytes(SOCKS_HEADER_LENGTH);
+        session(packet.sender()).send(Buffer.buffer(mCrypto.encryptPacket(request)), mUpstream.serverPort, mUpstream.server);
+    }
+
+    @Override
+    protected void handleResponse(Session session, DatagramPacket packet) throws CryptoException {
+        ByteBuf response = mCrypto.decryptPacket(packet.data().getByteBuf());
+        if (AddressHeader.parse(Buffer.buffer(response), 0) == null)
+            return;
+        reply(session, Buffer.buffer(Unpooled.wrappedBuffer(Unpooled.wrappedBuffer(new byte[SOCKS_HEADER_LENGTH]), response)));
+    }
+}
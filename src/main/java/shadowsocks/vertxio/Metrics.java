@@ -0,0 +1,172 @@
+package shadowsocks.vertxio;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Traffic counters by listener port and target port, shared by all the
+ * event loops. LongAdder keeps the updates from contending, they are only
+ * summed when the counters are read.
+ *
+ * Target port 0 counts what happens before the target is known, like a
+ * crypto error on the first packet. Only the target ports of the config are
+ * counted on their own, the others go together under OTHER: a client can
+ * pick any port and every one would be a series of its own.
+ */
+public class Metrics {
+
+    public static class Counters {
+        public final int listenerPort;
+        public final int targetPort;
+        // Payload bytes, up is from the program to the target.
+        public final LongAdder bytesUp = new LongAdder();
+        public final LongAdder bytesDown = new LongAdder();
+        public final LongAdder connections = new LongAdder();
+        public final LongAdder active = new LongAdder();
+        public final LongAdder connectFailures = new LongAdder();
+        public final LongAdder cryptoErrors = new LongAdder();
+        // A socket paused because the other side can't take more.
+        public final LongAdder pauses = new LongAdder();
+        // A socket paused by the rate limit.
+        public final LongAdder throttles = new LongAdder();
+        // ns reading was paused, by the direction of what it reads.
+        public final LongAdder pausedUp = new LongAdder();
+        public final LongAdder pausedDown = new LongAdder();
+
+        Counters(int listenerPort, int targetPort) {
+            this.listenerPort = listenerPort;
+            this.targetPort = targetPort;
+        }
+
+        public void opened() {
+            connections.increment();
+            active.increment();
+        }
+
+        public void closed() {
+            active.decrement();
+        }
+    }
+
+    // The target port of the counters of all the ports not tracked.
+    public final static int OTHER = -1;
+
+    private final static ConcurrentMap<Long, Counters> sCounters = new ConcurrentHashMap<>();
+    private static volatile Set<Integer> sTargetPorts = new HashSet<>();
+
+    /**
+     * The target ports counted on their own, from now on.
+     */
+    public static void setTargetPorts(Collection<Integer> ports) {
+        sTargetPorts = new HashSet<>(ports);
+    }
+
+    public static Counters get(int listenerPort, int port) {
+        int targetPort = port == 0 || sTargetPorts.contains(port) ? port : OTHER;
+        long key = (long)listenerPort << 32 | (targetPort & 0xFFFFFFFFL);
+        Counters counters = sCounters.get(key);
+        if (counters == null) {
+            counters = sCounters.computeIfAbsent(key, k -> new Counters(listenerPort, targetPort));
+        }
+        return counters;
+    }
+
+    /**
+     * Drop the counters of a listener port which is gone.
+     */
+    public static void remove(int listenerPort) {
+        sCounters.values().removeIf(c -> c.listenerPort == listenerPort);
+    }
+
+    /**
+     * Connections open on the listener port, on all the instances.
+     */
+    public static long getActive(int listenerPort) {
+        long sum = 0;
+        for (Counters c : sCounters.values()) {
+            if (c.listenerPort == listenerPort) {
+                sum += c.active.sum();
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Payload bytes of the listener port, both directions and all targets.
+     */
+    public static long getListenerBytes(int listenerPort) {
+        long sum = 0;
+        for (Counters c : sCounters.values()) {
+            if (c.listenerPort == listenerPort) {
+                sum += c.bytesUp.sum() + c.bytesDown.sum();
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * All the counters in the Prometheus text format.
+     */
+    public static String prometheus() {
+        List<Counters> all = new ArrayList<>(sCounters.values());
+        all.sort(Comparator.comparingInt((Counters c) -> c.listenerPort).thenComparingInt(c -> c.targetPort));
+        StringBuilder sb = new StringBuilder();
+        header(sb, "shadowsocks_bytes_total", "counter", "Payload bytes relayed.");
+        for (Counters c : all) {
+            sample(sb, "shadowsocks_bytes_total", c, ",direction=\"up\"", c.bytesUp.sum());
+            sample(sb, "shadowsocks_bytes_total", c, ",direction=\"down\"", c.bytesDown.sum());
+        }
+        family(sb, all, "shadowsocks_connections_total", "counter", "Connections relayed.", c -> c.connections);
+        family(sb, all, "shadowsocks_connections_active", "gauge", "Connections open.", c -> c.active);
+        family(sb, all, "shadowsocks_connect_failures_total", "counter", "Outbound connects failed.", c -> c.connectFailures);
+        family(sb, all, "shadowsocks_crypto_errors_total", "counter", "Connections closed on a crypto error.", c -> c.cryptoErrors);
+        family(sb, all, "shadowsocks_backpressure_pauses_total", "counter", "Sockets paused by back-pressure.", c -> c.pauses);
+        family(sb, all, "shadowsocks_rate_limited_total", "counter", "Sockets paused by the rate limit.", c -> c.throttles);
+        header(sb, "shadowsocks_paused_seconds_total", "counter", "Time relayed sockets spent paused.");
+        for (Counters c : all) {
+            sample(sb, "shadowsocks_paused_seconds_total", c, ",direction=\"up\"", c.pausedUp.sum() / 1e9);
+            sample(sb, "shadowsocks_paused_seconds_total", c, ",direction=\"down\"", c.pausedDown.sum() / 1e9);
+        }
+        header(sb, "shadowsocks_dns_cache_lookups_total", "counter", "DNS cache lookups of the server.");
+        sb.append("shadowsocks_dns_cache_lookups_total{result=\"hit\"} ").append(DnsCache.getHits()).append('\n');
+        sb.append("shadowsocks_dns_cache_lookups_total{result=\"negative_hit\"} ").append(DnsCache.getNegativeHits()).append('\n');
+        sb.append("shadowsocks_dns_cache_lookups_total{result=\"miss\"} ").append(DnsCache.getMisses()).append('\n');
+        header(sb, "shadowsocks_dns_failures_total", "counter", "DNS queries failed.");
+        sb.append("shadowsocks_dns_failures_total ").append(DnsCache.getFailures()).append('\n');
+        return sb.toString();
+    }
+
+    private static void header(StringBuilder sb, String name, String type, String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void family(StringBuilder sb, List<Counters> all, String name, String type, String help,
+                               Function<Counters, LongAdder> counter) {
+        header(sb, name, type, help);
+        for (Counters c : all) {
+            sample(sb, name, c, "", counter.apply(c).sum());
+        }
+    }
+
+    private static void sample(StringBuilder sb, String name, Counters c, String labels, long value) {
+        labels(sb, name, c, labels).append(value).append('\n');
+    }
+
+    private static void sample(StringBuilder sb, String name, Counters c, String labels, double value) {
+        labels(sb, name, c, labels).append(value).append('\n');
+    }
+
+    private static StringBuilder labels(StringBuilder sb, String name, Counters c, String labels) {
+        return sb.append(name).append("{listener=\"").append(c.listenerPort)
+            .append("\",target=\"").append(c.targetPort == OTHER ? "other" : String.valueOf(c.targetPort)).append('"').append(labels).append("} ");
+    }
+}
@@ -0,0 +1,59 @@
+package shadowsocks.vertxio;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.net.NetSocket;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Local side mux connections of one listener instance.
+ *
+ * A new stream goes to the connection with the fewest streams, a new
+ * connection is opened while there are less than maxConnections and all
+ * of them are in use. Connections without streams close after the timeout.
+ *
+ * Not thread safe, it must only be used from the event loop that created it.
+ */
+public class MuxPool {
+
+    private final UpstreamPool mUpstreams;
+    private final int mMaxConnections;
+    private final List<MuxSession> mSessions = new ArrayList<>();
+
+    public MuxPool(UpstreamPool upstreams, int maxConnections) {
+        mUpstreams = upstreams;
+        mMaxConnections = Math.max(1, maxConnections);
+    }
+
+    /**
+     * Relay the program socket to the address (socks5 address part), data is
+     * what the program sent after the request.
+     */
+    public void open(RelayContext context, Buffer address, NetSocket socket, Buffer data) {
+        MuxSession best = null;
+        for (MuxSession session : mSessions) {
+            if (best == null || session.getStreamCount() < best.getStreamCount()) {
+                best = session;
+            }
+        }
+        if (best == null || (best.getStreamCount() > 0 && mSessions.size() < mMaxConnections)) {
+            best = new MuxSession(context, mUpstreams.select(null), this);
+            mSessions.add(best);
+        }
+        MuxStream stream = best.open(address, socket);
+        if (data.length() > 0) {
+            stream.send(data);
+        }
+    }
+
+    void remove(MuxSession session) {
+        mSessions.remove(session);
+    }
+
+    public void close() {
+        for (MuxSession session : new ArrayList<>(mSessions)) {
+            session.close();
+        }
+    }
+}
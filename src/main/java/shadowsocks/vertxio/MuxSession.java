@@ -0,0 +1,404 @@
+package shadowsocks.vertxio;
+
+import io.netty.buffer.ByteBuf;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.net.NetSocket;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import shadowsocks.crypto.CryptoException;
+import shadowsocks.crypto.CryptoFactory;
+import shadowsocks.crypto.SSCrypto;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * One multiplexed connection between the local and the server.
+ *
+ * The connection is a normal encrypted shadowsocks stream whose address is
+ * the mux marker [ADDR_TYPE_MUX][VERSION]. Logical streams follow as frames:
+ * [type(1)][stream id(4)][length(2)][payload]
+ *
+ *  SYN           opens a stream, the payload is the target address (local to server)
+ *  DATA          stream data, at most MAX_FRAME bytes
+ *  FIN           the sender closed the stream
+ *  RST           the stream failed (target not reachable)
+ *  WINDOW_UPDATE the payload is the credit (int) given back to the sender
+ *
+ * Each direction of a stream starts with INITIAL_WINDOW bytes of credit and
+ * the receiver gives it back once the data is written out, so a stream with
+ * a slow reader stops only itself and not the connection.
+ *
+ * Everything runs on the event loop of the context.
+ */
+public class MuxSession implements TimeoutWheel.Timeoutable {
+
+    public static Logger log = LogManager.getLogger(MuxSession.class.getName());
+
+    // Address type which can't be a real one.
+    public final static int ADDR_TYPE_MUX = 0x7F;
+    public final static int VERSION = 1;
+
+    final static int SYN = 1;
+    final static int DATA = 2;
+    final static int FIN = 3;
+    final static int RST = 4;
+    final static int WINDOW_UPDATE = 5;
+
+    // type(1) + stream id(4) + length(2)
+    private final static int HEADER_LENGTH = 7;
+    final static int MAX_FRAME = 16 * 1024;
+    final static int INITIAL_WINDOW = 256 * 1024;
+    // Parsed input is dropped once this much of it piles up.
+    private final static int COMPACT_THRESHOLD = 64 * 1024;
+    // A batch of frames is written once this big, before the end of the round.
+    private final static int MAX_BATCH = 16 * 1024;
+
+    final RelayContext mContext;
+    private final boolean mIsServer;
+    private NetSocket mSocket;
+    private SSCrypto mCrypto;
+    // Local only: the server of the connection and the pool it belongs to.
+    private UpstreamPool.Upstream mUpstream;
+    private MuxPool mPool;
+    // Frames written before the connection is up, plain text.
+    private Buffer mPendingOut;
+    // With coalesce_writes, the frames of this event loop round, plain text.
+    // Encrypted and written together once the reads are done.
+    private Buffer mBatch;
+    private final Runnable mWriteBatch = this::writeBatch;
+    private Buffer mIn = Buffer.buffer();
+    private int mReadIndex;
+    private final Map<Integer, MuxStream> mStreams = new HashMap<>();
+    // Streams paused until the connection drains.
+    private final Set<MuxStream> mBlocked = new LinkedHashSet<>();
+    private int mNextId = 1;
+    private boolean mClosed;
+    // ms, from the wheel clock, when the last stream went away.
+    private long mIdleSince;
+    private TimeoutWheel.Entry mTimeout;
+
+    /**
+     * Local side, connects to the upstream.
+     */
+    MuxSession(RelayContext context, UpstreamPool.Upstream upstream, MuxPool pool) {
+        mContext = context;
+        mIsServer = false;
+        mUpstream = upstream;
+        mPool = pool;
+        mIdleSince = context.timeoutWheel.now();
+        try{
+            mCrypto = CryptoFactory.create(upstream.config.method, upstream.config.password);
+        }catch(Exception e){
+            //Will never happen, we check this before.
+        }
+        mPendingOut = Buffer.buffer().appendByte((byte)ADDR_TYPE_MUX).appendByte((byte)VERSION);
+        long start = System.nanoTime();
+        context.netClient.connect(upstream.config.serverPort, upstream.config.server, res -> {
+            if (!res.succeeded()) {
+                upstream.failed();
+                Metrics.get(getListenerPort(), 0).connectFailures.increment();
+                log.error("Failed to connect mux " + upstream.config + ". Caused by " + res.cause().getMessage());
+                close();
+                return;
+            }
+            upstream.connected(System.nanoTime() - start);
+            if (mClosed) {
+                res.result().close();
+                return;
+            }
+            mSocket = res.result();
+            setSocketHandlers();
+            Buffer pending = mPendingOut;
+            mPendingOut = null;
+            write(pending);
+        });
+        mTimeout = context.timeoutWheel.add(this);
+    }
+
+    /**
+     * Server side, takes over a connection which sent the mux marker.
+     * received holds the decrypted bytes following the marker.
+     */
+    public MuxSession(RelayContext context, NetSocket socket, SSCrypto crypto, Buffer received) {
+        mContext = context;
+        mIsServer = true;
+        mSocket = socket;
+        mCrypto = crypto;
+        mIdleSince = context.timeoutWheel.now();
+        setSocketHandlers();
+        mTimeout = context.timeoutWheel.add(this);
+        handle(received);
+    }
+
+    private void setSocketHandlers() {
+        mSocket.handler(buffer -> {
+            try {
+                ByteBuf data = mCrypto.decrypt(buffer.getByteBuf());
+                if (data.isReadable()) {
+                    handle(Buffer.buffer(data));
+                }
+            }catch(CryptoException e){
+                log.error("Catch exception " + e.getMessage() + ", remote " + mSocket.remoteAddress());
+                Metrics.get(getListenerPort(), 0).cryptoErrors.increment();
+                close();
+            }
+        });
+        mSocket.closeHandler(v -> close());
+        mSocket.endHandler(v -> close());
+        mSocket.exceptionHandler(e -> {
+            log.error("Mux connection exception " + e.getMessage() + " , remote " + mSocket.remoteAddress());
+            close();
+        });
+        mSocket.drainHandler(v -> {
+            // Resume what the full connection paused, unless they run out of credit meanwhile.
+            ArrayList<MuxStream> blocked = new ArrayList<>(mBlocked);
+            mBlocked.clear();
+            for (MuxStream stream : blocked) {
+                stream.setBlocked(false);
+            }
+        });
+    }
+
+    @Override
+    public long getDeadline() {
+        if (mClosed)
+            return -1;
+        if (!mStreams.isEmpty())
+            return Long.MAX_VALUE;
+        return mIdleSince + mContext.config.timeout * 1000L;
+    }
+
+    @Override
+    public void onTimeout() {
+        log.debug("Mux connection idle, close it.");
+        close();
+    }
+
+    boolean isClosed() {
+        return mClosed;
+    }
+
+    boolean isServer() {
+        return mIsServer;
+    }
+
+    int getListenerPort() {
+        return mIsServer ? mContext.config.serverPort : mContext.config.localPort;
+    }
+
+    int getStreamCount() {
+        return mStreams.size();
+    }
+
+    /**
+     * Local side: open a stream to the address (socks5 address part) over
+     * this connection, the program socket becomes the stream.
+     */
+    MuxStream open(Buffer address, NetSocket socket) {
+        int id = mNextId++;
+        // Already parsed by the ClientHandler.
+        AddressHeader header = AddressHeader.parse(address, 0);
+        MuxStream stream = new MuxStream(this, id, socket, header.host, header.port);
+        mStreams.put(id, stream);
+        sendFrame(SYN, id, address);
+        stream.attach(socket);
+        return stream;
+    }
+
+    private void handle(Buffer data) {
+        mIn.appendBuffer(data);
+        while (!mClosed) {
+            int remaining = mIn.length() - mReadIndex;
+            if (remaining < HEADER_LENGTH)
+                break;
+            int type = mIn.getUnsignedByte(mReadIndex);
+            int id = mIn.getInt(mReadIndex + 1);
+            int length = mIn.getUnsignedShort(mReadIndex + 5);
+            if (remaining < HEADER_LENGTH + length)
+                break;
+            int start = mReadIndex + HEADER_LENGTH;
+            mReadIndex = start + length;
+            handleFrame(type, id, mIn.slice(start, start + length));
+        }
+        if (mReadIndex == mIn.length()) {
+            mIn = Buffer.buffer();
+            mReadIndex = 0;
+        } else if (mReadIndex > COMPACT_THRESHOLD) {
+            mIn = mIn.getBuffer(mReadIndex, mIn.length());
+            mReadIndex = 0;
+        }
+    }
+
+    private void handleFrame(int type, int id, Buffer payload) {
+        MuxStream stream = mStreams.get(id);
+        switch (type) {
+            case SYN:
+                if (!mIsServer || stream != null) {
+                    log.warn("Mux protocol error, unexpected SYN " + id);
+                    close();
+                    return;
+                }
+                openTarget(id, payload);
+                break;
+            case DATA:
+                if (stream != null) {
+                    stream.receive(payload);
+                }
+                break;
+            case FIN:
+            case RST:
+                if (stream != null) {
+                    stream.remoteClosed(type == RST);
+                }
+                break;
+            case WINDOW_UPDATE:
+                if (stream != null && payload.length() >= 4) {
+                    stream.addCredit(payload.getInt(0));
+                }
+                break;
+            default:
+                log.warn("Mux protocol error, frame type " + type);
+                close();
+        }
+    }
+
+    // Server side: SYN received, connect to the target.
+    private void openTarget(int id, Buffer address) {
+        AddressHeader header;
+        try {
+            header = AddressHeader.parse(address, 0);
+        } catch (IllegalArgumentException e) {
+            header = null;
+        }
+        if (header == null) {
+            sendFrame(RST, id, null);
+            return;
+        }
+        MuxStream stream = new MuxStream(this, id, mSocket, header.host, header.port);
+        mStreams.put(id, stream);
+        String host = header.host;
+        int port = header.port;
+        log.debug("Connecting to " + host + ":" + port + " (mux)");
+        HappyEyeballsConnector.connect(mContext, host, port, res -> {
+            if (!res.succeeded()) {
+                log.error("Failed to connect " + host + ":" + port + ". Caused by " + res.cause().getMessage());
+                stream.metrics.connectFailures.increment();
+                if (!stream.isClosed()) {
+                    stream.reset();
+                }
+                return;
+            }
+            if (stream.isClosed() || mClosed) {
+                res.result().close();
+                return;
+            }
+            stream.attach(res.result());
+        });
+    }
+
+    void sendData(MuxStream stream, Buffer data) {
+        int length = data.length();
+        for (int offset = 0; offset < length; offset += MAX_FRAME) {
+            sendFrame(DATA, stream.id, data.slice(offset, Math.min(length, offset + MAX_FRAME)));
+        }
+        if (mSocket != null && mSocket.writeQueueFull()) {
+            mBlocked.add(stream);
+            stream.setBlocked(true);
+        }
+    }
+
+    void sendWindowUpdate(int id, int credit) {
+        sendFrame(WINDOW_UPDATE, id, Buffer.buffer(4).appendInt(credit));
+    }
+
+    void sendFrame(int type, int id, Buffer payload) {
+        if (mClosed)
+            return;
+        int length = payload == null ? 0 : payload.length();
+        boolean batched = mSocket != null && mContext.flusher != null;
+        if (batched && mBatch == null) {
+            // Room for a full batch when it starts with bulk data, a few small frames otherwise.
+            mBatch = Buffer.buffer(length >= MAX_BATCH / 2 ? MAX_BATCH + MAX_FRAME + HEADER_LENGTH : 1024);
+            mContext.flusher.later(mWriteBatch);
+        }
+        // Built in the batch directly, no copy of the frame.
+        Buffer frame = batched ? mBatch : Buffer.buffer(HEADER_LENGTH + length);
+        frame.appendByte((byte)type);
+        frame.appendInt(id);
+        frame.appendUnsignedShort(length);
+        if (payload != null) {
+            frame.appendBuffer(payload);
+        }
+        if (!batched) {
+            write(frame);
+        } else if (mBatch.length() >= MAX_BATCH) {
+            writeBatch();
+        }
+    }
+
+    private void write(Buffer plain) {
+        if (mSocket == null) {
+            mPendingOut.appendBuffer(plain);
+            return;
+        }
+        encryptAndWrite(plain);
+    }
+
+    private void writeBatch() {
+        Buffer batch = mBatch;
+        mBatch = null;
+        if (batch != null && !mClosed) {
+            encryptAndWrite(batch);
+        }
+    }
+
+    private void encryptAndWrite(Buffer plain) {
+        try {
+            // Encrypted in place, the frames are not used after this.
+            ByteBuf data = mCrypto.encrypt(plain.getByteBuf());
+            if (mContext.flusher != null) {
+                mContext.flusher.write(mSocket, Buffer.buffer(data));
+            }else{
+                mSocket.write(Buffer.buffer(data));
+            }
+        }catch(CryptoException e){
+            log.error("Catch exception " + e.getMessage());
+            Metrics.get(getListenerPort(), 0).cryptoErrors.increment();
+            close();
+        }
+    }
+
+    void removeStream(MuxStream stream) {
+        mStreams.remove(stream.id);
+        mBlocked.remove(stream);
+        if (mStreams.isEmpty()) {
+            mIdleSince = mContext.timeoutWheel.now();
+        }
+    }
+
+    public void close() {
+        if (mClosed)
+            return;
+        mClosed = true;
+        mContext.timeoutWheel.remove(mTimeout);
+        for (MuxStream stream : new ArrayList<>(mStreams.values())) {
+            stream.close(false, AccessLog.RESET);
+        }
+        mStreams.clear();
+        mBlocked.clear();
+        if (mSocket != null) {
+            mSocket.close();
+        }
+        if (mUpstream != null) {
+            mUpstream.release();
+            mUpstream = null;
+        }
+        if (mPool != null) {
+            mPool.remove(this);
+        }
+    }
+}
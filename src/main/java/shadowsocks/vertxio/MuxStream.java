@@ -0,0 +1,244 @@
+package shadowsocks.vertxio;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.net.NetSocket;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * One logical stream of a MuxSession, bound to the program socket on the
+ * local and to the target socket on the server.
+ *
+ * Reading from the socket stops when the stream has no credit left, the
+ * mux connection is full or the rate limit is used up. Credit for received
+ * data is given back once it is written out to the socket and the rate
+ * limit of that direction allows more.
+ */
+class MuxStream implements TimeoutWheel.Timeoutable {
+
+    final int id;
+    private final MuxSession mSession;
+    private NetSocket mSocket;
+    // Data received before the socket is attached (server, target connecting).
+    private List<Buffer> mPending = new ArrayList<>();
+    private int mSendCredit = MuxSession.INITIAL_WINDOW;
+    // Received and written out, not given back yet.
+    private int mUnacked;
+    private boolean mBlocked;
+    private boolean mThrottled;
+    private boolean mPaused;
+    private boolean mClosed;
+    // ms, from the wheel clock.
+    private long mLastActive;
+    // For the access log: the program on the local, the local on the server.
+    private final NetSocket mClient;
+    private final String mTargetHost;
+    private long mBytesRead;
+    private long mBytesWritten;
+    // ms, the wheel clock is too coarse for the duration.
+    private final long mOpenTime;
+    final Metrics.Counters metrics;
+    // Bytes read from the socket and written to it.
+    private final LongAdder mRead;
+    private final LongAdder mWritten;
+    // Rate limit of what is read from the socket and written to it, null without one.
+    private RateLimiter.Bucket mReadLimit;
+    private RateLimiter.Bucket mWriteLimit;
+
+    MuxStream(MuxSession session, int id, NetSocket client, String targetHost, int targetPort) {
+        this.id = id;
+        mSession = session;
+        mClient = client;
+        mTargetHost = targetHost;
+        metrics = Metrics.get(session.getListenerPort(), targetPort);
+        metrics.opened();
+        mRead = session.isServer() ? metrics.bytesDown : metrics.bytesUp;
+        mWritten = session.isServer() ? metrics.bytesUp : metrics.bytesDown;
+        RateLimiter limiter = session.mContext.rateLimiter;
+        if (limiter != null) {
+            mReadLimit = limiter.newBucket(session.getListenerPort(), !session.isServer());
+            mWriteLimit = limiter.newBucket(session.getListenerPort(), session.isServer());
+        }
+        mOpenTime = System.currentTimeMillis();
+        mLastActive = session.mContext.timeoutWheel.now();
+        session.mContext.timeoutWheel.add(this);
+    }
+
+    void attach(NetSocket socket) {
+        mSocket = socket;
+        socket.handler(buffer -> {
+            mLastActive = mSession.mContext.timeoutWheel.now();
+            mBytesRead += buffer.length();
+            mRead.add(buffer.length());
+            mSendCredit -= buffer.length();
+            mSession.sendData(this, buffer);
+            throttle(buffer.length());
+            updatePaused();
+        });
+        // Not the closeHandler, the socket may still hold data then. The end
+        // comes after it, or the idle timeout if the stream stays paused.
+        socket.endHandler(v -> close(true, AccessLog.END));
+        socket.exceptionHandler(e -> {
+            MuxSession.log.error("Mux stream exception " + e.getMessage() + " , remote " + socket.remoteAddress());
+            close(true, AccessLog.ERROR);
+        });
+        // Set once, it is called each time the queue is back under the low
+        // water mark: the credit held back goes back once the reader caught up.
+        socket.drainHandler(v -> ack());
+        List<Buffer> pending = mPending;
+        mPending = null;
+        for (Buffer data : pending) {
+            deliver(data);
+        }
+    }
+
+    boolean isClosed() {
+        return mClosed;
+    }
+
+    @Override
+    public long getDeadline() {
+        if (mClosed)
+            return -1;
+        return mLastActive + mSession.mContext.config.timeout * 1000L;
+    }
+
+    @Override
+    public void onTimeout() {
+        MuxSession.log.debug("Mux stream " + id + " idle timeout");
+        close(true, AccessLog.TIMEOUT);
+    }
+
+    // Local side: data the program sent before the stream was opened.
+    void send(Buffer data) {
+        mBytesRead += data.length();
+        mRead.add(data.length());
+        mSendCredit -= data.length();
+        mSession.sendData(this, data);
+        throttle(data.length());
+        updatePaused();
+    }
+
+    private void throttle(int bytes) {
+        if (mReadLimit == null || mReadLimit.consume(bytes))
+            return;
+        mThrottled = true;
+        metrics.throttles.increment();
+        mSession.mContext.rateLimiter.whenAvailable(mReadLimit, () -> {
+            mThrottled = false;
+            updatePaused();
+        });
+    }
+
+    void receive(Buffer data) {
+        mLastActive = mSession.mContext.timeoutWheel.now();
+        if (mSocket == null) {
+            mPending.add(data);
+            return;
+        }
+        deliver(data);
+    }
+
+    private void deliver(Buffer data) {
+        mBytesWritten += data.length();
+        mWritten.add(data.length());
+        Flusher flusher = mSession.mContext.flusher;
+        if (flusher != null) {
+            flusher.write(mSocket, data);
+        }else{
+            mSocket.write(data);
+        }
+        mUnacked += data.length();
+        if (mWriteLimit != null && !mWriteLimit.consume(data.length())) {
+            // Hold the credit back, the peer stops sending when it runs out.
+            metrics.throttles.increment();
+            mSession.mContext.rateLimiter.whenAvailable(mWriteLimit, () -> {
+                if (!mSocket.writeQueueFull()) {
+                    ack();
+                }
+            });
+        }
+        // The drain handler gives the credit back once the reader caught up.
+        if (mSocket.writeQueueFull())
+            return;
+        if (mUnacked >= MuxSession.INITIAL_WINDOW / 2) {
+            ack();
+        }
+    }
+
+    private void ack() {
+        if (mClosed || mUnacked == 0)
+            return;
+        if (mWriteLimit != null && mWriteLimit.isWaiting())
+            return;
+        mSession.sendWindowUpdate(id, mUnacked);
+        mUnacked = 0;
+    }
+
+    void addCredit(int credit) {
+        mSendCredit += credit;
+        updatePaused();
+    }
+
+    void setBlocked(boolean blocked) {
+        mBlocked = blocked;
+        updatePaused();
+    }
+
+    private void updatePaused() {
+        if (mSocket == null || mClosed)
+            return;
+        boolean pause = mBlocked || mSendCredit <= 0 || mThrottled;
+        if (pause == mPaused)
+            return;
+        mPaused = pause;
+        if (pause) {
+            mSocket.pause();
+            metrics.pauses.increment();
+        } else {
+            mSocket.resume();
+        }
+    }
+
+    // The peer closed the stream, what was received is still written out.
+    // reset: with a RST rather than a FIN.
+    void remoteClosed(boolean reset) {
+        close(false, reset ? AccessLog.RESET : AccessLog.END);
+    }
+
+    // Server side: the target can't be reached.
+    void reset() {
+        if (mClosed)
+            return;
+        mSession.sendFrame(MuxSession.RST, id, null);
+        close(false, AccessLog.CONNECT);
+    }
+
+    // reason: why it closed, for the access log.
+    void close(boolean notify, String reason) {
+        if (mClosed)
+            return;
+        mClosed = true;
+        metrics.closed();
+        boolean server = mSession.isServer();
+        AccessLog.log(mClient, mSession.getListenerPort(), mTargetHost, metrics.targetPort,
+                server ? mBytesWritten : mBytesRead, server ? mBytesRead : mBytesWritten,
+                mOpenTime, reason);
+        if (notify) {
+            mSession.sendFrame(MuxSession.FIN, id, null);
+        }
+        mSession.removeStream(this);
+        mPending = null;
+        if (mSocket == null)
+            return;
+        if (notify) {
+            mSocket.close();
+            return;
+        }
+        // Closing drops queued writes, close once they are out.
+        NetSocket socket = mSocket;
+        socket.write(Buffer.buffer(), v -> socket.close());
+    }
+}
@@ -0,0 +1,187 @@
+package shadowsocks.vertxio;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.socket.ChannelInputShutdownEvent;
+import io.netty.channel.socket.DuplexChannel;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.impl.NetSocketInternal;
+import io.vertx.core.net.NetSocket;
+import shadowsocks.util.LocalConfig;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * One direction of a relayed connection, what is read from one socket is
+ * written to the other. The client and the server handler use two of them.
+ *
+ * The write queue of the destination gets the water marks of its direction
+ * from the config: reading stops as soon as a write takes it over the high
+ * one and goes on once it is back under the low one. Reading also stops
+ * while the rate limit is used up, it goes on when neither holds it.
+ *
+ * A source allowed to half-close reads a zero length buffer, after the
+ * data read before, when its peer shuts down its output. The pump then shuts
+ * down the output of the destination once that data is out, the other
+ * direction goes on until it ends too.
+ */
+public class Pump {
+
+    private final static String HALF_CLOSE_HANDLER = "halfClose";
+    private final static InputShutdownHandler INPUT_SHUTDOWN = new InputShutdownHandler();
+
+    private final RelayContext mContext;
+    private final NetSocket mFrom;
+    private final NetSocket mTo;
+    // null without a rate limit.
+    private final RateLimiter.Bucket mLimit;
+    private final Metrics.Counters mMetrics;
+    // ns the source was paused, in the counter of the direction.
+    private final LongAdder mPausedTime;
+    // The write queue of the destination is over its high water mark.
+    private boolean mFull;
+    private boolean mThrottled;
+    private boolean mPaused;
+    // nanoTime of the pause.
+    private long mPausedAt;
+    private boolean mEnded;
+    private boolean mClosed;
+
+    // Turns the input shutdown of a half-closed channel into an empty read,
+    // the socket gets it in order with the data still buffered.
+    @ChannelHandler.Sharable
+    private static class InputShutdownHandler extends ChannelInboundHandlerAdapter {
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+            if (evt == ChannelInputShutdownEvent.INSTANCE) {
+                ctx.fireChannelRead(Unpooled.EMPTY_BUFFER);
+                ctx.fireChannelReadComplete();
+            }
+            super.userEventTriggered(ctx, evt);
+        }
+    }
+
+    /**
+     * up: from the program to the target, for the water marks and the counters.
+     */
+    public Pump(RelayContext context, NetSocket from, NetSocket to, boolean up,
+                RateLimiter.Bucket limit, Metrics.Counters metrics) {
+        mContext = context;
+        mFrom = from;
+        mTo = to;
+        mLimit = limit;
+        mMetrics = metrics;
+        mPausedTime = up ? metrics.pausedUp : metrics.pausedDown;
+        LocalConfig config = context.config;
+        int high = (up ? config.upHighWaterMark : config.downHighWaterMark) * 1024;
+        int low = (up ? config.upLowWaterMark : config.downLowWaterMark) * 1024;
+        channel(to).config().setWriteBufferWaterMark(new WriteBufferWaterMark(Math.min(low, high), high));
+        // Set once, it is called each time the queue is back under the low water mark.
+        to.drainHandler(v -> {
+            mFull = false;
+            updatePaused();
+        });
+    }
+
+    private static Channel channel(NetSocket socket) {
+        return ((NetSocketInternal)socket).channelHandlerContext().channel();
+    }
+
+    /**
+     * Half-close the socket when its peer shuts down its output, it reads a
+     * zero length buffer then. Set before the pumps when that may come early.
+     */
+    public static void allowHalfClose(NetSocket socket) {
+        ChannelHandlerContext ctx = ((NetSocketInternal)socket).channelHandlerContext();
+        Channel channel = ctx.channel();
+        if (!(channel instanceof DuplexChannel) || ctx.pipeline().get(HALF_CLOSE_HANDLER) != null)
+            return;
+        channel.config().setOption(ChannelOption.ALLOW_HALF_CLOSURE, true);
+        ctx.pipeline().addBefore(ctx.name(), HALF_CLOSE_HANDLER, INPUT_SHUTDOWN);
+    }
+
+    /**
+     * Writes data read from the source, length bytes of payload count
+     * against the rate limit.
+     */
+    public void write(Buffer data, int length) {
+        // Flushed with the rest of the round when writes are coalesced.
+        if (mContext.flusher != null) {
+            mContext.flusher.write(mTo, data);
+        }else{
+            mTo.write(data);
+        }
+        // Checked after the write, the one that fills the queue stops reading.
+        if (!mFull && mTo.writeQueueFull()) {
+            mFull = true;
+            mMetrics.pauses.increment();
+        }
+        if (mLimit != null && !mLimit.consume(length)) {
+            mThrottled = true;
+            mMetrics.throttles.increment();
+            mContext.rateLimiter.whenAvailable(mLimit, () -> {
+                mThrottled = false;
+                updatePaused();
+            });
+        }
+        updatePaused();
+    }
+
+    private void updatePaused() {
+        if (mClosed)
+            return;
+        boolean pause = mFull || mThrottled;
+        if (pause == mPaused)
+            return;
+        mPaused = pause;
+        if (pause) {
+            mFrom.pause();
+            mPausedAt = System.nanoTime();
+        }else{
+            mFrom.resume();
+            mPausedTime.add(System.nanoTime() - mPausedAt);
+        }
+    }
+
+    /**
+     * The source read a zero length buffer, its peer shut down its output.
+     * The output of the destination is shut down once what it was sent is out.
+     */
+    public void end() {
+        if (mEnded)
+            return;
+        mEnded = true;
+        // Shutting down drops queued writes like a close.
+        mTo.write(Buffer.buffer(), res -> {
+            if (res.failed() || mClosed)
+                return;
+            Channel channel = channel(mTo);
+            if (channel instanceof DuplexChannel) {
+                ((DuplexChannel)channel).shutdownOutput();
+            }else{
+                mTo.close();
+            }
+        });
+    }
+
+    public boolean isEnded() {
+        return mEnded;
+    }
+
+    /**
+     * The connection is closing, counts the pause it is in.
+     */
+    public void close() {
+        if (mClosed)
+            return;
+        mClosed = true;
+        if (mPaused) {
+            mPausedTime.add(System.nanoTime() - mPausedAt);
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package shadowsocks.vertxio;
+
+import io.vertx.core.Vertx;
+import shadowsocks.util.LocalConfig;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bandwidth shaping with hierarchical token buckets: every connection has a
+ * bucket per direction, whose parent is the bucket of its listener port
+ * (a user on a multi-user server), whose parent is the one of the process.
+ *
+ * Relayed bytes are taken from all the levels after they are written, a
+ * bucket may go into debt. When one level is empty the connection pauses
+ * the socket it reads from, like it does for a full write queue, and the
+ * limiter resumes it once every level has tokens again. The waiting
+ * connections are checked by a timer of the event loop, armed only while
+ * there are some.
+ *
+ * The buckets are shared by the event loops, the limiter itself belongs to
+ * one and is not thread safe.
+ */
+public class RateLimiter {
+
+    // ms between checks of the waiting connections.
+    private final static long TICK = 10;
+    // What a bucket may save up, in ms of its rate.
+    private final static long BURST_MS = 100;
+    private final static long MIN_BURST = 16 * 1024;
+
+    public static class Bucket {
+        // bytes/s, 0 no limit at this level.
+        private final long mRate;
+        private final long mBurst;
+        private final Bucket mParent;
+        private final AtomicLong mTokens;
+        // ns, the time the tokens are counted up to.
+        private final AtomicLong mLast;
+        // Only used on connection buckets, by the event loop of the connection.
+        private boolean mWaiting;
+
+        Bucket(long rate, Bucket parent) {
+            this(rate, parent, System.nanoTime());
+        }
+
+        // now: nanoTime, full at that time.
+        Bucket(long rate, Bucket parent, long now) {
+            mRate = rate;
+            mBurst = Math.max(rate * BURST_MS / 1000, MIN_BURST);
+            mParent = parent;
+            mTokens = new AtomicLong(mBurst);
+            mLast = new AtomicLong(now);
+        }
+
+        private long refill(long now) {
+            long last = mLast.get();
+            long elapsed = now - last;
+            long tokens;
+            long next;
+            if (elapsed > 1_000_000_000L) {
+                // Idle long enough to be full.
+                tokens = mBurst;
+                next = now;
+            } else {
+                tokens = (long)(elapsed * (double)mRate / 1e9);
+                if (tokens == 0)
+                    return mTokens.get();
+                // Count the time of whole tokens only, the rest goes to the next refill.
+                next = last + (long)(tokens * 1e9 / mRate);
+            }
+            // Another event loop may be at it, only one adds.
+            if (mLast.compareAndSet(last, next)) {
+                return mTokens.accumulateAndGet(tokens, (t, a) -> Math.min(mBurst, t + a));
+            }
+            return mTokens.get();
+        }
+
+        /**
+         * Takes bytes already relayed from every level.
+         * Returns false when one of them is out of tokens, the reader should pause.
+         */
+        public boolean consume(int bytes) {
+            return consume(bytes, System.nanoTime());
+        }
+
+        boolean consume(int bytes, long now) {
+            boolean available = true;
+            for (Bucket b = this; b != null; b = b.mParent) {
+                if (b.mRate == 0)
+                    continue;
+                b.refill(now);
+                if (b.mTokens.addAndGet(-bytes) <= 0) {
+                    available = false;
+                }
+            }
+            return available;
+        }
+
+        boolean isAvailable(long now) {
+            for (Bucket b = this; b != null; b = b.mParent) {
+                if (b.mRate > 0 && b.refill(now) <= 0)
+                    return false;
+            }
+            return true;
+        }
+
+        /**
+         * Paused by the limiter, the reader must not be resumed for anything else.
+         */
+        public boolean isWaiting() {
+            return mWaiting;
+        }
+    }
+
+    /**
+     * The buckets above the connections, one set for a ShadowsocksVertx.
+     */
+    public static class Limits {
+        private final long mPortRate;
+        private final long mConnectionRate;
+        private final Bucket mGlobalUp;
+        private final Bucket mGlobalDown;
+        // port -> {up, down}
+        private final ConcurrentMap<Integer, Bucket[]> mPorts = new ConcurrentHashMap<>();
+
+        public Limits(LocalConfig config) {
+            long rate = config.rateLimit * 1024L;
+            mPortRate = config.portRateLimit * 1024L;
+            mConnectionRate = config.connectionRateLimit * 1024L;
+            mGlobalUp = rate > 0 ? new Bucket(rate, null) : null;
+            mGlobalDown = rate > 0 ? new Bucket(rate, null) : null;
+        }
+
+        public static boolean isEnabled(LocalConfig config) {
+            return config.rateLimit > 0 || config.portRateLimit > 0 || config.connectionRateLimit > 0;
+        }
+
+        /**
+         * Drop the buckets of a port which is gone.
+         */
+        public void removePort(int listenerPort) {
+            mPorts.remove(listenerPort);
+        }
+
+        private Bucket[] port(int listenerPort) {
+            if (mPortRate == 0)
+                return new Bucket[]{mGlobalUp, mGlobalDown};
+            Bucket[] buckets = mPorts.get(listenerPort);
+            if (buckets == null) {
+                buckets = mPorts.computeIfAbsent(listenerPort,
+                        k -> new Bucket[]{new Bucket(mPortRate, mGlobalUp), new Bucket(mPortRate, mGlobalDown)});
+            }
+            return buckets;
+        }
+    }
+
+    private static class Waiter {
+        final Bucket bucket;
+        final Runnable ready;
+
+        Waiter(Bucket bucket, Runnable ready) {
+            this.bucket = bucket;
+            this.ready = ready;
+        }
+    }
+
+    private final Vertx mVertx;
+    private final Limits mLimits;
+    private ArrayList<Waiter> mWaiters = new ArrayList<>();
+    private ArrayList<Waiter> mSpare = new ArrayList<>();
+    private boolean mArmed;
+
+    public RateLimiter(Vertx vertx, Limits limits) {
+        mVertx = vertx;
+        mLimits = limits;
+    }
+
+    /**
+     * A bucket for one direction of a new connection, up is what is read
+     * from the program. Always a new one, even if the connection has no
+     * limit of its own.
+     */
+    public Bucket newBucket(int listenerPort, boolean up) {
+        Bucket[] port = mLimits.port(listenerPort);
+        return new Bucket(mLimits.mConnectionRate, up ? port[0] : port[1]);
+    }
+
+    /**
+     * Calls ready on the event loop once every level of the bucket has tokens.
+     * The caller pauses its reader before.
+     */
+    public void whenAvailable(Bucket bucket, Runnable ready) {
+        if (bucket.mWaiting)
+            return;
+        bucket.mWaiting = true;
+        mWaiters.add(new Waiter(bucket, ready));
+        if (!mArmed) {
+            mArmed = true;
+            mVertx.setTimer(TICK, id -> check());
+        }
+    }
+
+    private void check() {
+        mArmed = false;
+        long now = System.nanoTime();
+        ArrayList<Waiter> waiters = mWaiters;
+        mWaiters = mSpare;
+        for (Waiter w : waiters) {
+            if (w.bucket.isAvailable(now)) {
+                w.bucket.mWaiting = false;
+                w.ready.run();
+            } else {
+                mWaiters.add(w);
+            }
+        }
+        waiters.clear();
+        mSpare = waiters;
+        if (!mWaiters.isEmpty()) {
+            mArmed = true;
+            mVertx.setTimer(TICK, id -> check());
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package shadowsocks.vertxio;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.net.NetClient;
+import shadowsocks.util.LocalConfig;
+
+/**
+ * What the connections of one listener instance share. Everything in it
+ * belongs to the event loop of the instance.
+ */
+public class RelayContext {
+    public final Vertx vertx;
+    public final LocalConfig config;
+    public final NetClient netClient;
+    public final TimeoutWheel timeoutWheel;
+    // Server only, null on the local.
+    public final DnsCache dnsCache;
+    // Local only, null on the server.
+    public final UpstreamPool upstreams;
+    // Local with mux only, null otherwise.
+    public final MuxPool muxPool;
+    // Local with warm_pool only, null otherwise.
+    public final WarmPool warmPool;
+    // With a rate limit only, null otherwise.
+    public final RateLimiter rateLimiter;
+    // With coalesce_writes only, null otherwise.
+    public final Flusher flusher;
+
+    public RelayContext(Vertx vertx, LocalConfig config, NetClient netClient, TimeoutWheel timeoutWheel,
+                        DnsCache dnsCache, UpstreamPool upstreams, MuxPool muxPool, WarmPool warmPool,
+                        RateLimiter rateLimiter, Flusher flusher) {
+        this.vertx = vertx;
+        this.config = config;
+        this.netClient = netClient;
+        this.timeoutWheel = timeoutWheel;
+        this.dnsCache = dnsCache;
+        this.upstreams = upstreams;
+        this.muxPool = muxPool;
+        this.warmPool = warmPool;
+        this.rateLimiter = rateLimiter;
+        this.flusher = flusher;
+    }
+}
@@ -1,10 +1,9 @@
 package shadowsocks.vertxio;
 
+import io.netty.buffer.ByteBuf;
 import io.vertx.core.Handler;
 import io.vertx.core.Vertx;
 import io.vertx.core.buffer.Buffer;
-import io.vertx.core.net.NetClient;
-import io.vertx.core.net.NetClientOptions;
 import io.vertx.core.net.NetSocket;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -13,28 +12,50 @@ import shadowsocks.crypto.CryptoFactory;
 import shadowsocks.crypto.SSCrypto;
 import shadowsocks.util.LocalConfig;
 
-import java.net.InetAddress;
-import java.net.UnknownHostException;
-
-public class ServerHandler implements Handler<Buffer> {
+public class ServerHandler implements Handler<Buffer>, TimeoutWheel.Timeoutable {
 
     public static Logger log = LogManager.getLogger(ServerHandler.class.getName());
 
-    private final static int ADDR_TYPE_IPV4 = 1;
-    private final static int ADDR_TYPE_HOST = 3;
-
-
     private Vertx mVertx;
+    private TimeoutWheel mTimeoutWheel;
+    private TimeoutWheel.Entry mTimeout;
+    private RelayContext mContext;
+    // ms, from the wheel clock.
+    private long mStartTime;
+    private long mLastActive;
     private NetSocket mClientSocket;
     private NetSocket mTargetSocket;
     private LocalConfig mConfig;
     private int mCurrentStage;
+    // Decrypted bytes received before the target is connected, parsed from
+    // mReadIndex. What follows the address is sent to the target as it is.
     private Buffer mBufferQueue;
+    private int mReadIndex;
     private SSCrypto mCrypto;
+    // Target port 0 until the address is parsed.
+    private Metrics.Counters mMetrics;
+    // Rate limit of each direction, null without one.
+    private RateLimiter.Bucket mUpLimit;
+    private RateLimiter.Bucket mDownLimit;
+    // Both directions once the target is connected.
+    private Pump mUp;
+    private Pump mDown;
+    // The local shut down its output before the target was connected.
+    private boolean mClientEnded;
+    // Closing after an end, the sockets close once their queued writes are out.
+    private boolean mFlushing;
+    // For the access log, the target is null until the address is parsed.
+    private String mTargetHost;
+    private long mBytesUp;
+    private long mBytesDown;
+    // ms, the wheel clock is too coarse for the duration.
+    private long mAcceptTime;
 
     private class Stage {
         final public static int ADDRESS = 1;
         final public static int DATA = 2;
+        // Handed over to a mux connection.
+        final public static int MUX = 3;
         final public static int DESTORY = 100;
     }
 
@@ -44,173 +65,249 @@ public class ServerHandler implements Handler<Buffer> {
         }
     }
 
-    //When any sockets meet close/end/exception, destory the others.
+    //When any sockets meet end/exception, destory the others. Not on close, the
+    //socket may still hold paused data then, its end comes after that data.
     private void setFinishHandler(NetSocket socket) {
-        socket.closeHandler(v -> {
-            destory();
-        });
         socket.endHandler(v -> {
-            destory();
+            destory(AccessLog.END, true);
         });
         socket.exceptionHandler(e -> {
             log.error("Server setFinishHandler Exception " + e.getMessage()
                     +" local " + socket.localAddress() + " , remote " + socket.remoteAddress());
-            destory();
+            destory(AccessLog.ERROR);
         });
     }
 
-    public ServerHandler(Vertx vertx, NetSocket socket, LocalConfig config) {
-        mVertx = vertx;
+    public ServerHandler(NetSocket socket, RelayContext context) {
+        mVertx = context.vertx;
+        mTimeoutWheel = context.timeoutWheel;
+        mStartTime = mTimeoutWheel.now();
+        mAcceptTime = System.currentTimeMillis();
+        mLastActive = mStartTime;
         mClientSocket = socket;
-        mConfig = config;
+        mConfig = context.config;
+        mContext = context;
         mCurrentStage = Stage.ADDRESS;
         mBufferQueue = Buffer.buffer();
+        mReadIndex = 0;
+        mMetrics = Metrics.get(mConfig.serverPort, 0);
         setFinishHandler(mClientSocket);
         try{
             mCrypto = CryptoFactory.create(mConfig.method, mConfig.password);
         }catch(Exception e){
             //Will never happen, we check this before.
         }
+        mTimeout = mTimeoutWheel.add(this);
     }
 
-    private Buffer compactBuffer(int start) {
-        mBufferQueue = Buffer.buffer().appendBuffer(mBufferQueue.slice(start, mBufferQueue.length()));
-        return mBufferQueue;
+    @Override
+    public long getDeadline() {
+        if (mCurrentStage == Stage.DESTORY)
+            return mFlushing ? mLastActive + mConfig.timeout * 1000L : -1;
+        if (mCurrentStage == Stage.MUX)
+            return -1;
+        if (mTargetSocket == null)
+            return mStartTime + mConfig.handshakeTimeout * 1000L;
+        return mLastActive + mConfig.timeout * 1000L;
     }
 
-    private Buffer cleanBuffer() {
-        mBufferQueue = Buffer.buffer();
-        return mBufferQueue;
+    @Override
+    public void onTimeout() {
+        log.debug((mTargetSocket == null ? "Handshake" : "Idle") + " timeout, local " + mClientSocket.remoteAddress());
+        destory(AccessLog.TIMEOUT);
     }
 
     private boolean handleStageAddress() {
-
-        int bufferLength = mBufferQueue.length();
-        String addr = null;
-        int current = 0;
-
-        int addrType = mBufferQueue.getByte(0);
-
-        if (addrType == ADDR_TYPE_IPV4) {
-            // addrType(1) + ipv4(4) + port(2)
-            if (bufferLength < 7)
+        if (mBufferQueue.getUnsignedByte(mReadIndex) == MuxSession.ADDR_TYPE_MUX) {
+            // marker + version
+            if (mBufferQueue.length() - mReadIndex < 2)
                 return false;
-            try{
-                //remote the "/"
-                addr = InetAddress.getByAddress(mBufferQueue.getBytes(1, 5)).toString().substring(1);
-            }catch(UnknownHostException e){
-                log.error("UnknownHostException.", e);
+            int version = mBufferQueue.getUnsignedByte(mReadIndex + 1);
+            if (version != MuxSession.VERSION) {
+                log.warn("Unsupport mux version " + version);
                 return true;
             }
-            current = 5;
-        }else if (addrType == ADDR_TYPE_HOST) {
-            short hostLength = mBufferQueue.getUnsignedByte(1);
-            // addrType(1) + len(1) + host + port(2)
-            if (bufferLength < hostLength + 4)
-                return false;
-            addr = mBufferQueue.getString(2, hostLength + 2);
-            current = hostLength + 2;
-        }else {
-            log.warn("Unsupport addr type " + addrType);
+            Buffer received = mBufferQueue.slice(mReadIndex + 2, mBufferQueue.length());
+            mBufferQueue = null;
+            mCurrentStage = Stage.MUX;
+            mTimeoutWheel.remove(mTimeout);
+            new MuxSession(mContext, mClientSocket, mCrypto, received);
+            return false;
+        }
+        AddressHeader header;
+        try {
+            header = AddressHeader.parse(mBufferQueue, mReadIndex);
+        } catch (IllegalArgumentException e) {
+            log.warn(e.getMessage());
             return true;
         }
-        int port = mBufferQueue.getUnsignedShort(current);
-        current = current + 2;
-
-        compactBuffer(current);
-        log.info("Connecting to " + addr + ":" + port);
-        connectToRemote(addr, port);
+        if (header == null)
+            return false;
+        mReadIndex += header.length;
+        Pump.allowHalfClose(mClientSocket);
+        log.debug("Connecting to " + header.host + ":" + header.port);
+        mTargetHost = header.host;
+        mMetrics = Metrics.get(mConfig.serverPort, header.port);
+        mMetrics.opened();
+        if (mContext.rateLimiter != null) {
+            mUpLimit = mContext.rateLimiter.newBucket(mConfig.serverPort, true);
+            mDownLimit = mContext.rateLimiter.newBucket(mConfig.serverPort, false);
+        }
+        connectToRemote(header.host, header.port);
         nextStage();
         return false;
     }
 
     private void connectToRemote(String addr, int port) {
-        // 5s timeout.
-        NetClientOptions options = new NetClientOptions().setConnectTimeout(5000);
-        NetClient client = mVertx.createNetClient(options);
-        client.connect(port, addr, res -> {  // connect handler
+        HappyEyeballsConnector.connect(mContext, addr, port, res -> {  // connect handler
             if (!res.succeeded()) {
+                mMetrics.connectFailures.increment();
                 log.error("Failed to connect " + addr + ":" + port + ". Caused by " + res.cause().getMessage());
-                destory();
+                destory(AccessLog.CONNECT);
+                return;
+            }
+            if (mCurrentStage == Stage.DESTORY) {
+                res.result().close();
                 return;
             }
             mTargetSocket = res.result();
             setFinishHandler(mTargetSocket);
+            mUp = new Pump(mContext, mClientSocket, mTargetSocket, true, mUpLimit, mMetrics);
+            mDown = new Pump(mContext, mTargetSocket, mClientSocket, false, mDownLimit, mMetrics);
+            Pump.allowHalfClose(mTargetSocket);
             mTargetSocket.handler(buffer -> { // remote socket data handler
+                mLastActive = mTimeoutWheel.now();
+                if (buffer.length() == 0) {
+                    ended(mDown);
+                    return;
+                }
+                int length = buffer.length();
+                mBytesDown += length;
+                mMetrics.bytesDown.add(length);
                 try {
-                    byte [] data = buffer.getBytes();
-                    byte [] encryptData = mCrypto.encrypt(data, data.length);
-                    flowControl(mClientSocket, mTargetSocket);
-                    mClientSocket.write(Buffer.buffer(encryptData));
+                    ByteBuf data = mCrypto.encrypt(buffer.getByteBuf());
+                    mDown.write(Buffer.buffer(data), length);
                 }catch(CryptoException e){
-                    log.error("Catch exception", e);
-                    destory();
+                    log.error("Catch exception " + e.getMessage());
+                    mMetrics.cryptoErrors.increment();
+                    destory(AccessLog.CRYPTO);
                 }
             });
-            if (mBufferQueue.length() > 0) {
-                handleStageData();
+            if (mBufferQueue.length() > mReadIndex) {
+                sendToRemote(mBufferQueue.slice(mReadIndex, mBufferQueue.length()));
+            }
+            mBufferQueue = null;
+            if (mClientEnded) {
+                ended(mUp);
             }
         });
     }
 
-    private void flowControl(NetSocket a, NetSocket b) {
-        if (a.writeQueueFull()) {
-            b.pause();
-            a.drainHandler(done -> {
-                b.resume();
-            });
+    // The peer of one side shut down its output, the connection is done once both did.
+    private void ended(Pump pump) {
+        pump.end();
+        if (mUp.isEnded() && mDown.isEnded()) {
+            destory(AccessLog.END, true);
         }
     }
 
     private void sendToRemote(Buffer buffer) {
-        flowControl(mTargetSocket, mClientSocket);
-        mTargetSocket.write(buffer);
+        int length = buffer.length();
+        mBytesUp += length;
+        mMetrics.bytesUp.add(length);
+        mUp.write(buffer, length);
     }
 
-    private boolean handleStageData() {
+    private boolean handleStageData(Buffer buffer) {
         if (mTargetSocket == null) {
             //remote is not ready, just hold the buffer.
+            mBufferQueue.appendBuffer(buffer);
             return false;
         }
-        sendToRemote(mBufferQueue);
-        cleanBuffer();
-
+        sendToRemote(buffer);
         return false;
     }
 
-    private synchronized void destory() {
+    private void destory(String reason) {
+        destory(reason, false);
+    }
+
+    // flush: one side ended, what is queued for the other one still goes out.
+    // reason: why it closed, for the access log.
+    private synchronized void destory(String reason, boolean flush) {
         if (mCurrentStage != Stage.DESTORY) {
+            // A mux connection logs its streams.
+            if (mCurrentStage != Stage.MUX) {
+                AccessLog.log(mClientSocket, mConfig.serverPort, mTargetHost, mMetrics.targetPort,
+                        mBytesUp, mBytesDown, mAcceptTime, reason);
+            }
+            // Only counted as open once the address is parsed.
+            if (mCurrentStage == Stage.DATA) {
+                mMetrics.closed();
+            }
             mCurrentStage = Stage.DESTORY;
         }
-        if (mClientSocket != null)
-            mClientSocket.close();
-        if (mTargetSocket != null)
-            mTargetSocket.close();
+        if (mUp != null) {
+            mUp.close();
+            mDown.close();
+        }
+        mFlushing = flush;
+        // Kept while flushing, it still times out.
+        if (!flush) {
+            mTimeoutWheel.remove(mTimeout);
+        }
+        close(mClientSocket, flush);
+        close(mTargetSocket, flush);
+    }
+
+    private void close(NetSocket socket, boolean flush) {
+        if (socket == null)
+            return;
+        if (flush) {
+            // Closing drops queued writes, close once they are out.
+            socket.write(Buffer.buffer(), v -> socket.close());
+        }else{
+            socket.close();
+        }
     }
 
     @Override
     public void handle(Buffer buffer) {
         boolean finish = false;
+        mLastActive = mTimeoutWheel.now();
+        // Allowed once the address is parsed.
+        if (buffer.length() == 0) {
+            if (mUp == null) {
+                mClientEnded = true;
+            }else{
+                ended(mUp);
+            }
+            return;
+        }
+        ByteBuf data;
         try{
-            byte [] data = buffer.getBytes();
-            byte [] decryptData = mCrypto.decrypt(data, data.length);
-            mBufferQueue.appendBytes(decryptData);
+            data = mCrypto.decrypt(buffer.getByteBuf());
         }catch(CryptoException e){
-            log.error("Catch exception", e);
-            destory();
+            log.error("Catch exception " + e.getMessage() + ", remote " + mClientSocket.remoteAddress());
+            mMetrics.cryptoErrors.increment();
+            destory(AccessLog.CRYPTO);
             return;
         }
+        if (!data.isReadable())
+            return;
         switch (mCurrentStage) {
             case Stage.ADDRESS:
+                mBufferQueue.appendBuffer(Buffer.buffer(data));
                 finish = handleStageAddress();
                 break;
             case Stage.DATA:
-                finish = handleStageData();
+                // Decrypted in place, relay it as it is.
+                finish = handleStageData(Buffer.buffer(data));
                 break;
             default:
         }
         if (finish) {
-            destory();
+            destory(AccessLog.PROTOCOL);
         }
     }
 }
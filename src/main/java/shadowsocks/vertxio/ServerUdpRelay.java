@@ -0,0 +1,55 @@
+package shadowsocks.vertxio;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.datagram.DatagramPacket;
+import io.vertx.core.net.SocketAddress;
+import shadowsocks.crypto.CryptoException;
+import shadowsocks.util.LocalConfig;
+
+/**
+ * Server side of the UDP relay.
+ *
+ * Requests are encrypted [address][data], the data is sent to the address
+ * from the session socket of the local. Whatever comes back to that socket
+ * is returned encrypted with the address of its sender in front of it.
+ */
+public class ServerUdpRelay extends UdpRelay {
+
+    // Shared with the other relays of the instance, not closed here.
+    private DnsCache mDnsCache;
+
+    public ServerUdpRelay(Vertx vertx, LocalConfig config, DnsCache dnsCache) {
+        super(vertx, config);
+        mDnsCache = dnsCache;
+    }
+
+    @Override
+    protected void handleRequest(DatagramPacket packet) throws CryptoException {
+        ByteBuf request = mCrypto.decryptPacket(packet.data().getByteBuf());
+        Buffer data = Buffer.buffer(request);
+        AddressHeader header = AddressHeader.parse(data, 0);
+        if (header == null)
+            return;
+        log.debug("UDP " + packet.sender() + " to " + header.host + ":" + header.port);
+        Session session = session(packet.sender());
+        Buffer payload = data.slice(header.length, data.length());
+        mDnsCache.resolve(header.host, res -> {
+            if (res.failed()) {
+                log.debug("Drop UDP packet to " + header.host + ". " + res.cause().getMessage());
+                return;
+            }
+            session.send(payload, header.port, res.result());
+        });
+    }
+
+    @Override
+    protected void handleResponse(Session session, DatagramPacket packet) throws CryptoException {
+        SocketAddress sender = packet.sender();
+        Buffer header = AddressHeader.encode(sender.host(), sender.port());
+        ByteBuf response = Unpooled.wrappedBuffer(header.getByteBuf(), packet.data().getByteBuf());
+        reply(session, Buffer.buffer(mCrypto.encryptPacket(response)));
+    }
+}
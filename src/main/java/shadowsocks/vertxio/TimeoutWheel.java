@@ -0,0 +1,140 @@
+package shadowsocks.vertxio;
+
+import io.vertx.core.Vertx;
+
+import java.util.ArrayList;
+
+/**
+ * Hashed timer wheel for connection timeouts, one per event loop.
+ *
+ * Connections don't reschedule anything when they see traffic, they only
+ * record the coarse time given by now(). When the bucket of a connection
+ * comes up the wheel asks for its current deadline and either times it out
+ * or puts it in the bucket of the new deadline. The work per event is O(1)
+ * and an active connection is looked at about once per timeout period.
+ * A finished connection removes its entry, it isn't kept reachable until
+ * its bucket comes up.
+ *
+ * Not thread safe, it must only be used from the event loop that created it.
+ */
+public class TimeoutWheel {
+
+    public interface Timeoutable {
+        // Absolute deadline in ms, negative once the connection is finished.
+        long getDeadline();
+        void onTimeout();
+    }
+
+    /**
+     * Handle of a scheduled connection, to remove it.
+     */
+    public static class Entry {
+        final Timeoutable timeoutable;
+        // Bucket holding the entry and its position in it, -1 while out of the wheel.
+        int bucket = -1;
+        int index;
+
+        Entry(Timeoutable timeoutable) {
+            this.timeoutable = timeoutable;
+        }
+    }
+
+    private final static int WHEEL_SIZE = 512;
+
+    private final Vertx mVertx;
+    private final long mTick;
+    private ArrayList<Entry>[] mBuckets;
+    private ArrayList<Entry> mSpare;
+    private long mCursor;
+    private long mNow;
+    private long mTimerId;
+
+    @SuppressWarnings("unchecked")
+    public TimeoutWheel(Vertx vertx, long tickMs) {
+        mVertx = vertx;
+        mTick = tickMs;
+        mBuckets = new ArrayList[WHEEL_SIZE];
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            mBuckets[i] = new ArrayList<>();
+        }
+        mSpare = new ArrayList<>();
+        mNow = System.currentTimeMillis();
+        mCursor = mNow / mTick;
+        mTimerId = mVertx.setPeriodic(tickMs, id -> advance());
+    }
+
+    // Coarse clock, updated every tick.
+    public long now() {
+        return mNow;
+    }
+
+    public Entry add(Timeoutable t) {
+        Entry entry = new Entry(t);
+        schedule(entry, t.getDeadline());
+        return entry;
+    }
+
+    /**
+     * Take the entry out of the wheel, nothing is done if it isn't in it.
+     */
+    public void remove(Entry entry) {
+        if (entry == null || entry.bucket < 0)
+            return;
+        // Swap with the last one of the bucket.
+        ArrayList<Entry> bucket = mBuckets[entry.bucket];
+        Entry last = bucket.remove(bucket.size() - 1);
+        if (last != entry) {
+            bucket.set(entry.index, last);
+            last.index = entry.index;
+        }
+        entry.bucket = -1;
+    }
+
+    private void schedule(Entry entry, long deadline) {
+        long tick = Math.max(deadline / mTick, mCursor + 1);
+        int index = (int)(tick % WHEEL_SIZE);
+        ArrayList<Entry> bucket = mBuckets[index];
+        entry.bucket = index;
+        entry.index = bucket.size();
+        bucket.add(entry);
+    }
+
+    private void advance() {
+        mNow = System.currentTimeMillis();
+        long target = mNow / mTick;
+        // After a long stall every bucket is due, visit each one once.
+        if (target - mCursor > WHEEL_SIZE) {
+            mCursor = target - WHEEL_SIZE;
+        }
+        while (mCursor < target) {
+            mCursor++;
+            int index = (int)(mCursor % WHEEL_SIZE);
+            ArrayList<Entry> bucket = mBuckets[index];
+            if (bucket.isEmpty())
+                continue;
+            // Entries rescheduled a full turn later go back to this index.
+            mBuckets[index] = mSpare;
+            // Out of the wheel, a timeout may remove others of the bucket.
+            for (Entry entry : bucket) {
+                entry.bucket = -1;
+            }
+            for (Entry entry : bucket) {
+                Timeoutable t = entry.timeoutable;
+                long deadline = t.getDeadline();
+                if (deadline < 0)
+                    continue;
+                if (deadline <= mNow) {
+                    t.onTimeout();
+                } else {
+                    schedule(entry, deadline);
+                }
+            }
+            bucket.clear();
+            mSpare = bucket;
+        }
+    }
+
+    public void close() {
+        mVertx.cancelTimer(mTimerId);
+    }
+}
@@ -0,0 +1,232 @@
+package shadowsocks.vertxio;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.datagram.DatagramPacket;
+import io.vertx.core.datagram.DatagramSocket;
+import io.vertx.core.datagram.DatagramSocketOptions;
+import io.vertx.core.net.SocketAddress;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import shadowsocks.crypto.CryptoException;
+import shadowsocks.crypto.CryptoFactory;
+import shadowsocks.crypto.SSCrypto;
+import shadowsocks.util.LocalConfig;
+
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * UDP relay, common part of the local and the server side.
+ *
+ * Requests arrive on the listening socket. Every peer gets a session with its
+ * own outbound socket, replies coming back to that socket are returned to the
+ * peer from the listening socket. Sessions are kept in a bounded table and
+ * closed once idle for udp_timeout, so a socket serves all the packets of a
+ * flow instead of being opened per packet.
+ *
+ * The sockets are bound on "::" to reach IPv6 peers and targets as well as
+ * IPv4 ones. Where IPv6 is off they are IPv4 only, IPv6 targets are dropped.
+ *
+ * Everything runs on the event loop of the verticle owning the relay.
+ */
+public abstract class UdpRelay {
+
+    public static Logger log = LogManager.getLogger(UdpRelay.class.getName());
+
+    // Idle sessions are looked for with this precision (ms).
+    private final static long SWEEP_INTERVAL = 1000;
+    // Packets kept while the session socket is being bound.
+    private final static int MAX_PENDING = 16;
+    private final static boolean IPV6 = ipV6Available();
+
+    protected final Vertx mVertx;
+    protected LocalConfig mConfig;
+    protected SSCrypto mCrypto;
+    private DatagramSocket mSocket;
+    private UdpSessions<Session> mSessions;
+    private long mTimerId = -1;
+    // Coarse clock, updated every sweep.
+    private long mNow;
+
+    private final Handler<AsyncResult<DatagramSocket>> mSendHandler = res -> {
+        if (res.failed()) {
+            log.debug("UDP send failed. " + res.cause().getMessage());
+        }
+    };
+
+    private static class Packet {
+        final Buffer data;
+        final int port;
+        final String host;
+
+        Packet(Buffer data, int port, String host) {
+            this.data = data;
+            this.port = port;
+            this.host = host;
+        }
+    }
+
+    protected class Session extends UdpSessions.Session {
+        final String key;
+        // Where the requests come from and the replies go.
+        final SocketAddress peer;
+        private final DatagramSocket mOutbound;
+        private List<Packet> mPending = new ArrayList<>();
+        private boolean mClosed;
+
+        Session(String key, SocketAddress peer) {
+            this.key = key;
+            this.peer = peer;
+            mOutbound = mVertx.createDatagramSocket(new DatagramSocketOptions().setIpV6(IPV6));
+            mOutbound.handler(packet -> {
+                if (mClosed)
+                    return;
+                mSessions.get(key, mNow);
+                handleReply(this, packet);
+            });
+            mOutbound.listen(0, anyAddress(), res -> {
+                if (mClosed)
+                    return;
+                if (res.failed()) {
+                    log.error("UDP bind failed. " + res.cause().getMessage());
+                    mSessions.remove(key);
+                    close();
+                    return;
+                }
+                for (Packet p : mPending) {
+                    mOutbound.send(p.data, p.port, p.host, mSendHandler);
+                }
+                mPending = null;
+            });
+        }
+
+        void send(Buffer data, int port, String host) {
+            if (mClosed)
+                return;
+            if (!IPV6 && host.indexOf(':') >= 0) {
+                log.debug("Drop UDP packet to " + host + ", no IPv6");
+                return;
+            }
+            if (mPending == null) {
+                mOutbound.send(data, port, host, mSendHandler);
+            } else if (mPending.size() < MAX_PENDING) {
+                mPending.add(new Packet(data, port, host));
+            }
+        }
+
+        @Override
+        void close() {
+            if (mClosed)
+                return;
+            mClosed = true;
+            mPending = null;
+            mOutbound.close();
+        }
+    }
+
+    public UdpRelay(Vertx vertx, LocalConfig config) {
+        mVertx = vertx;
+        update(config);
+    }
+
+    /**
+     * Switch to the password and method of config, the sessions stay. The
+     * session limits only change with a new relay.
+     */
+    public void update(LocalConfig config) {
+        mConfig = config;
+        try{
+            mCrypto = CryptoFactory.create(mConfig.method, mConfig.password);
+        }catch(Exception e){
+            //Will never happen, we check this before.
+        }
+    }
+
+    public void listen(int port, Handler<AsyncResult<Void>> handler) {
+        mNow = System.currentTimeMillis();
+        mSessions = new UdpSessions<>(mConfig.udpMaxSessions, mConfig.udpTimeout * 1000L);
+        mSocket = mVertx.createDatagramSocket(new DatagramSocketOptions().setIpV6(IPV6));
+        mSocket.handler(packet -> {
+            try {
+                handleRequest(packet);
+            } catch (CryptoException | IllegalArgumentException e) {
+                log.debug("Drop UDP packet from " + packet.sender() + ". " + e.getMessage());
+            }
+        });
+        mSocket.listen(port, anyAddress(), res -> {
+            if (res.failed()) {
+                handler.handle(res.mapEmpty());
+                return;
+            }
+            mTimerId = mVertx.setPeriodic(SWEEP_INTERVAL, id -> {
+                mNow = System.currentTimeMillis();
+                mSessions.sweep(mNow);
+            });
+            handler.handle(res.mapEmpty());
+        });
+    }
+
+    private static boolean ipV6Available() {
+        try (DatagramChannel channel = DatagramChannel.open(StandardProtocolFamily.INET6)) {
+            channel.bind(new InetSocketAddress("::", 0));
+            return true;
+        } catch (Exception e) {
+            log.info("No IPv6, the UDP relay is IPv4 only. " + e.getMessage());
+            return false;
+        }
+    }
+
+    private static String anyAddress() {
+        return IPV6 ? "::" : "0.0.0.0";
+    }
+
+    // The session of the peer, created if there is none.
+    protected Session session(SocketAddress peer) {
+        String key = peer.host() + ":" + peer.port();
+        Session session = mSessions.get(key, mNow);
+        if (session == null) {
+            session = new Session(key, peer);
+            mSessions.put(key, session, mNow);
+        }
+        return session;
+    }
+
+    // Send back to the peer of the session.
+    protected void reply(Session session, Buffer data) {
+        mSocket.send(data, session.peer.port(), session.peer.host(), mSendHandler);
+    }
+
+    private void handleReply(Session session, DatagramPacket packet) {
+        try {
+            handleResponse(session, packet);
+        } catch (CryptoException | IllegalArgumentException e) {
+            log.debug("Drop UDP packet from " + packet.sender() + ". " + e.getMessage());
+        }
+    }
+
+    // A packet to the listening socket.
+    protected abstract void handleRequest(DatagramPacket packet) throws CryptoException;
+
+    // A packet to the outbound socket of the session.
+    protected abstract void handleResponse(Session session, DatagramPacket packet) throws CryptoException;
+
+    public void close() {
+        if (mTimerId != -1) {
+            mVertx.cancelTimer(mTimerId);
+            mTimerId = -1;
+        }
+        if (mSessions != null) {
+            mSessions.clear();
+        }
+        if (mSocket != null) {
+            mSocket.close();
+            mSocket = null;
+        }
+    }
+}
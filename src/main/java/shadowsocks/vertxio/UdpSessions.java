@@ -0,0 +1,82 @@
+package shadowsocks.vertxio;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * UDP sessions by peer address, least recently used first.
+ *
+ * The table never holds more than maxSessions sessions, the least recently
+ * used one is closed to make room. sweep() closes the sessions idle for
+ * longer than the timeout, it stops at the first active one so it only
+ * costs the number of expired sessions.
+ *
+ * Not thread safe, it must only be used from the event loop of the relay.
+ */
+class UdpSessions<S extends UdpSessions.Session> {
+
+    static abstract class Session {
+        long mLastActive;
+        abstract void close();
+    }
+
+    private final LinkedHashMap<String, S> mSessions;
+    private final long mTimeout;
+
+    UdpSessions(int maxSessions, long timeoutMs) {
+        mTimeout = timeoutMs;
+        mSessions = new LinkedHashMap<String, S>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, S> eldest) {
+                if (size() > maxSessions) {
+                    eldest.getValue().close();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    // Marks the session as used.
+    S get(String key, long now) {
+        S session = mSessions.get(key);
+        if (session != null) {
+            session.mLastActive = now;
+        }
+        return session;
+    }
+
+    void put(String key, S session, long now) {
+        session.mLastActive = now;
+        mSessions.put(key, session);
+    }
+
+    void remove(String key) {
+        mSessions.remove(key);
+    }
+
+    int size() {
+        return mSessions.size();
+    }
+
+    void sweep(long now) {
+        Iterator<S> it = mSessions.values().iterator();
+        while (it.hasNext()) {
+            S session = it.next();
+            if (session.mLastActive + mTimeout > now)
+                break;
+            it.remove();
+            session.close();
+        }
+    }
+
+    void clear() {
+        for (S session : mSessions.values()) {
+            session.close();
+        }
+        mSessions.clear();
+    }
+}
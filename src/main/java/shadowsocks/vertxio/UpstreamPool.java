@@ -0,0 +1,149 @@
+package shadowsocks.vertxio;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import shadowsocks.util.UpstreamConfig;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The servers of the local and how they do, one pool per event loop.
+ *
+ * select() picks a server for a new connection with the balance policy:
+ * round_robin, least_connections or ewma (lowest moving average of the
+ * connect latency, weighted by the open connections). Health is tracked
+ * passively from the connects: a server failing MAX_FAILURES times in a row
+ * is left out for EJECT_TIME, doubled on each ejection up to MAX_EJECT_TIME.
+ * If every server is ejected the one coming back first is used.
+ *
+ * Not thread safe, it must only be used from the event loop that created it.
+ */
+public class UpstreamPool {
+
+    public static Logger log = LogManager.getLogger(UpstreamPool.class.getName());
+
+    public final static String ROUND_ROBIN = "round_robin";
+    public final static String LEAST_CONNECTIONS = "least_connections";
+    public final static String EWMA = "ewma";
+
+    private final static int MAX_FAILURES = 3;
+    // ms
+    private final static long EJECT_TIME = 10 * 1000;
+    private final static long MAX_EJECT_TIME = 300 * 1000;
+    // Weight of the last sample in the latency average.
+    private final static double EWMA_WEIGHT = 0.3;
+
+    public class Upstream {
+        public final UpstreamConfig config;
+        private int mActive;
+        // ms, 0 until the first connect.
+        private double mLatency;
+        private int mFailures;
+        private int mEjections;
+        private long mEjectedUntil;
+
+        Upstream(UpstreamConfig config) {
+            this.config = config;
+        }
+
+        public void connected(long latencyNanos) {
+            double sample = latencyNanos / 1e6;
+            mLatency = mLatency == 0 ? sample : EWMA_WEIGHT * sample + (1 - EWMA_WEIGHT) * mLatency;
+            mFailures = 0;
+            mEjections = 0;
+        }
+
+        public void failed() {
+            // Count the failure as a connect timeout in the average.
+            double sample = mConnectTimeout;
+            mLatency = mLatency == 0 ? sample : EWMA_WEIGHT * sample + (1 - EWMA_WEIGHT) * mLatency;
+            if (++mFailures < MAX_FAILURES)
+                return;
+            long ejectTime = Math.min(EJECT_TIME << Math.min(mEjections, 16), MAX_EJECT_TIME);
+            mEjectedUntil = System.currentTimeMillis() + ejectTime;
+            mEjections++;
+            mFailures = 0;
+            log.warn("Server " + config + " ejected for " + ejectTime / 1000 + "s");
+        }
+
+        // The connection using this server is finished.
+        public void release() {
+            mActive--;
+        }
+
+        // ms, moving average of the connect latency, 0 until the first connect.
+        public double getLatency() {
+            return mLatency;
+        }
+
+        boolean isEjected(long now) {
+            return mEjectedUntil > now;
+        }
+    }
+
+    private final List<Upstream> mUpstreams = new ArrayList<>();
+    private final String mPolicy;
+    // ms
+    private final long mConnectTimeout;
+    private int mNext;
+
+    public UpstreamPool(List<UpstreamConfig> servers, String policy, long connectTimeoutMs) {
+        for (UpstreamConfig config : servers) {
+            mUpstreams.add(new Upstream(config));
+        }
+        if (!policy.equals(ROUND_ROBIN) && !policy.equals(LEAST_CONNECTIONS) && !policy.equals(EWMA)) {
+            log.warn("Unknown balance " + policy + ", use " + ROUND_ROBIN);
+            policy = ROUND_ROBIN;
+        }
+        mPolicy = policy;
+        mConnectTimeout = connectTimeoutMs;
+    }
+
+    public int size() {
+        return mUpstreams.size();
+    }
+
+    public List<Upstream> getUpstreams() {
+        return mUpstreams;
+    }
+
+    /**
+     * Server for a new connection, avoiding exclude if there is another one.
+     * The caller must release() it once the connection is finished.
+     */
+    public Upstream select(Upstream exclude) {
+        long now = System.currentTimeMillis();
+        int size = mUpstreams.size();
+        int start = mNext;
+        mNext = (mNext + 1) % size;
+        Upstream best = null;
+        double bestScore = 0;
+        for (int i = 0; i < size; i++) {
+            Upstream u = mUpstreams.get((start + i) % size);
+            if (u == exclude || u.isEjected(now))
+                continue;
+            if (mPolicy.equals(ROUND_ROBIN)) {
+                best = u;
+                break;
+            }
+            double score = mPolicy.equals(LEAST_CONNECTIONS) ? u.mActive : u.mLatency * (u.mActive + 1);
+            if (best == null || score < bestScore) {
+                best = u;
+                bestScore = score;
+            }
+        }
+        if (best == null) {
+            // Nothing healthy, take the server coming back first.
+            for (Upstream u : mUpstreams) {
+                if (u == exclude && size > 1)
+                    continue;
+                if (best == null || u.mEjectedUntil < best.mEjectedUntil) {
+                    best = u;
+                }
+            }
+        }
+        best.mActive++;
+        return best;
+    }
+}
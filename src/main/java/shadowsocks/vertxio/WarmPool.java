@@ -0,0 +1,193 @@
+package shadowsocks.vertxio;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.net.NetClient;
+import io.vertx.core.net.NetSocket;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Connections to the servers made before they are needed, so a new program
+ * connection doesn't wait for the TCP handshake to the server.
+ *
+ * minIdle connections are kept per server, at most refillRate new ones are
+ * made per second. A connection older than maxAge is closed, it must stay
+ * below the handshake_timeout of the server which closes a connection
+ * sending nothing. A connection the server closes or sends data on while
+ * idle is stale and dropped.
+ *
+ * Not thread safe, it must only be used from the event loop that created it.
+ */
+public class WarmPool {
+
+    public static Logger log = LogManager.getLogger(WarmPool.class.getName());
+
+    // ms
+    private final static long TICK = 1000;
+
+    private final static LongAdder sHits = new LongAdder();
+    private final static LongAdder sMisses = new LongAdder();
+    private final static LongAdder sStale = new LongAdder();
+    private final static LongAdder sExpired = new LongAdder();
+    // us of connect latency saved by the hits.
+    private final static LongAdder sSaved = new LongAdder();
+
+    private class Idle {
+        final NetSocket socket;
+        // ms
+        final long since;
+
+        Idle(NetSocket socket, long since) {
+            this.socket = socket;
+            this.since = since;
+        }
+    }
+
+    private class Warm {
+        final ArrayDeque<Idle> idle = new ArrayDeque<>();
+        int connecting;
+    }
+
+    private final Vertx mVertx;
+    private final NetClient mNetClient;
+    private final UpstreamPool mUpstreams;
+    private final int mMinIdle;
+    // ms
+    private final long mMaxAge;
+    private final int mRefillRate;
+    private final Map<UpstreamPool.Upstream, Warm> mWarm = new IdentityHashMap<>();
+    // Connects left for this tick.
+    private int mBudget;
+    private long mTimerId;
+    private boolean mClosed;
+
+    public WarmPool(Vertx vertx, NetClient netClient, UpstreamPool upstreams, int minIdle, long maxAgeMs, int refillRate) {
+        mVertx = vertx;
+        mNetClient = netClient;
+        mUpstreams = upstreams;
+        mMinIdle = minIdle;
+        mMaxAge = maxAgeMs;
+        mRefillRate = Math.max(1, refillRate);
+        for (UpstreamPool.Upstream upstream : upstreams.getUpstreams()) {
+            mWarm.put(upstream, new Warm());
+        }
+        mTimerId = vertx.setPeriodic(TICK, id -> tick());
+        tick();
+    }
+
+    private void tick() {
+        long now = System.currentTimeMillis();
+        for (Warm warm : mWarm.values()) {
+            Iterator<Idle> it = warm.idle.iterator();
+            while (it.hasNext()) {
+                Idle idle = it.next();
+                if (now - idle.since >= mMaxAge) {
+                    it.remove();
+                    idle.socket.close();
+                    sExpired.increment();
+                }
+            }
+        }
+        mBudget = mRefillRate;
+        fill();
+    }
+
+    private void fill() {
+        long now = System.currentTimeMillis();
+        for (UpstreamPool.Upstream upstream : mUpstreams.getUpstreams()) {
+            // Ejected servers get connections again once they are back.
+            if (upstream.isEjected(now))
+                continue;
+            Warm warm = mWarm.get(upstream);
+            while (mBudget > 0 && warm.idle.size() + warm.connecting < mMinIdle) {
+                mBudget--;
+                connect(upstream, warm);
+            }
+        }
+    }
+
+    private void connect(UpstreamPool.Upstream upstream, Warm warm) {
+        warm.connecting++;
+        long start = System.nanoTime();
+        mNetClient.connect(upstream.config.serverPort, upstream.config.server, res -> {
+            warm.connecting--;
+            if (!res.succeeded()) {
+                upstream.failed();
+                log.debug("Warm connect to " + upstream.config + " failed. " + res.cause().getMessage());
+                return;
+            }
+            upstream.connected(System.nanoTime() - start);
+            NetSocket socket = res.result();
+            if (mClosed) {
+                socket.close();
+                return;
+            }
+            Idle idle = new Idle(socket, System.currentTimeMillis());
+            socket.closeHandler(v -> stale(warm, idle));
+            socket.exceptionHandler(e -> stale(warm, idle));
+            // The server never talks first.
+            socket.handler(buffer -> stale(warm, idle));
+            warm.idle.add(idle);
+        });
+    }
+
+    private void stale(Warm warm, Idle idle) {
+        if (warm.idle.remove(idle)) {
+            sStale.increment();
+            idle.socket.close();
+        }
+    }
+
+    /**
+     * A connected socket to the upstream, null if there is none. The caller
+     * sets its own handlers on it.
+     */
+    public NetSocket take(UpstreamPool.Upstream upstream) {
+        Warm warm = mWarm.get(upstream);
+        long now = System.currentTimeMillis();
+        NetSocket socket = null;
+        while (socket == null && !warm.idle.isEmpty()) {
+            Idle idle = warm.idle.poll();
+            if (now - idle.since >= mMaxAge) {
+                idle.socket.close();
+                sExpired.increment();
+                continue;
+            }
+            socket = idle.socket;
+        }
+        if (socket == null) {
+            sMisses.increment();
+        } else {
+            sHits.increment();
+            sSaved.add((long)(upstream.getLatency() * 1000));
+            log.debug("Warm connection to " + upstream.config + ", saved " + String.format("%.1f", upstream.getLatency()) + "ms");
+        }
+        fill();
+        return socket;
+    }
+
+    public static String stats() {
+        long hits = sHits.sum();
+        long total = hits + sMisses.sum();
+        return String.format("Warm pool: hit rate %.1f%% (%d/%d), saved %.1fms per hit, stale %d, expired %d",
+                total == 0 ? 0.0 : hits * 100.0 / total, hits, total,
+                hits == 0 ? 0.0 : sSaved.sum() / 1000.0 / hits, sStale.sum(), sExpired.sum());
+    }
+
+    public void close() {
+        mClosed = true;
+        mVertx.cancelTimer(mTimerId);
+        for (Warm warm : mWarm.values()) {
+            for (Idle idle : warm.idle) {
+                idle.socket.close();
+            }
+            warm.idle.clear();
+        }
+    }
+}
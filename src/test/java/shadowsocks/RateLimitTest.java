@@ -0,0 +1,173 @@
+package shadowsocks;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.net.NetServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import shadowsocks.util.GlobalConfig;
+import shadowsocks.util.LocalConfig;
+import shadowsocks.util.UpstreamConfig;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The limits measured on loopback: clients -> local -> server -> sink, the
+ * rate is what the sink gets once the bursts of the buckets are spent.
+ */
+public class RateLimitTest {
+
+    private final static String HOST = "127.0.0.1";
+    private final static String PASSWORD = "rate-limit-test";
+    // The measured rate may be that far from the limit.
+    private final static double TOLERANCE = 0.2;
+
+    private Vertx mSinkVertx;
+    private int mSinkPort;
+    private final LongAdder mSinkBytes = new LongAdder();
+    private final List<ShadowsocksVertx> mRunning = new ArrayList<>();
+    private final List<Socket> mClients = new ArrayList<>();
+    private volatile boolean mStopped;
+
+    @Before
+    public void setUp() throws Exception {
+        mSinkVertx = Vertx.vertx();
+        NetServer sink = mSinkVertx.createNetServer().connectHandler(sock -> sock.handler(buffer -> mSinkBytes.add(buffer.length())));
+        CompletableFuture<NetServer> listening = new CompletableFuture<>();
+        sink.listen(0, HOST, res -> listening.complete(res.result()));
+        mSinkPort = listening.get(10, TimeUnit.SECONDS).actualPort();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mStopped = true;
+        for (Socket s : mClients) {
+            s.close();
+        }
+        for (ShadowsocksVertx ss : mRunning) {
+            ss.stop();
+        }
+        mSinkVertx.close();
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket s = new ServerSocket(0)) {
+            return s.getLocalPort();
+        }
+    }
+
+    private static void start(ShadowsocksVertx ss) throws Exception {
+        CompletableFuture<Void> started = new CompletableFuture<>();
+        ss.start(res -> {
+            if (res.failed()) {
+                started.completeExceptionally(res.cause());
+            }else{
+                started.complete(null);
+            }
+        });
+        started.get(10, TimeUnit.SECONDS);
+    }
+
+    private static LocalConfig config(int serverPort, int localPort) {
+        LocalConfig config = GlobalConfig.createLocalConfig();
+        config.method = "aes-128-gcm";
+        config.password = PASSWORD;
+        config.server = HOST;
+        config.serverPort = serverPort;
+        config.localPort = localPort;
+        config.workers = 1;
+        config.servers = Collections.singletonList(new UpstreamConfig(HOST, serverPort, PASSWORD, config.method));
+        return config;
+    }
+
+    // Limits in KB/s of the local, the server has none: two limits in a row
+    // stall each other and the rate measured would be of both.
+    private int startRelay(int rateLimit, int connectionRateLimit) throws Exception {
+        int serverPort = freePort();
+        int localPort = freePort();
+        LocalConfig limited = config(serverPort, localPort);
+        limited.rateLimit = rateLimit;
+        limited.connectionRateLimit = connectionRateLimit;
+        ShadowsocksVertx server = new ShadowsocksVertx(true, config(serverPort, localPort));
+        ShadowsocksVertx local = new ShadowsocksVertx(false, limited);
+        mRunning.add(server);
+        mRunning.add(local);
+        start(server);
+        start(local);
+        return localPort;
+    }
+
+    // A socks5 connection to the sink that sends as fast as it is read.
+    private void startClient(int localPort) throws Exception {
+        Socket s = new Socket(HOST, localPort);
+        mClients.add(s);
+        OutputStream out = s.getOutputStream();
+        DataInputStream in = new DataInputStream(s.getInputStream());
+        out.write(new byte[]{5, 1, 0});
+        in.readFully(new byte[2]);
+        byte[] request = {5, 1, 0, 1, 0, 0, 0, 0, (byte)(mSinkPort >> 8), (byte)mSinkPort};
+        System.arraycopy(InetAddress.getByName(HOST).getAddress(), 0, request, 4, 4);
+        out.write(request);
+        byte[] reply = new byte[10];
+        in.readFully(reply);
+        assertEquals(0, reply[1]);
+        Thread writer = new Thread(() -> {
+            byte[] data = new byte[16 * 1024];
+            try{
+                while (!mStopped) {
+                    out.write(data);
+                }
+            }catch(IOException e){
+                // closed by the test
+            }
+        });
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // KB/s the sink gets from 1 s to 5 s. Connections resumed together each
+    // read a buffer before they pause again, the data comes in bursts.
+    private double measure() throws InterruptedException {
+        Thread.sleep(1000);
+        long bytes = mSinkBytes.sum();
+        long start = System.nanoTime();
+        Thread.sleep(4000);
+        return (mSinkBytes.sum() - bytes) / 1024.0 / ((System.nanoTime() - start) / 1e9);
+    }
+
+    private static void assertRate(double expected, double measured) {
+        assertEquals("KB/s", expected, measured, expected * TOLERANCE);
+    }
+
+    @Test
+    public void connectionLimit() throws Exception {
+        int port = startRelay(0, 256);
+        startClient(port);
+        startClient(port);
+        // Each one at its own limit.
+        assertRate(2 * 256, measure());
+    }
+
+    @Test
+    public void globalLimit() throws Exception {
+        int port = startRelay(384, 256);
+        for (int i = 0; i < 4; i++) {
+            startClient(port);
+        }
+        // Shared by all, below what the connections could do.
+        assertRate(384, measure());
+    }
+}
@@ -0,0 +1,35 @@
+package shadowsocks.crypto;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class CipherBackendsTest {
+
+    private final static String METHOD = "chacha20";
+
+    @Test
+    public void autoSelectedOnce() throws Exception {
+        long start = System.nanoTime();
+        CipherBackends.select(CipherBackends.AUTO, METHOD);
+        long first = System.nanoTime() - start;
+        CipherBackend selected = CipherBackends.get(METHOD);
+        start = System.nanoTime();
+        CipherBackends.select(CipherBackends.AUTO, METHOD);
+        long second = System.nanoTime() - start;
+        assertSame(selected, CipherBackends.get(METHOD));
+        // The benchmark runs 500 ms per backend.
+        assertTrue("benchmark ran again: " + second / 1000000 + " ms", second < first / 10);
+    }
+
+    @Test
+    public void otherNameSelectsAgain() throws Exception {
+        CipherBackends.select(CipherBackends.BOUNCYCASTLE, "aes-256-cfb");
+        assertEquals(CipherBackends.BOUNCYCASTLE, CipherBackends.get("aes-256-cfb").getName());
+        CipherBackends.select(CipherBackends.JCA, "aes-256-cfb");
+        String expected = JcaAESCFBCipher.isAvailable() ? CipherBackends.JCA : CipherBackends.BOUNCYCASTLE;
+        assertEquals(expected, CipherBackends.get("aes-256-cfb").getName());
+    }
+}
@@ -0,0 +1,98 @@
+package shadowsocks.vertxio;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DnsCacheTest {
+
+    private final static byte[] ADDRESS = {1, 2, 3, 4};
+
+    private Vertx mVertx;
+    private Context mContext;
+    private StubDnsServer mServer;
+    private DnsCache mCache;
+
+    @Before
+    public void setUp() throws Exception {
+        mVertx = Vertx.vertx();
+        mContext = mVertx.getOrCreateContext();
+        mServer = new StubDnsServer(mVertx);
+        CompletableFuture<DnsCache> created = new CompletableFuture<>();
+        mContext.runOnContext(v -> created.complete(new DnsCache(mVertx, mServer.address(), 16)));
+        mCache = created.get(10, TimeUnit.SECONDS);
+    }
+
+    @After
+    public void tearDown() {
+        mContext.runOnContext(v -> mCache.close());
+        mServer.close();
+        mVertx.close();
+    }
+
+    private CompletableFuture<AsyncResult<String>> resolve(String host) {
+        CompletableFuture<AsyncResult<String>> result = new CompletableFuture<>();
+        mContext.runOnContext(v -> mCache.resolve(host, result::complete));
+        return result;
+    }
+
+    private AsyncResult<String> get(CompletableFuture<AsyncResult<String>> f) throws Exception {
+        return f.get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void cachedForTtl() throws Exception {
+        mServer.respond((server, q) -> server.send(q, StubDnsServer.answer(q, 300, ADDRESS)));
+        assertEquals("1.2.3.4", get(resolve("example.test")).result());
+        assertEquals("1.2.3.4", get(resolve("EXAMPLE.test")).result());
+        assertEquals(1, mServer.queries.size());
+    }
+
+    @Test
+    public void concurrentLookupsCollapsed() throws Exception {
+        // Answered once the three lookups are waiting.
+        mServer.respond((server, q) -> mVertx.setTimer(200, t -> server.send(q, StubDnsServer.answer(q, 300, ADDRESS))));
+        List<CompletableFuture<AsyncResult<String>>> results = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            results.add(resolve("example.test"));
+        }
+        for (CompletableFuture<AsyncResult<String>> f : results) {
+            assertEquals("1.2.3.4", get(f).result());
+        }
+        assertEquals(1, mServer.queries.size());
+    }
+
+    @Test
+    public void negativeCached() throws Exception {
+        mServer.respond((server, q) -> server.send(q, StubDnsServer.answer(q, 0, StubDnsServer.RCODE_NXDOMAIN, null, 0)));
+        assertTrue(get(resolve("missing.test")).failed());
+        assertTrue(get(resolve("missing.test")).failed());
+        assertEquals(1, mServer.queries.size());
+    }
+
+    @Test
+    public void truncatedNotCached() throws Exception {
+        mServer.respond((server, q) -> server.send(q, StubDnsServer.answer(q, StubDnsServer.FLAG_TC, 0, null, 300, ADDRESS)));
+        assertTrue(get(resolve("example.test")).failed());
+        mServer.respond((server, q) -> server.send(q, StubDnsServer.answer(q, 300, ADDRESS)));
+        assertEquals("1.2.3.4", get(resolve("example.test")).result());
+        assertEquals(2, mServer.queries.size());
+    }
+
+    @Test
+    public void literalNotResolved() throws Exception {
+        assertEquals("10.0.0.1", get(resolve("10.0.0.1")).result());
+        assertEquals(0, mServer.queries.size());
+    }
+}
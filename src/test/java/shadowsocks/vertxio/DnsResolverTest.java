@@ -0,0 +1,223 @@
+package shadowsocks.vertxio;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.datagram.DatagramSocket;
+import io.vertx.core.datagram.DatagramSocketOptions;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class DnsResolverTest {
+
+    private final static byte[] REAL = {1, 2, 3, 4};
+    private final static byte[] FORGED = {6, 6, 6, 6};
+
+    private Vertx mVertx;
+    private Context mContext;
+    private StubDnsServer mServer;
+    private DnsResolver mResolver;
+
+    @Before
+    public void setUp() throws Exception {
+        mVertx = Vertx.vertx();
+        mContext = mVertx.getOrCreateContext();
+        mServer = new StubDnsServer(mVertx);
+        mResolver = onContext(() -> new DnsResolver(mVertx, mServer.address()));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        onContext(() -> {
+            mResolver.close();
+            return null;
+        });
+        mServer.close();
+        mVertx.close();
+    }
+
+    private interface Call<T> {
+        T call() throws Exception;
+    }
+
+    private <T> T onContext(Call<T> call) throws Exception {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        mContext.runOnContext(v -> {
+            try{
+                result.complete(call.call());
+            }catch(Exception e){
+                result.completeExceptionally(e);
+            }
+        });
+        return result.get(10, TimeUnit.SECONDS);
+    }
+
+    private CompletableFuture<AsyncResult<DnsResolver.Answer>> query(String name) {
+        return query(mResolver, name);
+    }
+
+    private CompletableFuture<AsyncResult<DnsResolver.Answer>> query(DnsResolver resolver, String name) {
+        CompletableFuture<AsyncResult<DnsResolver.Answer>> result = new CompletableFuture<>();
+        mContext.runOnContext(v -> resolver.query(name, DnsResolver.TYPE_A, result::complete));
+        return result;
+    }
+
+    // Answers from the nameservers, port is the one of all of them.
+    private AsyncResult<DnsResolver.Answer> queryWith(List<String> nameservers, int port) throws Exception {
+        DnsResolver resolver = onContext(() -> new DnsResolver(mVertx, nameservers, port));
+        try{
+            return query(resolver, "example.test").get(10, TimeUnit.SECONDS);
+        }finally{
+            onContext(() -> {
+                resolver.close();
+                return null;
+            });
+        }
+    }
+
+    private DnsResolver.Answer resolve(String name) throws Exception {
+        AsyncResult<DnsResolver.Answer> res = query(name).get(10, TimeUnit.SECONDS);
+        assertTrue("query failed: " + res.cause(), res.succeeded());
+        return res.result();
+    }
+
+    @Test
+    public void answerWithTtl() throws Exception {
+        mServer.respond((server, q) -> server.send(q, StubDnsServer.answer(q, 300, REAL)));
+        DnsResolver.Answer answer = resolve("example.test");
+        assertEquals(Collections.singletonList("1.2.3.4"), answer.addresses);
+        assertEquals(300, answer.ttl);
+        assertEquals("example.test", mServer.queries.get(0).name());
+    }
+
+    @Test
+    public void nxdomainIsNegative() throws Exception {
+        mServer.respond((server, q) -> server.send(q, StubDnsServer.answer(q, 0, StubDnsServer.RCODE_NXDOMAIN, null, 0)));
+        DnsResolver.Answer answer = resolve("missing.test");
+        assertTrue(answer.addresses.isEmpty());
+        assertEquals(DnsCache.NEGATIVE_TTL, answer.ttl);
+    }
+
+    @Test
+    public void answerFromOtherSenderIgnored() throws Exception {
+        DatagramSocket forger = mVertx.createDatagramSocket(new DatagramSocketOptions());
+        mServer.respond((server, q) -> {
+            // Right id, port and question, but not from the nameserver.
+            forger.send(StubDnsServer.answer(q, 86400, FORGED), q.sender.port(), q.sender.host(), res -> {
+                mVertx.setTimer(100, t -> server.send(q, StubDnsServer.answer(q, 300, REAL)));
+            });
+        });
+        assertEquals(Collections.singletonList("1.2.3.4"), resolve("example.test").addresses);
+        forger.close();
+    }
+
+    @Test
+    public void answerNotMatchingIgnored() throws Exception {
+        mServer.respond((server, q) -> {
+            // No QR.
+            Buffer query = StubDnsServer.answer(q, 86400, FORGED);
+            query.setUnsignedShort(2, query.getUnsignedShort(2) & 0x7FFF);
+            server.send(q, query);
+            // The question of another name.
+            Buffer other = q.question().copy();
+            other.setByte(1, (byte)'z');
+            server.send(q, StubDnsServer.answer(q, 0, 0, other, 86400, FORGED));
+            // Another id.
+            Buffer id = StubDnsServer.answer(q, 86400, FORGED);
+            id.setUnsignedShort(0, (q.id() + 1) & 0xFFFF);
+            server.send(q, id);
+            mVertx.setTimer(100, t -> server.send(q, StubDnsServer.answer(q, 300, REAL)));
+        });
+        assertEquals(Collections.singletonList("1.2.3.4"), resolve("example.test").addresses);
+    }
+
+    @Test
+    public void questionCaseIgnored() throws Exception {
+        mServer.respond((server, q) -> {
+            Buffer upper = Buffer.buffer(q.question().toString("ISO-8859-1").toUpperCase(), "ISO-8859-1");
+            server.send(q, StubDnsServer.answer(q, 0, 0, upper, 300, REAL));
+        });
+        assertEquals(Collections.singletonList("1.2.3.4"), resolve("example.test").addresses);
+    }
+
+    @Test
+    public void truncatedFails() throws Exception {
+        mServer.respond((server, q) -> server.send(q, StubDnsServer.answer(q, StubDnsServer.FLAG_TC, 0, null, 300, REAL)));
+        assertTrue(query("example.test").get(10, TimeUnit.SECONDS).failed());
+    }
+
+    @Test
+    public void sourcePortPerQuery() throws Exception {
+        // Answered once both are in, their sockets are open together.
+        mServer.respond((server, q) -> {
+            if (server.queries.size() == 2) {
+                for (StubDnsServer.Query query : server.queries) {
+                    server.send(query, StubDnsServer.answer(query, 300, REAL));
+                }
+            }
+        });
+        CompletableFuture<AsyncResult<DnsResolver.Answer>> a = query("a.test");
+        CompletableFuture<AsyncResult<DnsResolver.Answer>> b = query("b.test");
+        assertTrue(a.get(10, TimeUnit.SECONDS).succeeded());
+        assertTrue(b.get(10, TimeUnit.SECONDS).succeeded());
+        assertNotEquals(mServer.queries.get(0).sender.port(), mServer.queries.get(1).sender.port());
+    }
+
+    @Test
+    public void aaaa() throws Exception {
+        byte[] v6 = new byte[16];
+        v6[15] = 1;
+        mServer.respond((server, q) -> server.send(q, StubDnsServer.answer(q, 60, v6)));
+        CompletableFuture<AsyncResult<DnsResolver.Answer>> result = new CompletableFuture<>();
+        mContext.runOnContext(v -> mResolver.query("example.test", DnsResolver.TYPE_AAAA, result::complete));
+        assertEquals(Arrays.asList("0:0:0:0:0:0:0:1"), result.get(10, TimeUnit.SECONDS).result().addresses);
+    }
+
+    @Test
+    public void failedSendTriesNextAtOnce() throws Exception {
+        mServer.respond((server, q) -> server.send(q, StubDnsServer.answer(q, 300, REAL)));
+        long start = System.currentTimeMillis();
+        // No broadcast allowed on the query socket, the send fails.
+        AsyncResult<DnsResolver.Answer> res = queryWith(Arrays.asList("255.255.255.255", "127.0.0.1"), mServer.port());
+        assertTrue("query failed: " + res.cause(), res.succeeded());
+        assertTrue(System.currentTimeMillis() - start < 1000);
+    }
+
+    @Test
+    public void everyNameserverTried() throws Exception {
+        mServer.respond((server, q) -> server.send(q, StubDnsServer.answer(q, 300, REAL)));
+        // Nothing listens on the first two.
+        AsyncResult<DnsResolver.Answer> res = queryWith(Arrays.asList("127.0.0.2", "127.0.0.3", "127.0.0.1"), mServer.port());
+        assertTrue("query failed: " + res.cause(), res.succeeded());
+        assertEquals(1, mServer.queries.size());
+    }
+
+    @Test
+    public void ipV6Nameserver() throws Exception {
+        StubDnsServer server6;
+        try{
+            server6 = new StubDnsServer(mVertx, "::1");
+        }catch(Exception e){
+            // No IPv6 loopback here.
+            return;
+        }
+        server6.respond((server, q) -> server.send(q, StubDnsServer.answer(q, 300, REAL)));
+        AsyncResult<DnsResolver.Answer> res = queryWith(Arrays.asList("::1"), server6.port());
+        server6.close();
+        assertNotNull(res.result());
+        assertEquals(Collections.singletonList("1.2.3.4"), res.result().addresses);
+    }
+}
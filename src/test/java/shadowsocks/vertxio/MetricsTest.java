@@ -0,0 +1,56 @@
+package shadowsocks.vertxio;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MetricsTest {
+
+    @After
+    public void tearDown() {
+        Metrics.setTargetPorts(Collections.emptyList());
+    }
+
+    @Test
+    public void untrackedPortsCountedTogether() {
+        Metrics.setTargetPorts(Arrays.asList(80, 443));
+        assertEquals(443, Metrics.get(40001, 443).targetPort);
+        assertEquals(0, Metrics.get(40001, 0).targetPort);
+        Metrics.Counters other = Metrics.get(40001, 1234);
+        assertEquals(Metrics.OTHER, other.targetPort);
+        assertSame(other, Metrics.get(40001, 65535));
+        // Not the one of another listener.
+        assertNotSame(other, Metrics.get(40002, 1234));
+    }
+
+    @Test
+    public void otherLabel() {
+        Metrics.setTargetPorts(Collections.singletonList(80));
+        Metrics.get(40003, 5555).bytesUp.add(10);
+        Metrics.get(40003, 6666).bytesUp.add(5);
+        String text = Metrics.prometheus();
+        assertTrue(text.contains("shadowsocks_bytes_total{listener=\"40003\",target=\"other\",direction=\"up\"} 15\n"));
+        assertFalse(text.contains("target=\"5555\""));
+        assertFalse(text.contains("target=\"-1\""));
+    }
+
+    @Test
+    public void removedListenerDropped() {
+        Metrics.setTargetPorts(Collections.singletonList(80));
+        Metrics.get(40004, 80).bytesUp.add(10);
+        Metrics.get(40004, 0).bytesUp.add(5);
+        Metrics.get(40005, 80).bytesUp.add(7);
+        Metrics.remove(40004);
+        assertEquals(0, Metrics.getListenerBytes(40004));
+        assertEquals(7, Metrics.getListenerBytes(40005));
+        assertFalse(Metrics.prometheus().contains("listener=\"40004\""));
+    }
+}
@@ -0,0 +1,358 @@
+package shadowsocks.vertxio;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelOutboundBuffer;
+import io.netty.channel.socket.DuplexChannel;
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.impl.NetSocketInternal;
+import io.vertx.core.net.NetClientOptions;
+import io.vertx.core.net.NetServer;
+import io.vertx.core.net.NetSocket;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import shadowsocks.util.LocalConfig;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The pump between real sockets on loopback. The destination is a plain
+ * socket whose reads the test decides, with small socket buffers so its
+ * write queue fills up soon.
+ */
+public class PumpTest {
+
+    private final static String HOST = "127.0.0.1";
+    // KB
+    private final static int HIGH = 32;
+    private final static int LOW = 8;
+    private final static int SOCKET_BUFFER = 4096;
+
+    // A pause or resume of the source, and the bytes queued for the destination then.
+    private static class Event {
+        final boolean pause;
+        final long pending;
+        final long time = System.nanoTime();
+
+        Event(boolean pause, long pending) {
+            this.pause = pause;
+            this.pending = pending;
+        }
+    }
+
+    private Vertx mVertx;
+    private Context mContext;
+    private ServerSocket mSinkServer;
+    // The peer of the destination.
+    private Socket mSink;
+    // The destination, on the context.
+    private NetSocket mTo;
+    private final Metrics.Counters mMetrics = new Metrics.Counters(0, 0);
+
+    @Before
+    public void setUp() throws Exception {
+        mVertx = Vertx.vertx();
+        mContext = mVertx.getOrCreateContext();
+        mSinkServer = new ServerSocket();
+        mSinkServer.setReceiveBufferSize(SOCKET_BUFFER);
+        mSinkServer.bind(new InetSocketAddress(HOST, 0));
+        CompletableFuture<NetSocket> connected = new CompletableFuture<>();
+        mContext.runOnContext(v -> mVertx.createNetClient(new NetClientOptions().setSendBufferSize(SOCKET_BUFFER))
+                .connect(mSinkServer.getLocalPort(), HOST, res -> connected.complete(res.result())));
+        mSink = mSinkServer.accept();
+        mTo = connected.get(10, TimeUnit.SECONDS);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mSink.close();
+        mSinkServer.close();
+        mVertx.close();
+    }
+
+    private interface Call<T> {
+        T call() throws Exception;
+    }
+
+    private <T> T onContext(Call<T> call) throws Exception {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        mContext.runOnContext(v -> {
+            try{
+                result.complete(call.call());
+            }catch(Exception e){
+                result.completeExceptionally(e);
+            }
+        });
+        return result.get(10, TimeUnit.SECONDS);
+    }
+
+    private static Channel channel(NetSocket socket) {
+        return ((NetSocketInternal)socket).channelHandlerContext().channel();
+    }
+
+    private static long pending(NetSocket socket) {
+        ChannelOutboundBuffer buffer = channel(socket).unsafe().outboundBuffer();
+        return buffer != null ? buffer.totalPendingWriteBytes() : 0;
+    }
+
+    // A source that only records the pauses and resumes of the pump.
+    private NetSocket recordingSource(List<Event> events) {
+        return (NetSocket)Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{NetSocket.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("pause") || method.getName().equals("resume")) {
+                        events.add(new Event(method.getName().equals("pause"), pending(mTo)));
+                        return proxy;
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                });
+    }
+
+    private RelayContext relayContext(int connectionRateLimit) {
+        return relayContext(connectionRateLimit, HIGH, LOW);
+    }
+
+    private RelayContext relayContext(int connectionRateLimit, int high, int low) {
+        LocalConfig config = new LocalConfig("", "aes-128-gcm", HOST, 0, 0, 60, 0);
+        config.upHighWaterMark = high;
+        config.upLowWaterMark = low;
+        config.downHighWaterMark = high;
+        config.downLowWaterMark = low;
+        config.connectionRateLimit = connectionRateLimit;
+        RateLimiter limiter = null;
+        if (connectionRateLimit > 0) {
+            limiter = new RateLimiter(mVertx, new RateLimiter.Limits(config));
+        }
+        return new RelayContext(mVertx, config, null, null, null, null, null, null, limiter, null);
+    }
+
+    // Reads all the sink gets until the end of its input, on a thread of its own.
+    private CompletableFuture<byte[]> drainSink() {
+        CompletableFuture<byte[]> result = new CompletableFuture<>();
+        Thread reader = new Thread(() -> {
+            try{
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                InputStream in = mSink.getInputStream();
+                byte[] buf = new byte[1024];
+                int n;
+                while ((n = in.read(buf)) >= 0) {
+                    out.write(buf, 0, n);
+                    // A slow reader, the queue drains in steps.
+                    Thread.sleep(1);
+                }
+                result.complete(out.toByteArray());
+            }catch(Exception e){
+                result.completeExceptionally(e);
+            }
+        });
+        reader.setDaemon(true);
+        reader.start();
+        return result;
+    }
+
+    private static void waitFor(String what, Call<Boolean> condition) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.call()) {
+            assertTrue("timeout waiting for " + what, System.nanoTime() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    // The sink gets the end of its input once all was written.
+    private void closeWhenDrained() throws Exception {
+        waitFor("drain", () -> onContext(() -> pending(mTo) == 0));
+        onContext(() -> {
+            mTo.close();
+            return null;
+        });
+    }
+
+    @Test
+    public void pausedOverHighResumedUnderLow() throws Exception {
+        List<Event> events = new CopyOnWriteArrayList<>();
+        Pump pump = onContext(() -> new Pump(relayContext(0), recordingSource(events), mTo, true, null, mMetrics));
+        // Reads of 4 KB until the queue is full.
+        int written = onContext(() -> {
+            int bytes = 0;
+            while (events.isEmpty() && bytes < 1024 * 1024) {
+                pump.write(Buffer.buffer(new byte[4096]), 4096);
+                bytes += 4096;
+            }
+            return bytes;
+        });
+        assertTrue(events.get(0).pause);
+        assertTrue("paused at " + events.get(0).pending, events.get(0).pending > HIGH * 1024);
+        assertEquals(1, mMetrics.pauses.sum());
+        // Nothing resumes it while the sink doesn't read.
+        Thread.sleep(200);
+        assertEquals(1, events.size());
+
+        CompletableFuture<byte[]> received = drainSink();
+        waitFor("resume", () -> events.size() == 2);
+        assertTrue(!events.get(1).pause);
+        assertTrue("resumed at " + events.get(1).pending, events.get(1).pending < LOW * 1024);
+        assertTrue(mMetrics.pausedUp.sum() > 0);
+        closeWhenDrained();
+        assertEquals(written, received.get(10, TimeUnit.SECONDS).length);
+    }
+
+    @Test
+    public void throttledAfterQueueDrained() throws Exception {
+        // 64 KB/s: 16 KB of burst, 48 KB of payload leave 0.5 s of debt.
+        List<Event> events = new CopyOnWriteArrayList<>();
+        RelayContext context = relayContext(64);
+        Pump pump = onContext(() -> new Pump(context, recordingSource(events), mTo, true,
+                context.rateLimiter.newBucket(0, true), mMetrics));
+        long start = System.nanoTime();
+        onContext(() -> {
+            pump.write(Buffer.buffer(new byte[96 * 1024]), 48 * 1024);
+            return null;
+        });
+        assertEquals(1, mMetrics.pauses.sum());
+        assertEquals(1, mMetrics.throttles.sum());
+        assertEquals(1, events.size());
+
+        CompletableFuture<byte[]> received = drainSink();
+        waitFor("drain", () -> onContext(() -> pending(mTo) == 0));
+        // The queue is empty, the rate limit still holds it.
+        assertEquals(1, events.size());
+        waitFor("resume", () -> events.size() == 2);
+        double waited = (events.get(1).time - start) / 1e9;
+        assertTrue("resumed after " + waited + " s", waited > 0.4);
+        closeWhenDrained();
+        assertEquals(96 * 1024, received.get(10, TimeUnit.SECONDS).length);
+    }
+
+    @Test
+    public void fullAfterThrottleEnded() throws Exception {
+        List<Event> events = new CopyOnWriteArrayList<>();
+        RelayContext context = relayContext(64);
+        Pump pump = onContext(() -> new Pump(context, recordingSource(events), mTo, true,
+                context.rateLimiter.newBucket(0, true), mMetrics));
+        onContext(() -> {
+            // 20 KB against the rate, 4 KB of debt, about 60 ms. The queue fills.
+            pump.write(Buffer.buffer(new byte[64 * 1024]), 20 * 1024);
+            return null;
+        });
+        assertEquals(1, mMetrics.pauses.sum());
+        assertEquals(1, mMetrics.throttles.sum());
+        // Over the throttle, the full queue still holds it.
+        Thread.sleep(300);
+        assertEquals(1, events.size());
+        assertTrue(onContext(() -> mTo.writeQueueFull()));
+
+        CompletableFuture<byte[]> received = drainSink();
+        waitFor("resume", () -> events.size() == 2);
+        assertTrue(events.get(1).pending < LOW * 1024);
+        closeWhenDrained();
+        assertEquals(64 * 1024, received.get(10, TimeUnit.SECONDS).length);
+    }
+
+    // A source relayed to the sink, half-closed once it sent data.
+    private class HalfClosed {
+        final ByteArrayOutputStream beforeEnd = new ByteArrayOutputStream();
+        // Bytes read before the end, and queued for the sink then.
+        final CompletableFuture<long[]> ended = new CompletableFuture<>();
+        // What the sink sent back after the end.
+        final CompletableFuture<String> back = new CompletableFuture<>();
+        final Socket source;
+
+        HalfClosed(RelayContext context, byte[] data) throws Exception {
+            CompletableFuture<NetServer> listening = new CompletableFuture<>();
+            mContext.runOnContext(v -> mVertx.createNetServer().connectHandler(from -> {
+                Pump.allowHalfClose(from);
+                Pump pump = new Pump(context, from, mTo, true, null, mMetrics);
+                from.handler(buffer -> {
+                    if (buffer.length() == 0) {
+                        ended.complete(new long[]{beforeEnd.size(), pending(mTo)});
+                        pump.end();
+                        return;
+                    }
+                    beforeEnd.write(buffer.getBytes(), 0, buffer.length());
+                    pump.write(buffer, buffer.length());
+                });
+                // The other direction, still open after the end of this one.
+                Buffer backData = Buffer.buffer();
+                mTo.handler(buffer -> {
+                    backData.appendBuffer(buffer);
+                    from.write(buffer);
+                    if (backData.length() == 3) {
+                        back.complete(backData.toString());
+                    }
+                });
+            }).listen(0, HOST, res -> listening.complete(res.result())));
+            source = new Socket(HOST, listening.get(10, TimeUnit.SECONDS).actualPort());
+            source.getOutputStream().write(data);
+            source.shutdownOutput();
+        }
+
+        String reply() throws Exception {
+            byte[] reply = new byte[3];
+            int n = 0;
+            while (n < 3) {
+                n += source.getInputStream().read(reply, n, 3 - n);
+            }
+            return new String(reply);
+        }
+    }
+
+    private static byte[] randomData(int length) {
+        byte[] data = new byte[length];
+        new Random(1).nextBytes(data);
+        return data;
+    }
+
+    @Test
+    public void endReadAfterBufferedData() throws Exception {
+        byte[] data = randomData(256 * 1024);
+        HalfClosed relay = new HalfClosed(relayContext(0), data);
+        // Paused on the full queue, the end waits behind the data.
+        Thread.sleep(200);
+        assertTrue(mMetrics.pauses.sum() > 0);
+        assertTrue(!relay.ended.isDone());
+
+        CompletableFuture<byte[]> received = drainSink();
+        assertEquals(data.length, relay.ended.get(10, TimeUnit.SECONDS)[0]);
+        assertArrayEquals(data, received.get(10, TimeUnit.SECONDS));
+        mSink.getOutputStream().write("bye".getBytes());
+        assertEquals("bye", relay.back.get(10, TimeUnit.SECONDS));
+        assertEquals("bye", relay.reply());
+        relay.source.close();
+    }
+
+    @Test
+    public void outputShutDownAfterQueuedWrites() throws Exception {
+        // Water marks over the data, the source reads the end while the sink
+        // has not read anything.
+        byte[] data = randomData(256 * 1024);
+        HalfClosed relay = new HalfClosed(relayContext(0, 1024, 512), data);
+        long[] end = relay.ended.get(10, TimeUnit.SECONDS);
+        assertEquals(data.length, end[0]);
+        assertTrue("nothing queued at the end", end[1] > 0);
+        Thread.sleep(100);
+        assertTrue(onContext(() -> pending(mTo) > 0));
+        assertTrue(!onContext(() -> ((DuplexChannel)channel(mTo)).isOutputShutdown()));
+
+        // All of it, then the end of input.
+        assertArrayEquals(data, drainSink().get(10, TimeUnit.SECONDS));
+        assertTrue(onContext(() -> ((DuplexChannel)channel(mTo)).isOutputShutdown()));
+        mSink.getOutputStream().write("bye".getBytes());
+        assertEquals("bye", relay.reply());
+        relay.source.close();
+    }
+}
@@ -0,0 +1,103 @@
+package shadowsocks.vertxio;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RateLimiterTest {
+
+    // The buckets are given the time, in ns from T0.
+    private final static long T0 = 1_000_000_000_000L;
+    private final static long MS = 1_000_000L;
+    // 160 KB/s, the burst is the 16 KB minimum.
+    private final static long RATE = 160 * 1024;
+    private final static int BURST = 16 * 1024;
+
+    @Test
+    public void startsFull() {
+        RateLimiter.Bucket b = new RateLimiter.Bucket(RATE, null, T0);
+        assertTrue(b.consume(BURST - 1, T0));
+        // Used up once nothing is left.
+        assertFalse(b.consume(1, T0));
+        assertFalse(b.isAvailable(T0));
+    }
+
+    @Test
+    public void debtPaidBack() {
+        RateLimiter.Bucket b = new RateLimiter.Bucket(RATE, null, T0);
+        // 100 ms of tokens into debt: 164 KB taken, 16 KB there.
+        assertFalse(b.consume(BURST + (int)(RATE / 10), T0));
+        assertFalse(b.isAvailable(T0 + 99 * MS));
+        assertFalse(b.isAvailable(T0 + 100 * MS));
+        assertTrue(b.isAvailable(T0 + 101 * MS));
+    }
+
+    @Test
+    public void refillKeepsFractions() {
+        // 1000 B/s, every refill comes before a whole token.
+        RateLimiter.Bucket b = new RateLimiter.Bucket(1000, null, T0);
+        assertFalse(b.consume(BURST + 1000, T0));
+        long now = T0;
+        for (int i = 0; i < 2000; i++) {
+            now += MS / 2;
+            assertFalse(b.isAvailable(now));
+        }
+        // The 1000 tokens of the second are all there.
+        assertTrue(b.isAvailable(now + MS));
+    }
+
+    @Test
+    public void refillCappedAtBurst() {
+        RateLimiter.Bucket b = new RateLimiter.Bucket(RATE, null, T0);
+        assertTrue(b.consume(1, T0));
+        // 500 ms of tokens is more than the burst.
+        assertTrue(b.isAvailable(T0 + 500 * MS));
+        assertTrue(b.consume(BURST - 1, T0 + 500 * MS));
+        assertFalse(b.consume(1, T0 + 500 * MS));
+        // Idle over a second, full again.
+        assertTrue(b.consume(BURST - 1, T0 + 2000 * MS));
+        assertFalse(b.consume(1, T0 + 2000 * MS));
+    }
+
+    @Test
+    public void parentRunsOut() {
+        RateLimiter.Bucket parent = new RateLimiter.Bucket(RATE, null, T0);
+        // Connections with a limit of their own well above the one of the parent.
+        RateLimiter.Bucket a = new RateLimiter.Bucket(RATE * 10, parent, T0);
+        RateLimiter.Bucket b = new RateLimiter.Bucket(RATE * 10, parent, T0);
+        assertTrue(a.consume(BURST / 2, T0));
+        // b has tokens, the parent runs out.
+        assertFalse(b.consume(BURST / 2 + 1024, T0));
+        assertFalse(a.isAvailable(T0));
+        assertFalse(b.isAvailable(T0));
+        // 1 KB of debt, 6.25 ms at the rate of the parent.
+        assertFalse(a.isAvailable(T0 + 6 * MS));
+        assertTrue(a.isAvailable(T0 + 7 * MS));
+        assertTrue(b.isAvailable(T0 + 7 * MS));
+    }
+
+    @Test
+    public void childRunsOutAlone() {
+        RateLimiter.Bucket parent = new RateLimiter.Bucket(RATE * 10, null, T0);
+        RateLimiter.Bucket a = new RateLimiter.Bucket(RATE, parent, T0);
+        RateLimiter.Bucket b = new RateLimiter.Bucket(RATE, parent, T0);
+        assertFalse(a.consume(BURST, T0));
+        assertFalse(a.isAvailable(T0));
+        // The other connection is not held by it.
+        assertTrue(b.consume(1024, T0));
+        assertTrue(b.isAvailable(T0));
+    }
+
+    @Test
+    public void noLimitLevelSkipped() {
+        // A connection without a limit of its own, under a port limit.
+        RateLimiter.Bucket port = new RateLimiter.Bucket(RATE, null, T0);
+        RateLimiter.Bucket conn = new RateLimiter.Bucket(0, port, T0);
+        assertTrue(conn.consume(BURST - 1, T0));
+        assertFalse(conn.consume(1, T0));
+        RateLimiter.Bucket free = new RateLimiter.Bucket(0, null, T0);
+        assertTrue(free.consume(Integer.MAX_VALUE, T0));
+        assertTrue(free.isAvailable(T0));
+    }
+}
@@ -0,0 +1,142 @@
+package shadowsocks.vertxio;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.datagram.DatagramPacket;
+import io.vertx.core.datagram.DatagramSocket;
+import io.vertx.core.datagram.DatagramSocketOptions;
+import io.vertx.core.net.SocketAddress;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * A nameserver on 127.0.0.1 (or ::1) for the tests. It records the queries it gets,
+ * what it answers is up to the responder, by default nothing.
+ */
+class StubDnsServer {
+
+    final static int FLAG_TC = 0x0200;
+    final static int RCODE_NXDOMAIN = 3;
+
+    static class Query {
+        final SocketAddress sender;
+        final Buffer packet;
+
+        Query(SocketAddress sender, Buffer packet) {
+            this.sender = sender;
+            this.packet = packet;
+        }
+
+        int id() {
+            return packet.getUnsignedShort(0);
+        }
+
+        String name() {
+            StringBuilder sb = new StringBuilder();
+            int offset = 12;
+            int len;
+            while ((len = packet.getUnsignedByte(offset)) != 0) {
+                if (sb.length() > 0) {
+                    sb.append('.');
+                }
+                sb.append(packet.getString(offset + 1, offset + 1 + len, StandardCharsets.US_ASCII.name()));
+                offset += len + 1;
+            }
+            return sb.toString();
+        }
+
+        // The question, name + type + class.
+        Buffer question() {
+            return packet.getBuffer(12, packet.length());
+        }
+    }
+
+    final List<Query> queries = new CopyOnWriteArrayList<>();
+    private final DatagramSocket mSocket;
+    private volatile BiConsumer<StubDnsServer, Query> mResponder = (server, query) -> {};
+
+    StubDnsServer(Vertx vertx) throws Exception {
+        this(vertx, "127.0.0.1");
+    }
+
+    StubDnsServer(Vertx vertx, String host) throws Exception {
+        mSocket = vertx.createDatagramSocket(new DatagramSocketOptions().setIpV6(host.indexOf(':') >= 0));
+        mSocket.handler(this::handle);
+        CompletableFuture<Void> listening = new CompletableFuture<>();
+        mSocket.listen(0, host, res -> {
+            if (res.succeeded()) {
+                listening.complete(null);
+            }else{
+                listening.completeExceptionally(res.cause());
+            }
+        });
+        listening.get(10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * "127.0.0.1:port", the nameserver option of the resolver.
+     */
+    String address() {
+        return "127.0.0.1:" + port();
+    }
+
+    int port() {
+        return mSocket.localAddress().port();
+    }
+
+    void respond(BiConsumer<StubDnsServer, Query> responder) {
+        mResponder = responder;
+    }
+
+    private void handle(DatagramPacket packet) {
+        Query query = new Query(packet.sender(), packet.data());
+        queries.add(query);
+        mResponder.accept(this, query);
+    }
+
+    void send(Query query, Buffer response) {
+        mSocket.send(response, query.sender.port(), query.sender.host(), res -> {});
+    }
+
+    /**
+     * An answer to query: the given flags and rcode, A (or AAAA) records of
+     * addresses with ttl, the question given instead of the one of the query
+     * if not null.
+     */
+    static Buffer answer(Query query, int flags, int rcode, Buffer question, long ttl, byte[]... addresses) {
+        Buffer q = question != null ? question : query.question();
+        Buffer packet = Buffer.buffer();
+        packet.appendUnsignedShort(query.id());
+        // QR, RD, RA
+        packet.appendUnsignedShort(0x8180 | flags | rcode);
+        packet.appendUnsignedShort(1);
+        packet.appendUnsignedShort(addresses.length);
+        packet.appendUnsignedShort(0);
+        packet.appendUnsignedShort(0);
+        packet.appendBuffer(q);
+        int type = q.getUnsignedShort(q.length() - 4);
+        for (byte[] address : addresses) {
+            // pointer to the name of the question
+            packet.appendUnsignedShort(0xC00C);
+            packet.appendUnsignedShort(type);
+            packet.appendUnsignedShort(1);
+            packet.appendUnsignedInt(ttl);
+            packet.appendUnsignedShort(address.length);
+            packet.appendBytes(address);
+        }
+        return packet;
+    }
+
+    static Buffer answer(Query query, long ttl, byte[]... addresses) {
+        return answer(query, 0, 0, null, ttl, addresses);
+    }
+
+    void close() {
+        mSocket.close();
+    }
+}
@@ -0,0 +1,127 @@
+package shadowsocks.vertxio;
+
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TimeoutWheelTest {
+
+    private final static long TICK = 10;
+
+    private Vertx mVertx;
+    private Context mContext;
+    private TimeoutWheel mWheel;
+    private final List<String> mTimedOut = new CopyOnWriteArrayList<>();
+
+    private class Conn implements TimeoutWheel.Timeoutable {
+        final String name;
+        long deadline;
+
+        Conn(String name, long deadline) {
+            this.name = name;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public long getDeadline() {
+            return deadline;
+        }
+
+        @Override
+        public void onTimeout() {
+            deadline = -1;
+            mTimedOut.add(name);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        mVertx = Vertx.vertx();
+        mContext = mVertx.getOrCreateContext();
+        CompletableFuture<TimeoutWheel> created = new CompletableFuture<>();
+        mContext.runOnContext(v -> created.complete(new TimeoutWheel(mVertx, TICK)));
+        mWheel = created.get(10, TimeUnit.SECONDS);
+    }
+
+    @After
+    public void tearDown() {
+        mContext.runOnContext(v -> mWheel.close());
+        mVertx.close();
+    }
+
+    private void onContext(Runnable r) throws Exception {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        mContext.runOnContext(v -> {
+            r.run();
+            done.complete(null);
+        });
+        done.get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void removedNotTimedOut() throws Exception {
+        onContext(() -> {
+            long deadline = mWheel.now() + 5 * TICK;
+            List<TimeoutWheel.Entry> entries = new ArrayList<>();
+            for (String name : new String[]{"a", "b", "c", "d"}) {
+                entries.add(mWheel.add(new Conn(name, deadline)));
+            }
+            // From the middle, then the last of the bucket, then again.
+            mWheel.remove(entries.get(1));
+            mWheel.remove(entries.get(2));
+            mWheel.remove(entries.get(1));
+        });
+        Thread.sleep(30 * TICK);
+        assertEquals(2, mTimedOut.size());
+        assertTrue(mTimedOut.contains("a") && mTimedOut.contains("d"));
+    }
+
+    @Test
+    public void removeDuringTimeout() throws Exception {
+        onContext(() -> {
+            long deadline = mWheel.now() + 5 * TICK;
+            // The first one to time out finishes the other, as a mux connection does with its streams.
+            Conn other = new Conn("b", deadline);
+            TimeoutWheel.Entry[] entry = new TimeoutWheel.Entry[1];
+            Conn first = new Conn("a", deadline) {
+                @Override
+                public void onTimeout() {
+                    super.onTimeout();
+                    other.deadline = -1;
+                    mWheel.remove(entry[0]);
+                }
+            };
+            mWheel.add(first);
+            entry[0] = mWheel.add(other);
+        });
+        Thread.sleep(30 * TICK);
+        assertEquals(1, mTimedOut.size());
+        assertEquals("a", mTimedOut.get(0));
+    }
+
+    @Test
+    public void rescheduledUntilDeadline() throws Exception {
+        Conn[] conn = new Conn[1];
+        onContext(() -> {
+            conn[0] = new Conn("a", mWheel.now() + 5 * TICK);
+            mWheel.add(conn[0]);
+        });
+        Thread.sleep(2 * TICK);
+        onContext(() -> conn[0].deadline = mWheel.now() + 20 * TICK);
+        Thread.sleep(10 * TICK);
+        assertEquals(0, mTimedOut.size());
+        Thread.sleep(30 * TICK);
+        assertEquals(1, mTimedOut.size());
+    }
+}